@@ -0,0 +1,195 @@
+package com.conveyal.r5.benchmark;
+
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.r5.analyst.GridComputer;
+import com.conveyal.r5.analyst.WebMercatorGridPointSet;
+import com.conveyal.r5.benchmark.SyntheticNetwork.TransitService;
+import com.conveyal.r5.profile.FastRaptorWorker;
+import com.conveyal.r5.profile.PerTargetPropagater;
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.RaptorWorker;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.map.TIntIntMap;
+import org.apache.commons.math3.random.MersenneTwister;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of each stage of computing accessibility from a single origin in a regional analysis, and of all of them
+ * together, on a synthetic network. Each stage benchmark starts from the results of the previous stages, which are
+ * computed once when the benchmark is set up:
+ *
+ * streetSearch: the walk search from the origin to transit stops (StreetRouter)
+ * linkDestinations: linking a grid of destinations to the street network (LinkedPointSet)
+ * transitSearch: the transit search to all stops (FastRaptorWorker)
+ * propagate: propagating times at stops to the destinations, on a single thread (PerTargetPropagater)
+ * propagateAndBootstrap: propagating and computing bootstrapped accessibility, as a regional worker does (GridComputer)
+ * regionalOrigin: the street search, transit search, propagation and bootstrapping for one origin, reusing the linkage
+ *
+ * Run with mvn -Pbenchmark test-compile exec:exec, optionally with e.g. -Djmh.args="transitSearch -p service=FREQUENCY".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx4G" })
+public class RoutingBenchmark {
+
+    /** The seed for the network and the opportunity grid, and for the bootstrap weights */
+    private static final long SEED = 42;
+
+    /** Walk distance limit for the access search, the same as in GridComputer */
+    private static final int ACCESS_DISTANCE_METERS = 2000;
+
+    private static final int CUTOFF_MINUTES = 45;
+
+    private static final int TRAVEL_TIME_PERCENTILE = 50;
+
+    @Param({ "SCHEDULED", "FREQUENCY", "MIXED" })
+    public TransitService service;
+
+    /** The number of streets in each direction; at 200 meters apart, 80 streets make a city 16 km across. */
+    @Param({ "80" })
+    public int gridSize;
+
+    @Param({ "30" })
+    public int nLines;
+
+    private TransportNetwork network;
+    private ProfileRequest request;
+    private double originLat;
+    private double originLon;
+
+    private WebMercatorGridPointSet destinations;
+    private LinkedPointSet linkedDestinations;
+    private Grid opportunities;
+
+    // the results of each stage, used as the input to the next
+    private TIntIntMap accessTimes;
+    private int[] nonTransitTravelTimes;
+    private int[] timesAtStops;
+    private int nMinutes;
+    private int monteCarloDrawsPerMinute;
+
+    @Setup(Level.Trial)
+    public void setup () {
+        network = SyntheticNetwork.build(gridSize, nLines, service, SEED);
+
+        request = new ProfileRequest();
+        request.date = LocalDate.of(2017, 9, 6);
+        request.fromTime = 7 * 3600;
+        request.toTime = 8 * 3600;
+        request.monteCarloDraws = 120;
+
+        // in the middle of a block near the center of the city
+        originLat = (SyntheticNetwork.lat(gridSize / 2) + SyntheticNetwork.lat(gridSize / 2 + 1)) / 2;
+        originLon = SyntheticNetwork.lon(gridSize / 2);
+
+        destinations = new WebMercatorGridPointSet(network);
+        linkedDestinations = new LinkedPointSet(destinations, network.streetLayer, StreetMode.WALK, null);
+        linkedDestinations.makePointToStopDistanceTablesIfNeeded();
+
+        Random random = new Random(SEED);
+        opportunities = new Grid(destinations.zoom, destinations.width, destinations.height, destinations.north,
+                destinations.west);
+        for (int x = 0; x < opportunities.width; x++) {
+            for (int y = 0; y < opportunities.height; y++) {
+                opportunities.grid[x][y] = random.nextInt(100);
+            }
+        }
+
+        findAccess();
+        FastRaptorWorker worker = new FastRaptorWorker(network.transitLayer, request, accessTimes);
+        timesAtStops = worker.routeStopMajor(null);
+        nMinutes = worker.nMinutes;
+        monteCarloDrawsPerMinute = worker.monteCarloDrawsPerMinute;
+    }
+
+    @Benchmark
+    public StreetRouter streetSearch () {
+        StreetRouter router = new StreetRouter(network.streetLayer);
+        router.profileRequest = request;
+        router.streetMode = StreetMode.WALK;
+        router.distanceLimitMeters = ACCESS_DISTANCE_METERS;
+        router.dominanceVariable = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+        router.setOrigin(originLat, originLon);
+        router.route();
+        return router;
+    }
+
+    @Benchmark
+    public LinkedPointSet linkDestinations () {
+        return new LinkedPointSet(destinations, network.streetLayer, StreetMode.WALK, null);
+    }
+
+    @Benchmark
+    public int[] transitSearch () {
+        return new FastRaptorWorker(network.transitLayer, request, accessTimes).routeStopMajor(null);
+    }
+
+    @Benchmark
+    public int propagate () {
+        PerTargetPropagater propagater = new PerTargetPropagater(timesAtStops, nMinutes * monteCarloDrawsPerMinute,
+                nonTransitTravelTimes, linkedDestinations, request, CUTOFF_MINUTES * 60);
+        int[] reachable = new int[1];
+        propagater.propagate((target, reachableInIteration) -> {
+            for (boolean r : reachableInIteration) if (r) reachable[0]++;
+        });
+        return reachable[0];
+    }
+
+    @Benchmark
+    public int[] propagateAndBootstrap () {
+        return bootstrap(timesAtStops);
+    }
+
+    @Benchmark
+    public int[] regionalOrigin () {
+        findAccess();
+        int[] times = new FastRaptorWorker(network.transitLayer, request, accessTimes).routeStopMajor(null);
+        return bootstrap(times);
+    }
+
+    private int[] bootstrap (int[] times) {
+        PerTargetPropagater propagater = new PerTargetPropagater(times, nMinutes * monteCarloDrawsPerMinute,
+                nonTransitTravelTimes, linkedDestinations, request, CUTOFF_MINUTES * 60);
+        return GridComputer.propagateAndBootstrap(propagater, opportunities, nMinutes, monteCarloDrawsPerMinute,
+                request.frequencyDrawWindowMinutes, TRAVEL_TIME_PERCENTILE, new MersenneTwister(SEED));
+    }
+
+    /** Find the access times to stops and the non-transit times to destinations, as GridComputer does for walking */
+    private void findAccess () {
+        StreetRouter router = streetSearch();
+        int speedMillimetersPerSecond = (int) (request.walkSpeed * 1000);
+
+        accessTimes = router.getReachedStops();
+        for (TIntIntIterator it = accessTimes.iterator(); it.hasNext(); ) {
+            it.advance();
+            it.setValue(it.value() / speedMillimetersPerSecond);
+        }
+
+        nonTransitTravelTimes = linkedDestinations.eval(v -> {
+            StreetRouter.State state = router.getStateAtVertex(v);
+            return state == null ? RaptorWorker.UNREACHED : state.distance / speedMillimetersPerSecond;
+        }, speedMillimetersPerSecond).travelTimes;
+    }
+}
@@ -0,0 +1,310 @@
+package com.conveyal.r5.benchmark;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Agency;
+import com.conveyal.gtfs.model.Calendar;
+import com.conveyal.gtfs.model.FeedInfo;
+import com.conveyal.gtfs.model.Route;
+import com.conveyal.gtfs.model.Stop;
+import com.conveyal.gtfs.model.StopTime;
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.osmlib.Node;
+import com.conveyal.osmlib.OSM;
+import com.conveyal.osmlib.Way;
+import com.conveyal.r5.analyst.scenario.AddTrips;
+import com.conveyal.r5.analyst.scenario.Modification;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.r5.analyst.scenario.StopSpec;
+import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.transit.TransferFinder;
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.mapdb.Fun;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds synthetic but realistically sized transport networks for benchmarks, entirely in memory and without any input
+ * files. The streets are a square grid of two-way streets, with faster arterials every few blocks. Transit lines run
+ * straight along randomly chosen streets, in both directions, stopping every few blocks; lines that cross at a stop
+ * share it, so transfers are possible. Scheduled lines come from a GTFS feed built in memory, and frequency lines are
+ * added with an AddTrips scenario, just as they would be in an analysis.
+ *
+ * Everything random is drawn from a generator with the given seed, so the same parameters always give the same
+ * network. Note that the random schedules of Monte Carlo draws in the routing itself are not seeded.
+ */
+public class SyntheticNetwork {
+    private static final Logger LOG = LoggerFactory.getLogger(SyntheticNetwork.class);
+
+    public static final String FEED_ID = "synthetic";
+
+    /** The southwest corner of the grid */
+    public static final double SOUTH = 39.9;
+    public static final double WEST = -83.1;
+
+    /** The distance between adjacent streets, in meters */
+    public static final double BLOCK_METERS = 200;
+
+    /** Every this many streets is an arterial */
+    private static final int ARTERIAL_EVERY_N_STREETS = 5;
+
+    /** Transit lines stop every this many blocks */
+    public static final int BLOCKS_BETWEEN_STOPS = 3;
+
+    /** The span of transit service, seconds since midnight */
+    public static final int SERVICE_START = 6 * 3600;
+    public static final int SERVICE_END = 10 * 3600;
+
+    private static final int[] HEADWAYS_SECONDS = { 300, 600, 900, 1200 };
+
+    private static final int DWELL_SECONDS = 20;
+
+    private static final double METERS_PER_DEGREE_LAT = 111111;
+
+    /** What kind of transit service to put on the network */
+    public enum TransitService {
+        SCHEDULED, FREQUENCY, MIXED
+    }
+
+    /**
+     * Build a network.
+     * @param gridSize the number of streets in each direction.
+     * @param nLines the number of transit lines, all scheduled, all frequency-based or half of each depending on service.
+     */
+    public static TransportNetwork build (int gridSize, int nLines, TransitService service, long seed) {
+        Random random = new Random(seed);
+
+        TNBuilderConfig config = new TNBuilderConfig();
+        TransportNetwork network = new TransportNetwork();
+
+        StreetLayer streetLayer = new StreetLayer(config);
+        network.streetLayer = streetLayer;
+        streetLayer.parentNetwork = network;
+        streetLayer.loadFromOsm(buildStreets(gridSize));
+        streetLayer.indexStreets();
+
+        // Choose all the lines first, so that the same seed gives the same lines whatever kind of service they have.
+        List<int[]> stopsForLine = new ArrayList<>();
+        for (int line = 0; line < nLines; line++) stopsForLine.add(chooseLine(gridSize, random));
+
+        GTFSFeed feed = blankFeed();
+        List<Modification> frequencyLines = new ArrayList<>();
+        for (int line = 0; line < nLines; line++) {
+            int[] stops = stopsForLine.get(line);
+            for (int stop : stops) addStop(feed, gridSize, stop);
+
+            int headway = HEADWAYS_SECONDS[random.nextInt(HEADWAYS_SECONDS.length)];
+            int[] hopTimes = new int[stops.length - 1];
+            // between 20 and 40 km/h
+            for (int hop = 0; hop < hopTimes.length; hop++) {
+                hopTimes[hop] = (int) (BLOCK_METERS * BLOCKS_BETWEEN_STOPS / (5.5 + random.nextDouble() * 5.5));
+            }
+
+            boolean frequency = service == TransitService.FREQUENCY || (service == TransitService.MIXED && line % 2 == 1);
+            if (frequency) {
+                frequencyLines.add(frequencyLine(line, stops, hopTimes, headway));
+            } else {
+                addScheduledLine(feed, line, stops, hopTimes, headway, random.nextInt(headway));
+            }
+        }
+
+        TransitLayer transitLayer = new TransitLayer();
+        transitLayer.loadFromGtfs(feed);
+        feed.close();
+        network.transitLayer = transitLayer;
+        transitLayer.parentNetwork = network;
+
+        // The same steps as TransportNetwork.fromFiles
+        streetLayer.indexStreets();
+        streetLayer.associateStops(transitLayer);
+        streetLayer.buildEdgeLists();
+        transitLayer.rebuildTransientIndexes();
+        new TransferFinder(network).findTransfers();
+        transitLayer.buildDistanceTables(null);
+
+        if (!frequencyLines.isEmpty()) {
+            Scenario scenario = new Scenario();
+            scenario.id = "synthetic-frequency-lines";
+            scenario.modifications = frequencyLines;
+            network = scenario.applyToTransportNetwork(network);
+        }
+
+        LOG.info("Built synthetic network with {} street vertices, {} transit stops and {} patterns",
+                network.streetLayer.getVertexCount(), network.transitLayer.getStopCount(),
+                network.transitLayer.tripPatterns.size());
+
+        return network;
+    }
+
+    /** The latitude of the street with the given index, counting north from the south edge */
+    public static double lat (int y) {
+        return SOUTH + y * BLOCK_METERS / METERS_PER_DEGREE_LAT;
+    }
+
+    /** The longitude of the street with the given index, counting east from the west edge */
+    public static double lon (int x) {
+        return WEST + x * BLOCK_METERS / (METERS_PER_DEGREE_LAT * Math.cos(Math.toRadians(SOUTH)));
+    }
+
+    /** Make a grid of streets, with an OSM node at every intersection */
+    private static OSM buildStreets (int gridSize) {
+        OSM osm = new OSM(null);
+        osm.intersectionDetection = true;
+
+        for (int y = 0; y < gridSize; y++) {
+            for (int x = 0; x < gridSize; x++) {
+                long nodeId = nodeId(gridSize, x, y);
+                osm.nodes.put(nodeId, new Node(lat(y), lon(x)));
+                osm.intersectionNodes.add(nodeId);
+            }
+        }
+
+        long wayId = 1;
+        for (int street = 0; street < gridSize; street++) {
+            Way eastWest = new Way();
+            Way northSouth = new Way();
+            eastWest.nodes = new long[gridSize];
+            northSouth.nodes = new long[gridSize];
+            for (int i = 0; i < gridSize; i++) {
+                eastWest.nodes[i] = nodeId(gridSize, i, street);
+                northSouth.nodes[i] = nodeId(gridSize, street, i);
+            }
+            String highway = street % ARTERIAL_EVERY_N_STREETS == 0 ? "primary" : "residential";
+            eastWest.addTag("highway", highway);
+            northSouth.addTag("highway", highway);
+            osm.ways.put(wayId++, eastWest);
+            osm.ways.put(wayId++, northSouth);
+        }
+
+        return osm;
+    }
+
+    private static long nodeId (int gridSize, int x, int y) {
+        return (long) y * gridSize + x + 1;
+    }
+
+    /**
+     * Choose a line that runs along a random street from one edge of the grid to the other.
+     * @return the stops of the line, as indices y * gridSize + x of the intersections they are at.
+     */
+    private static int[] chooseLine (int gridSize, Random random) {
+        boolean eastWest = random.nextBoolean();
+        int street = random.nextInt(gridSize);
+        int nStops = (gridSize - 1) / BLOCKS_BETWEEN_STOPS + 1;
+        int[] stops = new int[nStops];
+        for (int stop = 0; stop < nStops; stop++) {
+            int along = stop * BLOCKS_BETWEEN_STOPS;
+            stops[stop] = eastWest ? street * gridSize + along : along * gridSize + street;
+        }
+        return stops;
+    }
+
+    private static String stopId (int stop) {
+        return "s" + stop;
+    }
+
+    private static void addStop (GTFSFeed feed, int gridSize, int stop) {
+        String id = stopId(stop);
+        if (feed.stops.containsKey(id)) return;
+        Stop s = new Stop();
+        s.stop_id = s.stop_name = id;
+        s.stop_lat = lat(stop / gridSize);
+        s.stop_lon = lon(stop % gridSize);
+        feed.stops.put(id, s);
+    }
+
+    /** Add trips in both directions over the span of service, departing every headway from the given offset */
+    private static void addScheduledLine (GTFSFeed feed, int line, int[] stops, int[] hopTimes, int headway, int offset) {
+        Route route = new Route();
+        route.route_id = route.route_short_name = "line" + line;
+        route.route_type = 3;
+        route.agency_id = "agency";
+        feed.routes.put(route.route_id, route);
+
+        for (int direction = 0; direction < 2; direction++) {
+            for (int departure = SERVICE_START + offset; departure < SERVICE_END; departure += headway) {
+                Trip trip = new Trip();
+                trip.trip_id = route.route_id + "_" + direction + "_" + departure;
+                trip.route_id = route.route_id;
+                trip.service_id = "service";
+                trip.direction_id = direction;
+                feed.trips.put(trip.trip_id, trip);
+
+                int time = departure;
+                for (int i = 0; i < stops.length; i++) {
+                    int stop = direction == 0 ? stops[i] : stops[stops.length - 1 - i];
+                    if (i > 0) time += direction == 0 ? hopTimes[i - 1] : hopTimes[hopTimes.length - i];
+
+                    StopTime stopTime = new StopTime();
+                    stopTime.trip_id = trip.trip_id;
+                    stopTime.stop_id = stopId(stop);
+                    stopTime.stop_sequence = i;
+                    stopTime.arrival_time = time;
+                    time += DWELL_SECONDS;
+                    stopTime.departure_time = time;
+                    feed.stop_times.put(new Fun.Tuple2(trip.trip_id, stopTime.stop_sequence), stopTime);
+                }
+            }
+        }
+    }
+
+    /** Create a modification that adds a frequency line in both directions over the span of service */
+    private static AddTrips frequencyLine (int line, int[] stops, int[] hopTimes, int headway) {
+        AddTrips addTrips = new AddTrips();
+        addTrips.comment = "line" + line;
+        addTrips.bidirectional = true;
+        addTrips.stops = new ArrayList<>();
+        for (int stop : stops) addTrips.stops.add(new StopSpec(FEED_ID + ":" + stopId(stop)));
+
+        AddTrips.PatternTimetable timetable = new AddTrips.PatternTimetable();
+        timetable.hopTimes = hopTimes;
+        timetable.dwellTimes = new int[stops.length];
+        Arrays.fill(timetable.dwellTimes, DWELL_SECONDS);
+        timetable.startTime = SERVICE_START;
+        timetable.endTime = SERVICE_END;
+        timetable.headwaySecs = headway;
+        timetable.monday = timetable.tuesday = timetable.wednesday = timetable.thursday = timetable.friday =
+                timetable.saturday = timetable.sunday = true;
+        addTrips.frequencies = Arrays.asList(timetable);
+
+        return addTrips;
+    }
+
+    private static GTFSFeed blankFeed () {
+        GTFSFeed feed = new GTFSFeed();
+        feed.feedId = FEED_ID;
+
+        FeedInfo info = new FeedInfo();
+        info.feed_id = FEED_ID;
+        feed.feedInfo.put("NONE", info);
+
+        Agency agency = new Agency();
+        agency.agency_id = "agency";
+        agency.agency_name = "Synthetic Transit";
+        agency.agency_timezone = "America/New_York";
+        try {
+            agency.agency_url = new URL("http://www.example.com");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        feed.agency.put(agency.agency_id, agency);
+
+        com.conveyal.gtfs.model.Service service = new com.conveyal.gtfs.model.Service("service");
+        service.calendar = new Calendar();
+        service.calendar.service_id = service.service_id;
+        service.calendar.monday = service.calendar.tuesday = service.calendar.wednesday = service.calendar.thursday =
+                service.calendar.friday = service.calendar.saturday = service.calendar.sunday = 1;
+        service.calendar.start_date = 19991231;
+        service.calendar.end_date = 21001231;
+        feed.services.put(service.service_id, service);
+
+        return feed;
+    }
+}
@@ -1,14 +1,11 @@
 package com.conveyal.r5.analyst;
 
-import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.AmazonSQSClient;
-import com.amazonaws.services.sqs.model.MessageAttributeValue;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.conveyal.r5.analyst.cluster.GridRequest;
-import com.conveyal.r5.analyst.cluster.Origin;
+import com.conveyal.r5.analyst.cluster.GridResultPublisher;
 import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.point_to_point.builder.PointToPointQuery;
 import com.conveyal.r5.profile.FastRaptorWorker;
+import com.conveyal.r5.profile.MultiOriginRaptorWorker;
 import com.conveyal.r5.profile.PerTargetPropagater;
 import com.conveyal.r5.profile.RaptorWorker;
 import com.conveyal.r5.profile.StreetMode;
@@ -16,18 +13,18 @@ import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.StreetRouter;
 import com.conveyal.r5.transit.TransportNetwork;
 import gnu.trove.iterator.TIntIntIterator;
-import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import org.apache.commons.math3.random.MersenneTwister;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
 
 /**
@@ -111,10 +108,8 @@ public class GridComputer  {
     /** The number of bootstrap replications used to bootstrap the sampling distribution of the percentiles */
     public static final int N_BOOTSTRAP_REPLICATIONS = 1000;
 
-    /** SQS client. TODO: async? */
-    private static final AmazonSQS sqs = new AmazonSQSClient();
-
-    private static final Base64.Encoder base64 = Base64.getEncoder();
+    /** Sends results to SQS in batches on a background thread, shared by all the grid computers on this worker. */
+    private static final GridResultPublisher resultPublisher = new GridResultPublisher();
 
     private final GridCache gridCache;
 
@@ -124,14 +119,100 @@ public class GridComputer  {
 
     public final TransportNetwork network;
 
+    // The results of findAccess, used by the transit search and propagation.
+    private Grid grid;
+    private LinkedPointSet linkedDestinationsEgress;
+    private TIntIntMap accessTimes;
+    private int[] nonTransitTravelTimesToDestinations;
+
     public GridComputer(GridRequest request, GridCache gridCache, TransportNetwork network) {
         this.request = request;
         this.gridCache = gridCache;
         this.network = network;
     }
 
-    public void run() throws IOException {
-        final Grid grid = gridCache.get(request.grid);
+    /**
+     * Compute accessibility from the origin of the request and publish the result.
+     * @return a future that is completed once the result has been sent to the output queue.
+     */
+    public CompletableFuture<Void> run() throws IOException {
+        CompletableFuture<Void> nonTransitResult = findAccess();
+        if (nonTransitResult != null) return nonTransitResult;
+        return routeAndPublish();
+    }
+
+    /** Perform the transit search from this origin once findAccess has been called, then propagate and publish. */
+    private CompletableFuture<Void> routeAndPublish () throws IOException {
+        FastRaptorWorker router = new FastRaptorWorker(network.transitLayer, request.request, accessTimes);
+
+        // Run the raptor algorithm. The travel times to stops are not kept once they have been propagated: they are
+        // sized for one network and request, and holding them on the thread would pin them after the analysis ends.
+        int[] timesAtStops = router.routeStopMajor(null);
+
+        return propagateAndPublish(timesAtStops, router.nMinutes, router.monteCarloDrawsPerMinute);
+    }
+
+    /**
+     * Compute accessibility from the origins of several requests for the same regional analysis, which differ only in
+     * their origins, and publish the results. The transit searches from as many origins as
+     * MultiOriginRaptorWorker.maxOriginsFor allows in memory are performed together, which is much faster than
+     * searching from each origin in turn when the origins are near each other.
+     * @return a future for each request, in the same order as the requests, that is completed once its result has been
+     *         sent to the output queue.
+     */
+    public static List<CompletableFuture<Void>> runBatch (List<GridRequest> requests, GridCache gridCache,
+                                                          TransportNetwork network) throws IOException {
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        List<GridComputer> transitComputers = new ArrayList<>();
+        List<Integer> transitResultIndices = new ArrayList<>();
+
+        for (GridRequest request : requests) {
+            GridComputer computer = new GridComputer(request, gridCache, network);
+            CompletableFuture<Void> nonTransitResult = computer.findAccess();
+            if (nonTransitResult == null) {
+                transitComputers.add(computer);
+                transitResultIndices.add(results.size());
+            }
+            results.add(nonTransitResult);
+        }
+
+        // All the requests are for the same analysis, so they have the same routing parameters.
+        int maxOrigins = transitComputers.isEmpty() ? 1 :
+                MultiOriginRaptorWorker.maxOriginsFor(network.transitLayer, transitComputers.get(0).request.request);
+
+        for (int start = 0; start < transitComputers.size(); start += maxOrigins) {
+            List<GridComputer> computers = transitComputers.subList(start,
+                    Math.min(start + maxOrigins, transitComputers.size()));
+
+            if (computers.size() == 1) {
+                results.set(transitResultIndices.get(start), computers.get(0).routeAndPublish());
+                continue;
+            }
+
+            List<TIntIntMap> accessTimes = computers.stream().map(c -> c.accessTimes).collect(Collectors.toList());
+            MultiOriginRaptorWorker router =
+                    new MultiOriginRaptorWorker(network.transitLayer, computers.get(0).request.request, accessTimes);
+            int[][] timesAtStops = router.routeStopMajor();
+
+            for (int i = 0; i < computers.size(); i++) {
+                CompletableFuture<Void> result = computers.get(i)
+                        .propagateAndPublish(timesAtStops[i], router.nMinutes, router.monteCarloDrawsPerMinute);
+                // release the travel times from this origin as soon as they have been propagated
+                timesAtStops[i] = null;
+                results.set(transitResultIndices.get(start + i), result);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Find the travel times from the origin to transit stops and the non-transit travel times to destinations, storing
+     * them in this GridComputer. If the request does not use transit, this completes the analysis.
+     * @return the result of a non-transit search, or null if a transit search is needed.
+     */
+    private CompletableFuture<Void> findAccess () throws IOException {
+        grid = gridCache.get(request.grid);
 
         // ensure they both have the same zoom level
         if (request.zoom != grid.zoom) throw new IllegalArgumentException("grid zooms do not match!");
@@ -154,7 +235,7 @@ public class GridComputer  {
             // non-transit search
             LinkedPointSet linkedDestinations = destinations.link(network.streetLayer, directMode);
 
-            StreetRouter sr = new StreetRouter(network.streetLayer);
+            StreetRouter sr = network.streetLayer.getRouter();
             sr.timeLimitSeconds = request.request.maxTripDurationMinutes * 60;
             sr.streetMode = directMode;
             sr.profileRequest = request.request;
@@ -164,6 +245,7 @@ public class GridComputer  {
 
             int offstreetWalkSpeedMillimetersPerSecond = (int) (request.request.getSpeed(directMode) * 1000);
             int[] travelTimes = linkedDestinations.eval(sr::getTravelTimeToVertex, offstreetWalkSpeedMillimetersPerSecond).travelTimes;
+            network.streetLayer.returnRouter(sr);
 
             double accessibility = 0;
             for (int y = 0, index1d = 0; y < grid.height; y++) {
@@ -174,10 +256,10 @@ public class GridComputer  {
                 }
             }
 
-            finish(new int[] { (int) accessibility }); // no uncertainty so no bootstraps
+            return finish(new int[] { (int) accessibility }); // no uncertainty so no bootstraps
         } else {
             // always walk at egress
-            LinkedPointSet linkedDestinationsEgress = destinations.link(network.streetLayer, StreetMode.WALK);
+            linkedDestinationsEgress = destinations.link(network.streetLayer, StreetMode.WALK);
             // if the access mode is also walk, the link function will use its cache to return the same linkedpointset
             // NB Should use direct mode but then we'd have to run the street search twice.
             if (!request.request.directModes.equals(request.request.accessModes)) {
@@ -190,12 +272,12 @@ public class GridComputer  {
             LOG.info("Maximum trip duration: {}", request.request.maxTripDurationMinutes);
 
             // first, find the access stops
-            StreetRouter sr = new StreetRouter(network.streetLayer);
+            // Park and ride searches replace sr with another router, so keep the pooled one to give it back.
+            StreetRouter accessRouter = network.streetLayer.getRouter();
+            StreetRouter sr = accessRouter;
             sr.profileRequest = request.request;
 
-            TIntIntMap accessTimes;
             int offstreetTravelSpeedMillimetersPerSecond = (int) (request.request.getSpeed(accessMode) * 1000);
-            int[] nonTransitTravelTimesToDestinations;
 
             if (request.request.accessModes.contains(LegMode.CAR_PARK)) {
                 //Currently first search from origin to P+R is hardcoded as time dominance variable for Max car time seconds
@@ -257,116 +339,176 @@ public class GridComputer  {
                         linkedDestinationsAccess.eval(sr::getTravelTimeToVertex, offstreetTravelSpeedMillimetersPerSecond)
                                 .travelTimes;
             }
+            network.streetLayer.returnRouter(accessRouter);
 
-            FastRaptorWorker router = new FastRaptorWorker(network.transitLayer, request.request, accessTimes);
-
-            // Run the raptor algorithm
-            int[][] timesAtStopsEachIteration = router.route();
+            return null;
+        }
+    }
 
-            // compute bootstrap weights, see comments in Javadoc detailing how we compute the weights we're using
-            // the Mersenne Twister is a fast, high-quality RNG well-suited to Monte Carlo situations
-            MersenneTwister twister = new MersenneTwister();
+    /**
+     * Propagate the travel times to stops from this origin (in the stop-major layout of FastRaptorWorker.routeStopMajor)
+     * to the destinations, compute the bootstrapped accessibility and publish it.
+     */
+    private CompletableFuture<Void> propagateAndPublish (int[] timesAtStops, int nMinutes, int monteCarloDrawsPerMinute)
+            throws IOException {
+        int nIterations = nMinutes * monteCarloDrawsPerMinute;
+
+        // Do propagation of travel times from transit stops to the destinations. This is done on the calling thread:
+        // regional analyses already compute one origin (or block of origins) on each processor, and the worker limits
+        // how many of them run at once while interactive requests are waiting (see RegionalTaskThrottle).
+        PerTargetPropagater propagater =
+                new PerTargetPropagater(timesAtStops, nIterations, nonTransitTravelTimesToDestinations, linkedDestinationsEgress, request.request, request.cutoffMinutes * 60);
+
+        // the Mersenne Twister is a fast, high-quality RNG well-suited to Monte Carlo situations
+        int[] samples = propagateAndBootstrap(propagater, grid, nMinutes, monteCarloDrawsPerMinute,
+                request.request.frequencyDrawWindowMinutes, request.travelTimePercentile, new MersenneTwister());
+        return finish(samples);
+    }
 
-            // This stores the number of times each Monte Carlo draw is included in each bootstrap sample, which could be
-            // 0, 1 or more. We store the weights on each iteration rather than a list of iterations because it allows
-            // us to easily construct the weights s.t. they sum to the original number of MC draws.
-            int[][] bootstrapWeights = new int[N_BOOTSTRAP_REPLICATIONS + 1][router.nMinutes * router.monteCarloDrawsPerMinute];
+    /**
+     * Propagate travel times to the destinations with the given propagater and compute the accessibility to the
+     * opportunities in the grid, at the given travel time percentile, in the point estimate (the first value returned)
+     * and in each bootstrap replication (the rest). This is separate from the search so it can be benchmarked.
+     *
+     * The propagater must not be in parallel mode. Destinations are added to the accessibility in order, so that the
+     * floating point sums, and thus the results, are the same every time an origin is computed.
+     *
+     * @param frequencyDrawWindowMinutes the number of minutes over which the search carried each Monte Carlo draw,
+     *                                   ProfileRequest.frequencyDrawWindowMinutes.
+     * @param twister the source of the random bootstrap weights.
+     */
+    public static int[] propagateAndBootstrap (PerTargetPropagater propagater, Grid grid, int nMinutes,
+                                               int monteCarloDrawsPerMinute, int frequencyDrawWindowMinutes,
+                                               int travelTimePercentile, MersenneTwister twister) {
+        if (propagater.parallel) {
+            throw new IllegalArgumentException("Bootstrapping requires propagating to destinations in order.");
+        }
+        int nIterations = nMinutes * monteCarloDrawsPerMinute;
+
+        // compute bootstrap weights, see comments in Javadoc detailing how we compute the weights we're using
+
+        // This stores the number of times each Monte Carlo draw is included in each bootstrap sample, which could be
+        // 0, 1 or more. We store the weights on each iteration rather than a list of iterations because it allows
+        // us to easily construct the weights s.t. they sum to the original number of MC draws. The weights are
+        // indexed by iteration and then by bootstrap, so that counting the reachable draws of a destination in all
+        // bootstrap replications adds up whole contiguous rows, a loop the JIT can vectorize.
+        int[][] bootstrapWeights =
+                computeBootstrapWeights(nMinutes, monteCarloDrawsPerMinute, frequencyDrawWindowMinutes, twister);
+
+        // the minimum number of times a destination must be reachable in a single bootstrap sample to be considered
+        // reachable.
+        int minCount = (int) (nIterations * (travelTimePercentile / 100d));
+
+        // store the accessibility results for each bootstrap replication
+        double[] bootstrapReplications = new double[N_BOOTSTRAP_REPLICATIONS + 1];
+
+        // Opportunities at destinations that are reachable in every Monte Carlo draw, and thus in every bootstrap
+        // replication. These are summed separately and added to all the replications at the end.
+        double[] alwaysReachableOpportunities = new double[1];
+
+        // The count of reachable Monte Carlo draws in each bootstrap replication, reused for every destination.
+        int[] counts = new int[N_BOOTSTRAP_REPLICATIONS + 1];
+
+        // The lambda will be called with a boolean array of whether the target is reachable within the cutoff at each
+        // Monte Carlo draw. These are then bootstrapped to create the sampling distribution.
+        propagater.propagate((target, reachable) -> {
+            int gridx = target % grid.width;
+            int gridy = target / grid.width;
+            double opportunityCountAtTarget = grid.grid[gridx][gridy];
+
+            // as an optimization, don't even bother to compute the sampling distribution at cells that contain no
+            // opportunities.
+            if (opportunityCountAtTarget < 1e-6) return;
+
+            int nReachable = 0;
+            for (boolean reachableInIteration : reachable) {
+                if (reachableInIteration) nReachable++;
+            }
 
-            Arrays.fill(bootstrapWeights[0], 1); // equal weight to all observations for first sample
+            // Optimization: only bootstrap if some of the travel times are above the cutoff and some below.
+            // If a destination is always reachable, it will perforce be reachable always in every bootstrap
+            // sample, so there is no need to compute the bootstraps, and similarly if it is never reachable.
+            if (nReachable == nIterations) {
+                // this destination is always reachable and will be included in all bootstrap samples, no need to do the
+                // bootstrapping
+                alwaysReachableOpportunities[0] += opportunityCountAtTarget;
+            } else if (nReachable == 0) {
+                // do nothing, never reachable, does not impact accessibility
+            } else {
+                // This origin is sometimes reachable within the time window, do bootstrapping to determine
+                // the distribution of how often. The weights of each bootstrap sample sum to the number of
+                // iterations, so when the destination is reachable in most iterations we sum the weights of the
+                // iterations where it is not reachable and subtract, which touches fewer rows of weights.
+                boolean sumUnreachable = nReachable > nIterations / 2;
+                Arrays.fill(counts, 0);
+                for (int iteration = 0; iteration < reachable.length; iteration++) {
+                    if (reachable[iteration] == sumUnreachable) continue;
+                    int[] weights = bootstrapWeights[iteration];
+                    for (int bootstrap = 0; bootstrap < counts.length; bootstrap++) {
+                        counts[bootstrap] += weights[bootstrap];
+                    }
+                }
 
-            for (int bootstrap = 1; bootstrap < bootstrapWeights.length; bootstrap++) {
-                for (int minute = 0; minute < router.nMinutes; minute++) {
-                    for (int draw = 0; draw < router.monteCarloDrawsPerMinute; draw++) {
-                        int iteration = minute * router.monteCarloDrawsPerMinute + twister.nextInt(router.monteCarloDrawsPerMinute);
-                        bootstrapWeights[bootstrap][iteration]++;
+                for (int bootstrap = 0; bootstrap < N_BOOTSTRAP_REPLICATIONS + 1; bootstrap++) {
+                    int count = sumUnreachable ? nIterations - counts[bootstrap] : counts[bootstrap];
+                    // TODO sigmoidal rolloff here, to avoid artifacts from large destinations that jump a few seconds
+                    // in or out of the cutoff.
+                    if (count > minCount) {
+                        bootstrapReplications[bootstrap] += opportunityCountAtTarget;
                     }
                 }
             }
+        });
 
-            // the minimum number of times a destination must be reachable in a single bootstrap sample to be considered
-            // reachable.
-            int minCount = (int) (router.nMinutes * router.monteCarloDrawsPerMinute * (request.travelTimePercentile / 100d));
-
-            // Do propagation of travel times from transit stops to the destinations
-            PerTargetPropagater propagater =
-                    new PerTargetPropagater(timesAtStopsEachIteration, nonTransitTravelTimesToDestinations, linkedDestinationsEgress, request.request, request.cutoffMinutes * 60);
-
-            // store the accessibility results for each bootstrap replication
-            double[] bootstrapReplications = new double[N_BOOTSTRAP_REPLICATIONS + 1];
-
-            // The lambda will be called with a boolean array of whether the target is reachable within the cutoff at each
-            // Monte Carlo draw. These are then bootstrapped to create the sampling distribution.
-            propagater.propagate((target, reachable) -> {
-                int gridx = target % grid.width;
-                int gridy = target / grid.width;
-                double opportunityCountAtTarget = grid.grid[gridx][gridy];
-
-                // as an optimization, don't even bother to compute the sampling distribution at cells that contain no
-                // opportunities.
-                if (opportunityCountAtTarget < 1e-6) return;
+        double alwaysReachable = alwaysReachableOpportunities[0];
+        for (int bootstrap = 0; bootstrap < N_BOOTSTRAP_REPLICATIONS + 1; bootstrap++) {
+            bootstrapReplications[bootstrap] += alwaysReachable;
+        }
 
-                // index the Monte Carlo iterations in which the destination was reached within the travel time cutoff,
-                // so we can skip over the non-reachable ones in bootstrap computations.
-                // this improves computation speed (verified)
-                TIntList reachableInIterationsList = new TIntArrayList();
+        // round (not cast/floor) these all to ints.
+        return DoubleStream.of(bootstrapReplications).mapToInt(d -> (int) Math.round(d)).toArray();
+    }
 
-                for (int i = 0; i < reachable.length; i++) {
-                    if (reachable[i]) reachableInIterationsList.add(i);
-                }
+    /**
+     * Compute the number of times each iteration is included in each bootstrap sample, indexed by iteration and then by
+     * bootstrap, with every iteration included once in the first sample (the point estimate). Each bootstrap sample
+     * includes the same number of iterations from each departure minute as the original search.
+     *
+     * When the search carried each Monte Carlo draw across a window of minutes (ProfileRequest.frequencyDrawWindowMinutes),
+     * the draws in neighboring minutes of a window are not independent: they are the same randomized schedules. The
+     * draws are then resampled as whole windows, choosing one draw for each draw of the window and including it at every
+     * minute of the window, so that the dependence between minutes is kept within each sample. With a window of one
+     * minute, this is the same as resampling each minute on its own.
+     */
+    static int[][] computeBootstrapWeights (int nMinutes, int monteCarloDrawsPerMinute, int frequencyDrawWindowMinutes,
+                                           MersenneTwister twister) {
+        int nIterations = nMinutes * monteCarloDrawsPerMinute;
+        int windowMinutes = Math.max(frequencyDrawWindowMinutes, 1);
+        int[][] bootstrapWeights = new int[nIterations][N_BOOTSTRAP_REPLICATIONS + 1];
+
+        for (int iteration = 0; iteration < nIterations; iteration++) {
+            bootstrapWeights[iteration][0] = 1; // equal weight to all observations for first sample
+        }
 
-                int[] reachableInIterations = reachableInIterationsList.toArray();
-
-                boolean isAlwaysReachableWithinTravelTimeCutoff =
-                        reachableInIterations.length == timesAtStopsEachIteration.length;
-                boolean isNeverReachableWithinTravelTimeCutoff = reachableInIterations.length == 0;
-
-                // Optimization: only bootstrap if some of the travel times are above the cutoff and some below.
-                // If a destination is always reachable, it will perforce be reachable always in every bootstrap
-                // sample, so there is no need to compute the bootstraps, and similarly if it is never reachable.
-                if (isAlwaysReachableWithinTravelTimeCutoff) {
-                    // this destination is always reachable and will be included in all bootstrap samples, no need to do the
-                    // bootstrapping
-                    // possible optimization: have a variable that persists between calls to this lambda and increment
-                    // that single value, then add that value to each replication at the end; reduces the number of additions.
-                    for (int i = 0; i < bootstrapReplications.length; i++)
-                        bootstrapReplications[i] += grid.grid[gridx][gridy];
-                } else if (isNeverReachableWithinTravelTimeCutoff) {
-                    // do nothing, never reachable, does not impact accessibility
-                } else {
-                    // This origin is sometimes reachable within the time window, do bootstrapping to determine
-                    // the distribution of how often
-                    for (int bootstrap = 0; bootstrap < N_BOOTSTRAP_REPLICATIONS + 1; bootstrap++) {
-                        int count = 0;
-                        for (int iteration : reachableInIterations) {
-                            count += bootstrapWeights[bootstrap][iteration];
-                        }
-
-                        // TODO sigmoidal rolloff here, to avoid artifacts from large destinations that jump a few seconds
-                        // in or out of the cutoff.
-                        if (count > minCount) {
-                            bootstrapReplications[bootstrap] += opportunityCountAtTarget;
-                        }
+        // The searches start new draws at the first minute in the results, and every windowMinutes minutes after that.
+        for (int bootstrap = 1; bootstrap < N_BOOTSTRAP_REPLICATIONS + 1; bootstrap++) {
+            for (int windowStart = 0; windowStart < nMinutes; windowStart += windowMinutes) {
+                int windowEnd = Math.min(windowStart + windowMinutes, nMinutes);
+                for (int draw = 0; draw < monteCarloDrawsPerMinute; draw++) {
+                    int sampledDraw = twister.nextInt(monteCarloDrawsPerMinute);
+                    for (int minute = windowStart; minute < windowEnd; minute++) {
+                        bootstrapWeights[minute * monteCarloDrawsPerMinute + sampledDraw][bootstrap]++;
                     }
                 }
-            });
-
-            // round (not cast/floor) these all to ints.
-            int[] intReplications = DoubleStream.of(bootstrapReplications).mapToInt(d -> (int) Math.round(d)).toArray();
-            finish(intReplications);
+            }
         }
-    }
 
-    private void finish (int[] samples) throws IOException {
-        // now construct the output
-        // these things are tiny, no problem storing in memory
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        new Origin(request, samples).write(baos);
+        return bootstrapWeights;
+    }
 
+    private CompletableFuture<Void> finish (int[] samples) throws IOException {
         // send this origin to an SQS queue as a binary payload; it will be consumed by GridResultConsumer
         // and GridResultAssembler
-        SendMessageRequest smr = new SendMessageRequest(request.outputQueue, base64.encodeToString(baos.toByteArray()));
-        smr = smr.addMessageAttributesEntry("jobId", new MessageAttributeValue().withDataType("String").withStringValue(request.jobId));
-        sqs.sendMessage(smr);
+        return resultPublisher.publish(request, samples);
     }
 }
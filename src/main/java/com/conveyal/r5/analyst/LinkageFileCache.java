@@ -0,0 +1,164 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.common.R5Version;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists finished linkages of web mercator grids to base (non-scenario) street networks on local disk, so that a
+ * worker that has already linked a grid (or a new worker sharing the same cache directory) does not need to link it
+ * again. Linking a large grid and building its stop to point distance tables takes about a minute, and every regional
+ * analysis on a different opportunity grid uses a different extent.
+ *
+ * Files are keyed on the network ID and R5 version (which is how the serialized networks themselves are keyed), the
+ * grid extent and the street mode. The file header also records the sizes of the street and transit layers, and a file
+ * that does not match the network it is loaded for is ignored and rebuilt.
+ *
+ * Linkages of scenario street layers are not persisted; they are built from the persisted base linkage by relinking
+ * only the points near modified streets, which is fast.
+ */
+public class LinkageFileCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LinkageFileCache.class);
+
+    /** Identifies linkage files, the ASCII characters R5LK */
+    private static final int MAGIC = 0x52354c4b;
+
+    /** Increment this whenever the file format changes */
+    private static final int FORMAT_VERSION = 1;
+
+    private final File cacheDir;
+
+    public LinkageFileCache (File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Load the linkage of the given grid to the given street layer from disk, or link it and save it if there is no
+     * valid saved linkage. If the street layer does not belong to an identifiable base network, just link the grid.
+     */
+    public LinkedPointSet getOrLink (WebMercatorGridPointSet grid, StreetLayer streetLayer, StreetMode streetMode) {
+        String networkId = streetLayer.parentNetwork == null ? null : streetLayer.parentNetwork.scenarioId;
+        if (networkId == null || streetLayer.isScenarioCopy()) {
+            return new LinkedPointSet(grid, streetLayer, streetMode, null);
+        }
+
+        File file = new File(cacheDir, String.format("%s_%s_%d_%d_%d_%d_%d_%s.linkage", networkId, R5Version.version,
+                grid.zoom, grid.west, grid.north, grid.width, grid.height, streetMode));
+
+        if (file.exists()) {
+            try {
+                LinkedPointSet linkage = read(file, grid, streetLayer, streetMode);
+                if (linkage != null) return linkage;
+                LOG.warn("Linkage file {} does not match the network, relinking.", file);
+            } catch (Exception e) {
+                LOG.error("Could not read linkage file {}, relinking.", file, e);
+            }
+            file.delete();
+        }
+
+        LinkedPointSet linkage = new LinkedPointSet(grid, streetLayer, streetMode, null);
+
+        try {
+            cacheDir.mkdirs();
+            // Write to a temporary file and move it into place, so other workers never see a partially written file.
+            File tempFile = File.createTempFile("linkage", ".tmp", cacheDir);
+            write(linkage, tempFile);
+            if (!tempFile.renameTo(file)) tempFile.delete();
+        } catch (Exception e) {
+            // Don't fail here as we do have a linkage to return, we just couldn't cache it.
+            LOG.error("Error saving linkage file {}", file, e);
+        }
+
+        return linkage;
+    }
+
+    private static void write (LinkedPointSet linkage, File file) throws IOException {
+        LOG.info("Writing linkage to {}", file);
+        TransportNetwork network = linkage.streetLayer.parentNetwork;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(linkage.size());
+            out.writeInt(linkage.streetLayer.getVertexCount());
+            out.writeInt(linkage.streetLayer.edgeStore.nEdges());
+            out.writeInt(network.transitLayer.getStopCount());
+
+            writeInts(out, linkage.edges);
+            writeInts(out, linkage.distances0_mm);
+            writeInts(out, linkage.distances1_mm);
+
+            out.writeInt(linkage.stopToPointDistanceTables.size());
+            for (int[] table : linkage.stopToPointDistanceTables) {
+                if (table == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(table.length);
+                    writeInts(out, table);
+                }
+            }
+        }
+    }
+
+    private static void writeInts (DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) out.writeInt(value);
+    }
+
+    /**
+     * Memory map the given linkage file and copy its contents into a new LinkedPointSet.
+     * @return the linkage, or null if the file was made for a different network.
+     */
+    private static LinkedPointSet read (File file, WebMercatorGridPointSet grid, StreetLayer streetLayer,
+                                        StreetMode streetMode) throws IOException {
+        LOG.info("Reading linkage from {}", file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            // A single mapping is limited to 2GB, which is far more than the linkage of the largest grids needs.
+            IntBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asIntBuffer();
+
+            if (in.get() != MAGIC || in.get() != FORMAT_VERSION) return null;
+            int nPoints = in.get();
+            if (nPoints != grid.featureCount() ||
+                    in.get() != streetLayer.getVertexCount() ||
+                    in.get() != streetLayer.edgeStore.nEdges() ||
+                    in.get() != streetLayer.parentNetwork.transitLayer.getStopCount()) {
+                return null;
+            }
+
+            int[] edges = readInts(in, nPoints);
+            int[] distances0_mm = readInts(in, nPoints);
+            int[] distances1_mm = readInts(in, nPoints);
+
+            int nStops = in.get();
+            List<int[]> stopToPointDistanceTables = new ArrayList<>(nStops);
+            for (int stop = 0; stop < nStops; stop++) {
+                int length = in.get();
+                stopToPointDistanceTables.add(length == -1 ? null : readInts(in, length));
+            }
+
+            return new LinkedPointSet(grid, streetLayer, streetMode, edges, distances0_mm, distances1_mm,
+                    stopToPointDistanceTables);
+        }
+    }
+
+    private static int[] readInts (IntBuffer in, int length) {
+        int[] values = new int[length];
+        in.get(values);
+        return values;
+    }
+}
@@ -23,6 +23,13 @@ public abstract class PointSet implements Serializable {
     /** Maximum number of street network linkages to cache per PointSet. Affects memory consumption. */
     public static int LINKAGE_CACHE_SIZE = 5;
 
+    /**
+     * If set, linkages of gridded PointSets to base street networks are persisted to and reloaded from disk, so they
+     * survive this in-memory cache and restarts of the worker. Linkages to scenario street layers are still built in
+     * memory from the (possibly persisted) base linkage.
+     */
+    public static LinkageFileCache linkageFileCache = null;
+
     /**
      * When this PointSet is connected to the street network, the resulting data are cached in this Map to speed up
      * later reuse. Different linkages are produced for different street networks and for different on-street modes
@@ -47,6 +54,9 @@ public abstract class PointSet implements Serializable {
             if (key.a.isScenarioCopy()) {
                 baseLinkage = PointSet.this.linkageCache.get(new Tuple2<>(key.a.baseStreetLayer, key.b));
             }
+            if (baseLinkage == null && linkageFileCache != null && PointSet.this instanceof WebMercatorGridPointSet) {
+                return linkageFileCache.getOrLink((WebMercatorGridPointSet) PointSet.this, key.a, key.b);
+            }
             // Build a new linkage from this PointSet to the supplied StreetNetwork,
             // initialized with the existing linkage to the base StreetNetwork when relevant.
             return new LinkedPointSet(PointSet.this, key.a, key.b, baseLinkage);
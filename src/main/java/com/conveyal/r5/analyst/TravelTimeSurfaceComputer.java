@@ -59,7 +59,7 @@ public class TravelTimeSurfaceComputer {
 
         if (request.request.transitModes.isEmpty()) {
             // non transit search
-            StreetRouter sr = new StreetRouter(network.streetLayer);
+            StreetRouter sr = network.streetLayer.getRouter();
             sr.timeLimitSeconds = request.request.maxTripDurationMinutes * 60;
             sr.streetMode = directMode;
             sr.dominanceVariable = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
@@ -72,6 +72,7 @@ public class TravelTimeSurfaceComputer {
             LinkedPointSet linkedDestinations = destinations.link(network.streetLayer, directMode);
 
             int[] travelTimesToTargets = linkedDestinations.eval(sr::getTravelTimeToVertex, offstreetTravelSpeedMillimetersPerSecond).travelTimes;
+            network.streetLayer.returnRouter(sr);
             for (int target = 0; target < travelTimesToTargets.length; target++) {
                 int x = target % request.width;
                 int y = target / request.width;
@@ -103,7 +104,9 @@ public class TravelTimeSurfaceComputer {
             }
 
             // Perform street search to find transit stops and non-transit times.
-            StreetRouter sr = new StreetRouter(network.streetLayer);
+            // Park and ride searches replace sr with another router, so keep the pooled one to give it back.
+            StreetRouter accessRouter = network.streetLayer.getRouter();
+            StreetRouter sr = accessRouter;
             sr.profileRequest = request.request;
 
             TIntIntMap accessTimes;
@@ -170,14 +173,20 @@ public class TravelTimeSurfaceComputer {
                         linkedDestinationsAccess.eval(sr::getTravelTimeToVertex, offstreetTravelSpeedMillimetersPerSecond)
                                 .travelTimes;
             }
+            network.streetLayer.returnRouter(accessRouter);
 
             // Create a new Raptor Worker.
             FastRaptorWorker worker = new FastRaptorWorker(network.transitLayer, request.request, accessTimes);
+            // This is a single point request, so use all available processors for the Monte Carlo draws.
+            worker.parallelFrequencySearch = true;
 
             // Run the main RAPTOR algorithm to find paths and travel times to all stops in the network.
-            int[][] transitTravelTimesToStops = worker.route();
+            int[] transitTravelTimesToStops = worker.routeStopMajor(null);
 
-            PerTargetPropagater perTargetPropagater = new PerTargetPropagater(transitTravelTimesToStops, nonTransitTravelTimesToDestinations, linkedDestinationsEgress, request.request, 120 * 60);
+            PerTargetPropagater perTargetPropagater = new PerTargetPropagater(transitTravelTimesToStops, worker.nIterations, nonTransitTravelTimesToDestinations, linkedDestinationsEgress, request.request, 120 * 60);
+            // Also propagate on all processors. The reducer below only writes the pixel for its own target, and pixels
+            // occupy disjoint parts of the in-memory output buffer, so it is safe to call it from several threads.
+            perTargetPropagater.parallel = true;
             perTargetPropagater.propagateTimes((target, times) -> {
                 // sort the times at each target and read off percentiles
                 Arrays.sort(times);
@@ -6,6 +6,7 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.conveyal.r5.analyst.GridCache;
 import com.conveyal.r5.analyst.GridComputer;
+import com.conveyal.r5.analyst.LinkageFileCache;
 import com.conveyal.r5.analyst.TravelTimeSurfaceComputer;
 import com.conveyal.r5.analyst.error.ScenarioApplicationException;
 import com.conveyal.r5.analyst.error.TaskError;
@@ -13,6 +14,7 @@ import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.common.R5Version;
 import com.conveyal.r5.profile.McRaptorSuboptimalPathProfileRouter;
+import com.conveyal.r5.profile.MultiOriginRaptorWorker;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.publish.StaticComputer;
 import com.conveyal.r5.publish.StaticDataStore;
@@ -48,9 +50,12 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -141,6 +146,9 @@ public class AnalystWorker implements Runnable {
     /** The transport network this worker already has loaded, and therefore prefers to work on. */
     String networkId = null;
 
+    /** The network named by initial-graph-id in the configuration, which is loaded in the background on startup. */
+    private CompletableFuture<TransportNetwork> initialNetwork;
+
     long startupTime, nextShutdownCheckTime;
 
     /** Information about the EC2 instance (if any) this worker is running on. */
@@ -164,6 +172,25 @@ public class AnalystWorker implements Runnable {
     /** Thread pool executor for delivering priority tasks. */
     private ThreadPoolExecutor taskDeliveryExecutor;
 
+    /**
+     * Thread pool executor for deleting regional tasks from the broker once their results have been sent. Deleting a
+     * task is a blocking HTTP request, so it is kept off the common fork-join pool used by parallel computations.
+     */
+    private ThreadPoolExecutor taskDeletionExecutor;
+
+    /** Limits the regional tasks running at once, to leave processors free for interactive tasks. */
+    private RegionalTaskThrottle regionalTaskThrottle;
+
+    /**
+     * Regional tasks that have been taken from the broker and not yet finished, whether queued or running, each hold one
+     * of these permits, so a batch of several origins computed together holds one permit per origin. Work is only taken
+     * from the broker when there are enough permits free for a full batch.
+     */
+    private Semaphore regionalTaskSlots;
+
+    /** How many regional tasks may run at once while interactive tasks are running, see RegionalTaskThrottle. */
+    private final int regionalThreadsWhileInteractive;
+
     public AnalystWorker(Properties config) {
         // grr this() must be first call in constructor, even if previous statements do not have side effects.
         // Thanks, Java.
@@ -214,6 +241,21 @@ public class AnalystWorker implements Runnable {
         this.gridCache = new GridCache(config.getProperty("pointsets-bucket"));
         this.pointSetDatastore = new PointSetDatastore(10, null, false, config.getProperty("pointsets-bucket"));
         this.transportNetworkCache = cache;
+        String scenarioCacheMegabytes = config.getProperty("scenario-cache-megabytes");
+        if (scenarioCacheMegabytes != null) {
+            cache.scenarioCacheMegabytes = Long.parseLong(scenarioCacheMegabytes);
+        }
+        // Persist grid linkages alongside the cached networks so they are not rebuilt every time a worker starts.
+        PointSet.linkageFileCache =
+                new LinkageFileCache(new File(config.getProperty("cache-dir", "cache/graphs"), "linkages"));
+        if (networkId != null) {
+            // Start loading the initial network now, while the rest of the worker is set up. run() waits for it.
+            LOG.info("Pre-loading or building network with ID {}", networkId);
+            initialNetwork = transportNetworkCache.prefetchNetwork(networkId);
+        }
+        String regionalThreads = config.getProperty("regional-threads-while-interactive");
+        regionalThreadsWhileInteractive = regionalThreads != null ? Integer.parseInt(regionalThreads) :
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
         Boolean autoShutdown = Boolean.parseBoolean(config.getProperty("auto-shutdown"));
         this.autoShutdown = autoShutdown == null ? false : autoShutdown;
 
@@ -254,22 +296,31 @@ public class AnalystWorker implements Runnable {
         int nP = Runtime.getRuntime().availableProcessors();
         highPriorityExecutor = new ThreadPoolExecutor(nP, nP, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(255));
         highPriorityExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
-        batchExecutor = new ThreadPoolExecutor(1, nP, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(nP * 2));
-        batchExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        // Regional tasks have one thread per processor, but fewer of them run at once while interactive tasks are running,
+        // so that the two executors together do not oversubscribe the processors. The queue is not bounded, as the
+        // number of regional tasks taken from the broker is already limited by regionalTaskSlots.
+        batchExecutor = new ThreadPoolExecutor(nP, nP, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        regionalTaskThrottle = new RegionalTaskThrottle(nP, regionalThreadsWhileInteractive);
+        // Enough tasks for every processor to compute a full batch of origins with another batch waiting
+        regionalTaskSlots = new Semaphore(nP * 2 * MultiOriginRaptorWorker.MAX_ORIGINS);
 
         taskDeliveryExecutor = new ThreadPoolExecutor(1, nP, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(255));
         // can't use CallerRunsPolicy as that would cause deadlocks, calling thread is writing to inputstream
         taskDeliveryExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
 
-        // If an initial graph ID was provided in the config file, build or load that TransportNetwork on startup.
+        // The queue is not bounded: a rejected deletion would leave its task on the broker to be computed again.
+        taskDeletionExecutor = new ThreadPoolExecutor(nP, nP, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        taskDeletionExecutor.allowCoreThreadTimeOut(true);
+
+        // If an initial graph ID was provided in the config file, wait for that TransportNetwork, which the constructor
+        // started loading or building in the background.
         // Pre-loading the graph is necessary because if the graph is not cached it can take several
         // minutes to build it. Even if the graph is cached, reconstructing the indices and stop trees
         // can take a while. The UI times out after 30 seconds, so the broker needs to return a response to tell it
         // to try again later within that timespan. The broker can't do that after it's sent a request to a worker,
         // so the worker needs to not come online until it's ready to process requests.
-        if (networkId != null) {
-            LOG.info("Pre-loading or building network with ID {}", networkId);
-            if (transportNetworkCache.getNetwork(networkId) == null) {
+        if (initialNetwork != null) {
+            if (initialNetwork.join() == null) {
                 LOG.error("Failed to pre-load transport network {}", networkId);
             } else {
                 LOG.info("Done pre-loading network {}", networkId);
@@ -295,6 +346,9 @@ public class AnalystWorker implements Runnable {
                 }
                 nextShutdownCheckTime += 60 * 60 * 1000;
             }
+            // Only ask the broker for regional work when there is room for at least a full batch of it.
+            regionalTaskSlots.acquireUninterruptibly(MultiOriginRaptorWorker.MAX_ORIGINS);
+            regionalTaskSlots.release(MultiOriginRaptorWorker.MAX_ORIGINS);
             LOG.debug("Long-polling for work ({} second timeout).", POLL_TIMEOUT / 1000.0);
             // Long-poll (wait a few seconds for messages to become available)
             List<GenericClusterRequest> tasks = getSomeWork(WorkType.REGIONAL);
@@ -309,25 +363,19 @@ public class AnalystWorker implements Runnable {
             tasks.stream().filter(GenericClusterRequest::isHighPriority)
                     .forEach(t -> highPriorityExecutor.execute(() -> {
                         LOG.warn("Handling single point request via normal channel, side channel should open shortly.");
-                        this.handleOneRequest(t);
+                        this.handleInteractiveRequest(t);
                     }));
 
-            // Enqueue low-priority (batch) tasks; note that this may block anywhere in the process
+            // Enqueue low-priority (batch) tasks, waiting for room for each one rather than taking more work
             logQueueStatus();
-            tasks.stream().filter(t -> !t.isHighPriority())
-                .forEach(t -> {
-                    // attempt to enqueue, waiting if the queue is full
-                    while (true) {
-                        try {
-                            batchExecutor.execute(() -> this.handleOneRequest(t));
-                            break;
-                        } catch (RejectedExecutionException e) {
-                            // queue is full, wait 200ms and try again
-                            try {
-                                Thread.sleep(200);
-                            } catch (InterruptedException e1) { /* nothing */}
-                        }
-                    }
+            groupGridRequests(tasks.stream().filter(t -> !t.isHighPriority()).collect(Collectors.toList()))
+                .forEach(group -> {
+                    Runnable handler = group.size() == 1 ?
+                            () -> this.handleOneRequest(group.get(0)) :
+                            () -> this.handleGridRequestBatch(group.stream().map(t -> (GridRequest) t)
+                                    .collect(Collectors.toList()));
+                    regionalTaskSlots.acquireUninterruptibly(group.size());
+                    batchExecutor.execute(() -> this.handleRegionalTask(handler, group.size()));
                 });
 
             // TODO log info about the high-priority queue as well.
@@ -336,6 +384,59 @@ public class AnalystWorker implements Runnable {
         }
     }
 
+    /**
+     * Run a regional task (one request or a batch of them) once the throttle allows it, releasing the slots of its nTasks
+     * requests when done. If interrupted while waiting, the task is dropped without being deleted from the broker, which
+     * will hand it out again.
+     */
+    private void handleRegionalTask (Runnable handler, int nTasks) {
+        try {
+            regionalTaskThrottle.beginRegionalTask();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting to start a regional task.");
+            regionalTaskSlots.release(nTasks);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            handler.run();
+        } finally {
+            regionalTaskThrottle.endRegionalTask();
+            regionalTaskSlots.release(nTasks);
+        }
+    }
+
+    /** Handle a high-priority request, holding back regional tasks while it runs. */
+    private void handleInteractiveRequest (GenericClusterRequest clusterRequest) {
+        regionalTaskThrottle.beginInteractiveTask();
+        try {
+            handleOneRequest(clusterRequest);
+        } finally {
+            regionalTaskThrottle.endInteractiveTask();
+        }
+    }
+
+    /**
+     * Group consecutive grid requests for the same regional analysis, so that they can be computed together. The broker
+     * hands out the origins of a regional analysis in order, so consecutive origins are usually neighbors. All other
+     * tasks are left in groups of their own, as are all tasks when testing with simulated failures.
+     */
+    private List<List<GenericClusterRequest>> groupGridRequests (List<GenericClusterRequest> tasks) {
+        List<List<GenericClusterRequest>> groups = new ArrayList<>();
+        List<GenericClusterRequest> group = null;
+        for (GenericClusterRequest task : tasks) {
+            boolean canJoinGroup = group != null && dryRunFailureRate < 0 && task instanceof GridRequest &&
+                    group.get(0) instanceof GridRequest && task.jobId.equals(group.get(0).jobId) &&
+                    group.size() < MultiOriginRaptorWorker.MAX_ORIGINS;
+            if (!canJoinGroup) {
+                group = new ArrayList<>();
+                groups.add(group);
+            }
+            group.add(task);
+        }
+        return groups;
+    }
+
     /**
      * This is the callback that processes a single task and returns the results upon completion.
      * It may be called several times simultaneously on different executor threads.
@@ -541,13 +642,51 @@ public class AnalystWorker implements Runnable {
     /** Handle a request for access from a Web Mercator grid to a web mercator opportunity density grid (used for regional analysis) */
     private void handleGridRequest (GridRequest request, TransportNetwork network, TaskStatistics ts) {
         try {
-            new GridComputer(request, gridCache, network).run();
+            deleteWhenSent(request, new GridComputer(request, gridCache, network).run());
         } catch (IOException e) {
             LOG.error("Error in grid computer", e);
             return; // this causes the request to be retried, I think that's what we want
         }
+    }
 
-        deleteRequest(request);
+    /**
+     * Handle several grid requests for the same regional analysis (and thus the same network and scenario) together,
+     * so that their transit searches can be performed at once.
+     */
+    private void handleGridRequestBatch (List<GridRequest> requests) {
+        GridRequest firstRequest = requests.get(0);
+        try {
+            LOG.info("Handling {} grid requests for job {} together", requests.size(), firstRequest.jobId);
+            networkId = firstRequest.graphId;
+            TransportNetwork network =
+                    transportNetworkCache.getNetworkForScenario(networkId, firstRequest.extractProfileRequest());
+            List<CompletableFuture<Void>> results = GridComputer.runBatch(requests, gridCache, network);
+            for (int i = 0; i < requests.size(); i++) deleteWhenSent(requests.get(i), results.get(i));
+        } catch (ScenarioApplicationException scenarioException) {
+            for (GridRequest request : requests) {
+                reportTaskErrors(request.taskId, HttpStatus.BAD_REQUEST_400, scenarioException.taskErrors);
+            }
+        } catch (IOException e) {
+            LOG.error("Error in grid computer", e);
+            // this causes the requests to be retried, as in handleGridRequest
+        } catch (Exception ex) {
+            TaskError taskError = new TaskError(ex);
+            LOG.error("An error occurred while routing: {}", ExceptionUtils.asString(ex));
+            for (GridRequest request : requests) {
+                reportTaskErrors(request.taskId, HttpStatus.INTERNAL_SERVER_ERROR_500, Arrays.asList(taskError));
+            }
+        }
+    }
+
+    /**
+     * Results of grid requests are sent to the output queue in the background. Only delete the task once its result is
+     * on the queue, so that results that could not be sent are retried.
+     */
+    private void deleteWhenSent (GridRequest request, CompletableFuture<Void> result) {
+        result.whenCompleteAsync((r, e) -> {
+            if (e == null) deleteRequest(request);
+            else LOG.error("Error sending result of grid computer", e);
+        }, taskDeletionExecutor);
     }
 
     /** Handle a stock Analyst request */
@@ -668,7 +807,7 @@ public class AnalystWorker implements Runnable {
 
                     if (tasks != null)
                         tasks.stream().forEach(t -> highPriorityExecutor.execute(
-                                () -> this.handleOneRequest(t)));
+                                () -> this.handleInteractiveRequest(t)));
 
                     logQueueStatus();
                 } catch (Exception e) {
@@ -867,6 +1006,7 @@ public class AnalystWorker implements Runnable {
      * auto-shutdown                Should this worker shut down its machine if it is idle (e.g. on throwaway cloud instances)
      * statistics-queue             SQS queue to which to send statistics (optional)
      * initial-graph-id             The graph ID for this worker to start on
+     * regional-threads-while-interactive  How many regional tasks may run while single point requests are being handled
      */
     public static void main(String[] args) {
         LOG.info("Starting R5 Analyst Worker version {}", R5Version.version);
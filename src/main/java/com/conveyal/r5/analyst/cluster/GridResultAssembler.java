@@ -5,14 +5,12 @@ import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.sqs.model.Message;
 import com.conveyal.r5.analyst.LittleEndianIntOutputStream;
 import com.google.common.io.ByteStreams;
-import com.google.common.io.LittleEndianDataOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -20,8 +18,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Base64;
 import java.util.BitSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -43,6 +47,11 @@ import java.util.zip.GZIPOutputStream;
  * (4 byte int) height of the grid in pixels
  * (4 byte int) number of values per pixel
  * (repeated 4-byte int) values of each pixel in row major order. Values within a given pixel are delta coded.
+ *
+ * Each origin is written to its own region of the file with a positional write on a FileChannel. Positional writes do
+ * not share a file pointer, so origins can be written by several threads at once; they share the read side of a
+ * read/write lock, and the file is only closed while holding the write side, once no writes are in progress. Apart from
+ * that only the bookkeeping of which origins have been received is synchronized.
  */
 public class GridResultAssembler {
     public static final Logger LOG = LoggerFactory.getLogger(GridResultAssembler.class);
@@ -58,12 +67,22 @@ public class GridResultAssembler {
 
     private static final AmazonS3 s3 = new AmazonS3Client();
 
-    private Base64.Decoder base64 = Base64.getDecoder();
+    private static final Base64.Decoder base64 = Base64.getDecoder();
 
     private final GridRequest request;
 
     private File temporaryFile;
     private RandomAccessFile buffer;
+    private FileChannel channel;
+
+    /**
+     * Held for reading while writing an origin to the channel, and for writing while closing it. A duplicate of an
+     * origin that was already received may still be being written when the last origin arrives.
+     */
+    private final ReadWriteLock channelLock = new ReentrantReadWriteLock();
+
+    /** Whether the channel has been closed, only read or written while holding channelLock */
+    private boolean closed = false;
 
     private boolean error = false;
 
@@ -98,7 +117,7 @@ public class GridResultAssembler {
         try {
             File gzipFile = File.createTempFile(request.jobId, ".access_grid.gz");
 
-            buffer.close();
+            closeChannel();
 
             // There's probably a more elegant way to do this with NIO and without closing the buffer
             InputStream is = new BufferedInputStream(new FileInputStream(temporaryFile));
@@ -127,39 +146,52 @@ public class GridResultAssembler {
     /** Process an SQS message */
     public void handleMessage (Message message) {
         try {
-            byte[] body = base64.decode(message.getBody());
-            ByteArrayInputStream bais = new ByteArrayInputStream(body);
-            Origin origin = Origin.read(bais);
-
-            // if this is not the first request, make sure that we have the correct number of accessibility
-            // samples (either instantaneous accessibility values or bootstrap replications of accessibility given median
-            // travel time, depending on worker version)
-            if (buffer != null && origin.samples.length != this.nIterations) {
+            Origin origin = decodeOrigin(message.getBody());
+
+            // The first origin received determines the number of iterations. For subsequent origins, make sure that
+            // we have the correct number of accessibility samples (either instantaneous accessibility values or
+            // bootstrap replications of accessibility given median travel time, depending on worker version)
+            FileChannel channel = getChannel(origin.samples.length);
+            if (origin.samples.length != this.nIterations) {
                 LOG.error("Origin {}, {} has {} samples, expected {}",
                         origin.x, origin.y, origin.samples.length, this.nIterations);
                 error = true;
+                return;
             }
 
-            // convert to a delta coded byte array
-            ByteArrayOutputStream pixelByteOutputStream = new ByteArrayOutputStream(origin.samples.length * 4);
-            LittleEndianDataOutputStream pixelDataOutputStream = new LittleEndianDataOutputStream(pixelByteOutputStream);
+            // convert to a delta coded little-endian byte buffer
+            ByteBuffer pixel = ByteBuffer.allocate(origin.samples.length * 4).order(ByteOrder.LITTLE_ENDIAN);
             for (int i = 0, prev = 0; i < origin.samples.length; i++) {
                 int current = origin.samples[i];
-                pixelDataOutputStream.writeInt(current - prev);
+                pixel.putInt(current - prev);
                 prev = current;
             }
-            pixelDataOutputStream.close();
+            pixel.flip();
+
+            // The origins we receive have 2d coordinates.
+            // Flatten them to compute file offsets and for the origin checklist.
+            int index1d = origin.y * request.width + origin.x;
+            // cast to long, file might be bigger than 2GB
+            long offset = DATA_OFFSET + (long) index1d * 4 * nIterations;
+            // Write to the proper subregion of the file for this origin. No other thread writes to this region (except
+            // one handling a duplicate of this origin, which contains the same values), so the write only needs to
+            // keep the channel from being closed. The lock must not be held when entering the synchronized block
+            // below, as finish is called there and waits for all writes to complete.
+            channelLock.readLock().lock();
+            try {
+                if (closed) {
+                    LOG.info("Ignoring origin {}, {} received after the results were assembled", origin.x, origin.y);
+                    return;
+                }
+                while (pixel.hasRemaining()) {
+                    offset += channel.write(pixel, offset);
+                }
+            } finally {
+                channelLock.readLock().unlock();
+            }
 
-            // write to the proper subregion of the buffer for this origin
-            // use a synchronized block to ensure no threading issues
+            // Only mark the origin as received once it has been written, so the file is complete when we finish.
             synchronized (this) {
-                if (buffer == null) this.initialize(origin.samples.length);
-                // The origins we receive have 2d coordinates.
-                // Flatten them to compute file offsets and for the origin checklist.
-                int index1d = origin.y * request.width + origin.x;
-                long offset = DATA_OFFSET + index1d * 4 * nIterations;
-                buffer.seek(offset);
-                buffer.write(pixelByteOutputStream.toByteArray());
                 // Don't double-count origins if we receive them more than once.
                 if (!originsReceived.get(index1d)) {
                     originsReceived.set(index1d);
@@ -174,6 +206,25 @@ public class GridResultAssembler {
         }
     }
 
+    /**
+     * Decode the body of an SQS message into an Origin. GridResultPublisher gzips origins before base64 encoding them;
+     * uncompressed origins (from workers predating it) start with the ASCII text ORIGIN rather than the gzip header.
+     */
+    static Origin decodeOrigin (String messageBody) throws IOException {
+        byte[] body = base64.decode(messageBody);
+        InputStream is = new ByteArrayInputStream(body);
+        if (body.length >= 2 && (body[0] & 0xff) == 0x1f && (body[1] & 0xff) == 0x8b) {
+            is = new GZIPInputStream(is);
+        }
+        return Origin.read(is);
+    }
+
+    /** Get the channel to write results to, creating the file when the first result is received. */
+    private synchronized FileChannel getChannel (int nIterations) throws IOException {
+        if (channel == null) initialize(nIterations);
+        return channel;
+    }
+
     public synchronized void initialize (int nIterations) throws IOException {
         this.nIterations = nIterations;
 
@@ -196,22 +247,35 @@ public class GridResultAssembler {
         data.writeInt(request.height);
         data.writeInt(nIterations);
 
-        // cast to long, file might be bigger than 2GB
-        // overwrite anything that might be in the file already
-        for (long i = 0; i < (long) nIterations * (long) request.width * (long) request.height; i++) {
-            data.writeInt(0);
-        }
-
         data.close();
 
-        LOG.info("Allocated temporary file of {}mb to store query results", temporaryFile.length() / 1024 / 1024);
-
+        // Extend the file to its full size rather than writing zeros for every value. The file was just created, and
+        // on the filesystems we use the extended region reads as zeros without being written (a sparse file).
+        // cast to long, file might be bigger than 2GB
         this.buffer = new RandomAccessFile(temporaryFile, "rw");
+        buffer.setLength(DATA_OFFSET + (long) nIterations * request.width * request.height * 4);
+        this.channel = buffer.getChannel();
+
+        LOG.info("Allocated temporary file of {}mb to store query results", temporaryFile.length() / 1024 / 1024);
     }
 
     /** Clean up and cancel a consumer */
     public synchronized void terminate () throws IOException {
-        this.buffer.close();
+        if (buffer == null) return;
+        closeChannel();
         temporaryFile.delete();
     }
+
+    /** Close the file once any writes in progress on other threads have completed. */
+    private void closeChannel () throws IOException {
+        channelLock.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+            channel.close();
+            buffer.close();
+        } finally {
+            channelLock.writeLock().unlock();
+        }
+    }
 }
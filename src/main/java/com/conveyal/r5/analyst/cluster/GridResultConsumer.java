@@ -11,10 +11,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -31,7 +31,7 @@ public class GridResultConsumer implements Runnable {
     public final String sqsUrl;
     public final String outputBucket;
 
-    public Map<String, GridResultAssembler> assemblers = new HashMap<>();
+    public Map<String, GridResultAssembler> assemblers = new ConcurrentHashMap<>();
 
     public GridResultConsumer (String sqsUrl, String outputBucket) {
         this.sqsUrl = sqsUrl;
@@ -49,8 +49,8 @@ public class GridResultConsumer implements Runnable {
                 req.setMessageAttributeNames(Collections.singleton("jobId"));
                 ReceiveMessageResult res = sqs.receiveMessage(req);
 
-                // parallelStream? ExecutorService?
-                List<DeleteMessageBatchRequestEntry> deleteRequests = res.getMessages().stream()
+                // GridResultAssemblers can write several origins at once, so handle the messages in parallel.
+                List<DeleteMessageBatchRequestEntry> deleteRequests = res.getMessages().parallelStream()
                         .map(m -> {
                             MessageAttributeValue jobIdAttr = m.getMessageAttributes().get("jobId");
                             String jobId = jobIdAttr != null ? jobIdAttr.getStringValue() : null;
@@ -60,13 +60,14 @@ public class GridResultConsumer implements Runnable {
                                 return new DeleteMessageBatchRequestEntry(m.getMessageId(), m.getReceiptHandle());
                             }
 
-                            if (!assemblers.containsKey(jobId)) {
+                            GridResultAssembler assembler = assemblers.get(jobId);
+                            if (assembler == null) {
                                 // TODO is this the right thing to do?
                                 LOG.warn("Received message for invalid job ID {}, silently discarding", jobId);
                                 return new DeleteMessageBatchRequestEntry(m.getMessageId(), m.getReceiptHandle());
                             }
 
-                            assemblers.get(jobId).handleMessage(m);
+                            assembler.handleMessage(m);
 
                             return new DeleteMessageBatchRequestEntry(m.getMessageId(), m.getReceiptHandle());
                         })
@@ -0,0 +1,259 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends the results of GridComputer to the SQS queues from which GridResultConsumers assemble them, in batches.
+ *
+ * A single background thread sends the results, grouping up to ten results bound for the same queue into one
+ * SendMessageBatch request (the most SQS allows) rather than making a request per origin. Each origin is gzipped
+ * before being base64 encoded; GridResultAssembler recognizes the gzip header and decompresses it. Results waiting to
+ * be sent are held in a bounded queue, and publish blocks when that queue is full, so that workers that produce results
+ * faster than they can be sent are slowed down rather than running out of memory. Messages that fail to send are retried
+ * a few times, after a delay that doubles with each attempt.
+ */
+public class GridResultPublisher implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(GridResultPublisher.class);
+
+    /** The maximum number of messages in an SQS batch */
+    public static final int MAX_BATCH_SIZE = 10;
+
+    /** The maximum total size of the messages in an SQS batch */
+    public static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    /** How long to wait for more results to fill a batch before sending a partial one */
+    private static final long MAX_BATCH_DELAY_MILLIS = 100;
+
+    /** How many times to try sending a message before giving up on it */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /** How long to wait before retrying messages that failed to send, doubled for each further attempt */
+    private static final long RETRY_DELAY_MILLIS = 500;
+
+    /** How many results can wait to be sent before publish blocks */
+    private static final int DEFAULT_CAPACITY = 1000;
+
+    private static final Base64.Encoder base64 = Base64.getEncoder();
+
+    /** Sends batches of messages to a queue. Implemented with SQS in production, and with an in-memory list in tests. */
+    public interface BatchSender {
+        /** @return the IDs of the entries that could not be sent */
+        List<String> send (String queueUrl, List<SendMessageBatchRequestEntry> entries) throws Exception;
+    }
+
+    private final BatchSender sender;
+
+    private final BlockingQueue<PendingMessage> pending;
+
+    private final Thread thread;
+
+    private volatile boolean closed = false;
+
+    /** Create a publisher that sends results to SQS */
+    public GridResultPublisher () {
+        this(new SQSBatchSender(), DEFAULT_CAPACITY);
+    }
+
+    public GridResultPublisher (BatchSender sender, int capacity) {
+        this.sender = sender;
+        this.pending = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::run, "grid-result-publisher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue the given samples for the origin of the given request to be sent to the request's output queue. Blocks
+     * if too many results are already waiting to be sent.
+     * @return a future that is completed when the result has been sent, or completed exceptionally if it could not be.
+     */
+    public CompletableFuture<Void> publish (GridRequest request, int[] samples) throws IOException {
+        if (closed) throw new IllegalStateException("Grid result publisher is closed.");
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        // Origin.write closes the stream it is given, which finishes the gzip stream
+        new Origin(request, samples).write(new GZIPOutputStream(baos));
+        String body = base64.encodeToString(baos.toByteArray());
+
+        PendingMessage message = new PendingMessage(request.outputQueue, request.jobId, body);
+        try {
+            pending.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to publish grid result", e);
+        }
+        return message.future;
+    }
+
+    /** Send all the results that have already been published, then stop the background thread. */
+    @Override
+    public void close () {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run () {
+        // Messages that failed to send, which are sent again before any new messages. These are kept on this thread
+        // rather than put back on the pending queue, which could be full.
+        List<PendingMessage> retries = new ArrayList<>();
+
+        while (!closed || !pending.isEmpty() || !retries.isEmpty()) {
+            List<PendingMessage> batch = new ArrayList<>(retries);
+            retries.clear();
+
+            try {
+                if (batch.isEmpty()) {
+                    PendingMessage first = pending.poll(MAX_BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                }
+
+                // wait a little while for more results to fill the batch
+                long deadline = System.currentTimeMillis() + MAX_BATCH_DELAY_MILLIS;
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    long wait = deadline - System.currentTimeMillis();
+                    PendingMessage next = wait > 0 ? pending.poll(wait, TimeUnit.MILLISECONDS) : pending.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Only close should stop this thread, so keep going and send what we have.
+            }
+
+            try {
+                // usually all results go to the same queue, but they don't have to
+                Map<String, List<PendingMessage>> messagesForQueue = batch.stream()
+                        .collect(Collectors.groupingBy(m -> m.queueUrl, LinkedHashMap::new, Collectors.toList()));
+
+                for (Map.Entry<String, List<PendingMessage>> e : messagesForQueue.entrySet()) {
+                    List<PendingMessage> messages = e.getValue();
+                    // split up the messages for a queue if they are too large for a single batch
+                    for (int start = 0; start < messages.size(); ) {
+                        int end = start + 1;
+                        int bytes = messages.get(start).body.length();
+                        while (end < messages.size() && bytes + messages.get(end).body.length() <= MAX_BATCH_BYTES) {
+                            bytes += messages.get(end++).body.length();
+                        }
+                        send(e.getKey(), messages.subList(start, end), retries);
+                        start = end;
+                    }
+                }
+            } catch (Throwable t) {
+                // Don't let anything stop this thread, or no result would ever be sent again and publish would block
+                // forever once the queue filled up. Report the messages in this batch that were not sent as failed.
+                LOG.error("Unexpected error sending grid results", t);
+                for (PendingMessage message : batch) {
+                    if (!message.future.isDone()) message.future.completeExceptionally(t);
+                }
+                retries.removeIf(message -> message.future.isDone());
+            }
+
+            if (!retries.isEmpty()) backOff(retries);
+        }
+    }
+
+    /**
+     * Wait before retrying messages that failed to send, longer for messages that have failed more often. Sends
+     * usually fail because SQS is throttling requests, so retrying immediately would likely fail again.
+     */
+    private static void backOff (List<PendingMessage> retries) {
+        int attempts = retries.stream().mapToInt(m -> m.attempts).max().orElse(1);
+        long delay = RETRY_DELAY_MILLIS << (attempts - 1);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            // Only close should stop this thread, so keep going and retry.
+        }
+    }
+
+    /** Send a single batch to a single queue, adding any messages that failed and may be retried to retries. */
+    private void send (String queueUrl, List<PendingMessage> messages, List<PendingMessage> retries) {
+        Map<String, PendingMessage> messagesForId = new HashMap<>();
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>();
+        for (PendingMessage message : messages) {
+            // IDs only need to be unique within a batch
+            String id = Integer.toString(entries.size());
+            messagesForId.put(id, message);
+            entries.add(new SendMessageBatchRequestEntry(id, message.body).addMessageAttributesEntry("jobId",
+                    new MessageAttributeValue().withDataType("String").withStringValue(message.jobId)));
+        }
+
+        List<String> failedIds;
+        Exception exception = null;
+        try {
+            failedIds = sender.send(queueUrl, entries);
+        } catch (Exception e) {
+            failedIds = new ArrayList<>(messagesForId.keySet());
+            exception = e;
+        }
+
+        for (String id : failedIds) {
+            PendingMessage message = messagesForId.remove(id);
+            if (message == null) {
+                LOG.warn("Queue {} reported a failure for unknown or duplicate message ID {}", queueUrl, id);
+                continue;
+            }
+            if (++message.attempts < MAX_ATTEMPTS) {
+                retries.add(message);
+            } else {
+                LOG.error("Could not send grid result for job {} to queue {}", message.jobId, queueUrl, exception);
+                message.future.completeExceptionally(exception != null ? exception :
+                        new IOException("Could not send grid result for job " + message.jobId));
+            }
+        }
+
+        // everything that did not fail was sent
+        for (PendingMessage message : messagesForId.values()) message.future.complete(null);
+    }
+
+    private static class PendingMessage {
+        final String queueUrl;
+        final String jobId;
+        final String body;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        int attempts = 0;
+
+        PendingMessage (String queueUrl, String jobId, String body) {
+            this.queueUrl = queueUrl;
+            this.jobId = jobId;
+            this.body = body;
+        }
+    }
+
+    private static class SQSBatchSender implements BatchSender {
+        private final AmazonSQS sqs = new AmazonSQSClient();
+
+        @Override
+        public List<String> send (String queueUrl, List<SendMessageBatchRequestEntry> entries) {
+            SendMessageBatchResult result = sqs.sendMessageBatch(queueUrl, entries);
+            return result.getFailed().stream().map(BatchResultErrorEntry::getId).collect(Collectors.toList());
+        }
+    }
+}
@@ -61,7 +61,7 @@ public class Origin {
         data.writeInt(samples.length);
 
         for (int i : samples) {
-            // don't bother to delta code, these are small and we're not gzipping
+            // don't bother to delta code, these are small and GridResultPublisher gzips them anyway
             data.writeInt(i);
         }
 
@@ -0,0 +1,48 @@
+package com.conveyal.r5.analyst.cluster;
+
+/**
+ * Limits how many regional (batch) tasks a worker runs at once, so that interactive single point requests get most of
+ * the processors as soon as they arrive. Regional tasks may use every processor while no interactive task is running,
+ * but while there is one, no new regional tasks start until fewer than maxRegionalTasksWhileInteractive are running.
+ * Regional tasks that are already running are not interrupted; they are short enough (one or a few origins each) that
+ * the interactive task soon has the processors to itself.
+ */
+class RegionalTaskThrottle {
+
+    /** How many regional tasks may run at once when there are no interactive tasks */
+    private final int maxRegionalTasks;
+
+    /** How many regional tasks may run at once while an interactive task is running */
+    private final int maxRegionalTasksWhileInteractive;
+
+    private int interactiveTasksRunning = 0;
+
+    private int regionalTasksRunning = 0;
+
+    RegionalTaskThrottle (int maxRegionalTasks, int maxRegionalTasksWhileInteractive) {
+        this.maxRegionalTasks = maxRegionalTasks;
+        this.maxRegionalTasksWhileInteractive = Math.min(maxRegionalTasksWhileInteractive, maxRegionalTasks);
+    }
+
+    synchronized void beginInteractiveTask () {
+        interactiveTasksRunning++;
+    }
+
+    synchronized void endInteractiveTask () {
+        interactiveTasksRunning--;
+        notifyAll();
+    }
+
+    /** Wait until the current limit on regional tasks allows another to start, then count it as running. */
+    synchronized void beginRegionalTask () throws InterruptedException {
+        while (regionalTasksRunning >= (interactiveTasksRunning > 0 ? maxRegionalTasksWhileInteractive : maxRegionalTasks)) {
+            wait();
+        }
+        regionalTasksRunning++;
+    }
+
+    synchronized void endRegionalTask () {
+        regionalTasksRunning--;
+        notifyAll();
+    }
+}
@@ -4,6 +4,7 @@ import com.conveyal.r5.analyst.broker.WorkerCategory;
 import com.conveyal.r5.common.R5Version;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import com.google.common.cache.CacheStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +34,9 @@ public class WorkerStatus {
     public String workerId;
     public Set<String> networks = new HashSet<>();
     public Set<String> scenarios = new HashSet<>();
+    public long scenarioCacheHits;
+    public long scenarioCacheMisses;
+    public long scenarioCacheEvictions;
     public double tasksPerMinute;
     @JsonUnwrapped(prefix = "ec2")
     public EC2Info ec2;
@@ -57,6 +61,10 @@ public class WorkerStatus {
         workerId = worker.machineId;
         networks = worker.transportNetworkCache.getLoadedNetworkIds();
         scenarios = worker.transportNetworkCache.getAppliedScenarios();
+        CacheStats scenarioCacheStats = worker.transportNetworkCache.getScenarioCacheStats();
+        scenarioCacheHits = scenarioCacheStats.hitCount();
+        scenarioCacheMisses = scenarioCacheStats.missCount();
+        scenarioCacheEvictions = scenarioCacheStats.evictionCount();
         ec2 = worker.ec2info;
 
         OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
@@ -127,22 +127,36 @@ public class Scenario implements Serializable {
                 .map(m -> new TaskError(m, m.warnings))
                 .collect(Collectors.toList());
 
-        // Is it OK that we do this once after all modifications are applied, or do we need to do it after every mod?
-        copiedNetwork.transitLayer.rebuildTransientIndexes();
-
-        // Rebuild edge lists to account for changes from scenario application
-        copiedNetwork.streetLayer.buildEdgeLists();
-        // Rebuild distance tables affected by street network changes
-        Geometry treeRebuildZone =
-                copiedNetwork.streetLayer.scenarioEdgesBoundingGeometry(TransitLayer.DISTANCE_TABLE_SIZE_METERS);
-        copiedNetwork.transitLayer.buildDistanceTables(treeRebuildZone);
-        
-        // Find the transfers originating at or terminating at new stops.
-        // TODO also rebuild transfers which are near street network changes but which do not connect to new stops.
-        new TransferFinder(copiedNetwork).findTransfers();
-
-        // Update the linkage between the grid and the streets, considering whether the scenario changed any streets.
-        copiedNetwork.rebuildLinkedGridPointSet();
+        // Rebuild only the derived structures that the modifications could have invalidated. Each modification declares
+        // which layers it changes, and that determines what must be rebuilt: changes to patterns, trips or frequencies
+        // only invalidate the transit layer's transient indexes. The stop-to-vertex distance tables, the transfers and
+        // the grid linkage depend only on the streets and the stops, and stops are only ever created by a scenario by
+        // splitting streets to link them. So when the streets are unchanged, the copied network can keep using the
+        // tables, transfers and linkage of the base network, which it already references.
+        if (affectsTransitLayer()) {
+            // Is it OK that we do this once after all modifications are applied, or do we need to do it after every mod?
+            copiedNetwork.transitLayer.rebuildTransientIndexes();
+        }
+
+        if (affectsStreetLayer()) {
+            // Rebuild edge lists to account for changes from scenario application
+            copiedNetwork.streetLayer.buildEdgeLists();
+            // Rebuild distance tables affected by street network changes
+            Geometry treeRebuildZone =
+                    copiedNetwork.streetLayer.scenarioEdgesBoundingGeometry(TransitLayer.DISTANCE_TABLE_SIZE_METERS);
+            copiedNetwork.transitLayer.buildDistanceTables(treeRebuildZone);
+
+            // Find the transfers originating at or terminating at new stops.
+            // TODO also rebuild transfers which are near street network changes but which do not connect to new stops.
+            new TransferFinder(copiedNetwork).findTransfers();
+
+            // Update the linkage between the grid and the streets, considering whether the scenario changed any streets.
+            copiedNetwork.rebuildLinkedGridPointSet();
+        } else {
+            LOG.info("Scenario does not change the street network, reusing distance tables, transfers and grid " +
+                    "linkage from the base network.");
+        }
+
         if (VERIFY_BASE_NETWORK_UNCHANGED) {
             if (originalNetwork.checksum() != baseNetworkChecksum) {
                 LOG.error("Applying a scenario mutated the base transportation network. THIS IS A BUG.");
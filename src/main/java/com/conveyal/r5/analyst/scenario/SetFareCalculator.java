@@ -22,6 +22,12 @@ public class SetFareCalculator extends Modification {
         return false;
     }
 
+    /** The fare calculator is held by the TransportNetwork, so setting it leaves the TransitLayer unchanged. */
+    @Override
+    public boolean affectsTransitLayer() {
+        return false;
+    }
+
     @Override
     public int getSortOrder() {
         return 100;
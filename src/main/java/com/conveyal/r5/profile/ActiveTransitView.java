@@ -0,0 +1,201 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.IntStream;
+
+/**
+ * The patterns and trips of a TransitLayer that can be used by searches on a given date and departure time window,
+ * with the indexes the RAPTOR workers need to explore only those. Patterns with no trips running on the date and during
+ * the window are left out, as are the scheduled trips that are not running.
+ *
+ * Scenario networks are cached and shared between requests, so trips that are not running cannot be removed from the
+ * network itself (as an InactiveTripsFilter modification would). Instead this view is built once for each transit layer
+ * and window, in a few milliseconds, and shared by all the searches with that window, e.g. all the origins of a
+ * regional analysis. It is read-only once built, and does not refer to the transit layer so the layer can be garbage
+ * collected when it is no longer used.
+ *
+ * A trip can only be useful to a search if it runs between the earliest departure time and the latest time at which
+ * the search still records arrivals, which is the end of the departure window plus the maximum trip duration. Trips
+ * entirely outside that range are left out without changing the results.
+ */
+public class ActiveTransitView {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ActiveTransitView.class);
+
+    /** How many different windows to keep views for, for each transit layer */
+    private static final int MAX_WINDOWS_PER_LAYER = 8;
+
+    /** The views for each transit layer, keyed on the layer's identity and dropped when it is garbage collected. */
+    private static final LoadingCache<TransitLayer, Cache<Window, ActiveTransitView>> viewsForLayer =
+            CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<TransitLayer, Cache<Window, ActiveTransitView>>() {
+                @Override
+                public Cache<Window, ActiveTransitView> load (TransitLayer transit) {
+                    return CacheBuilder.newBuilder().maximumSize(MAX_WINDOWS_PER_LAYER).build();
+                }
+            });
+
+    /** Services active on the date of the search */
+    final BitSet servicesActive;
+
+    /** Frequency-based trip patterns running on the date and during the window */
+    final TripPattern[] runningFrequencyPatterns;
+
+    /** Schedule-based trip patterns running on the date and during the window */
+    final TripPattern[] runningScheduledPatterns;
+
+    /** Map from internal, filtered frequency pattern indices back to original pattern indices for frequency patterns */
+    final int[] originalPatternIndexForFrequencyIndex;
+
+    /** Map from internal, filtered pattern indices back to original pattern indices for scheduled patterns */
+    final int[] originalPatternIndexForScheduledIndex;
+
+    /** Array mapping from original pattern indices to the filtered frequency indices, or -1 if not running */
+    final int[] frequencyIndexForOriginalPatternIndex;
+
+    /** Array mapping from original pattern indices to the filtered scheduled indices, or -1 if not running */
+    final int[] scheduledIndexForOriginalPatternIndex;
+
+    /** The running frequency and scheduled patterns at each stop */
+    final PatternsForStopIndex frequencyPatternsForStop;
+    final PatternsForStopIndex scheduledPatternsForStop;
+
+    /** For each filtered scheduled pattern, the scheduled trips that are running, in the order they appear in the pattern */
+    final TripSchedule[][] activeTripsForScheduledIndex;
+
+    /** For each filtered scheduled pattern, whether its active trips depart in order at every stop */
+    final boolean[] tripsDepartInOrderForScheduledIndex;
+
+    /** Get the view of the given transit layer for the date and time window of the given request, building it if needed. */
+    public static ActiveTransitView forRequest (TransitLayer transit, ProfileRequest request) {
+        Window window = new Window(request);
+        try {
+            return viewsForLayer.get(transit).get(window, () -> new ActiveTransitView(transit, window));
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to filter the active patterns of the transit layer.", e);
+        }
+    }
+
+    private ActiveTransitView (TransitLayer transit, Window window) {
+        long startTime = System.currentTimeMillis();
+        servicesActive = transit.getActiveServicesForDate(window.date);
+        int fromTime = window.fromTime;
+        int toTime = window.toTime + window.maxTripDurationMinutes * 60;
+
+        TIntList frequencyPatterns = new TIntArrayList();
+        TIntList scheduledPatterns = new TIntArrayList();
+        frequencyIndexForOriginalPatternIndex = new int[transit.tripPatterns.size()];
+        Arrays.fill(frequencyIndexForOriginalPatternIndex, -1);
+        scheduledIndexForOriginalPatternIndex = new int[transit.tripPatterns.size()];
+        Arrays.fill(scheduledIndexForOriginalPatternIndex, -1);
+
+        int patternIndex = -1; // first increment lands at 0
+        int frequencyIndex = 0;
+        int scheduledIndex = 0;
+        for (TripPattern pattern : transit.tripPatterns) {
+            patternIndex++;
+            if (!pattern.servicesActive.intersects(servicesActive)) continue;
+            boolean frequencyTripsRunning = false;
+            boolean scheduledTripsRunning = false;
+            for (TripSchedule schedule : pattern.tripSchedules) {
+                if (servicesActive.get(schedule.serviceCode) && schedule.overlapsTimeRange(fromTime, toTime)) {
+                    // NB not exclusive b/c we still support combined frequency and schedule patterns.
+                    if (schedule.headwaySeconds != null) frequencyTripsRunning = true;
+                    else scheduledTripsRunning = true;
+                }
+            }
+            if (frequencyTripsRunning) {
+                frequencyPatterns.add(patternIndex);
+                frequencyIndexForOriginalPatternIndex[patternIndex] = frequencyIndex++;
+            }
+            if (scheduledTripsRunning) {
+                scheduledPatterns.add(patternIndex);
+                scheduledIndexForOriginalPatternIndex[patternIndex] = scheduledIndex++;
+            }
+        }
+
+        originalPatternIndexForFrequencyIndex = frequencyPatterns.toArray();
+        originalPatternIndexForScheduledIndex = scheduledPatterns.toArray();
+
+        runningFrequencyPatterns = IntStream.of(originalPatternIndexForFrequencyIndex)
+                .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
+        runningScheduledPatterns = IntStream.of(originalPatternIndexForScheduledIndex)
+                .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
+
+        frequencyPatternsForStop = new PatternsForStopIndex(transit, frequencyIndexForOriginalPatternIndex);
+        scheduledPatternsForStop = new PatternsForStopIndex(transit, scheduledIndexForOriginalPatternIndex);
+
+        activeTripsForScheduledIndex = new TripSchedule[runningScheduledPatterns.length][];
+        tripsDepartInOrderForScheduledIndex = new boolean[runningScheduledPatterns.length];
+        int nActiveTrips = 0;
+        for (int i = 0; i < runningScheduledPatterns.length; i++) {
+            TripPattern pattern = runningScheduledPatterns[i];
+            TripSchedule[] activeTrips = pattern.tripSchedules.stream()
+                    .filter(t -> t.headwaySeconds == null && servicesActive.get(t.serviceCode) &&
+                            t.overlapsTimeRange(fromTime, toTime))
+                    .toArray(TripSchedule[]::new);
+            activeTripsForScheduledIndex[i] = activeTrips;
+            tripsDepartInOrderForScheduledIndex[i] = tripsDepartInOrder(activeTrips, pattern.stops.length);
+            nActiveTrips += activeTrips.length;
+        }
+
+        LOG.info("Filtering on date and time window reduced {} patterns to {} frequency and {} scheduled patterns " +
+                "with {} scheduled trips in {} ms", transit.tripPatterns.size(), frequencyPatterns.size(),
+                scheduledPatterns.size(), nActiveTrips, System.currentTimeMillis() - startTime);
+    }
+
+    /** @return true if the trips, which are sorted on their first departure, are also sorted at every other stop. */
+    static boolean tripsDepartInOrder (TripSchedule[] trips, int nStops) {
+        for (int trip = 1; trip < trips.length; trip++) {
+            for (int stopPositionInPattern = 0; stopPositionInPattern < nStops; stopPositionInPattern++) {
+                if (trips[trip].departures[stopPositionInPattern] < trips[trip - 1].departures[stopPositionInPattern]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** The parameters of a request that determine which patterns and trips are active */
+    private static class Window {
+        final LocalDate date;
+        final int fromTime;
+        final int toTime;
+        final int maxTripDurationMinutes;
+
+        Window (ProfileRequest request) {
+            date = request.date;
+            fromTime = request.fromTime;
+            toTime = request.toTime;
+            maxTripDurationMinutes = request.maxTripDurationMinutes;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (!(o instanceof Window)) return false;
+            Window other = (Window) o;
+            return date.equals(other.date) && fromTime == other.fromTime && toTime == other.toTime &&
+                    maxTripDurationMinutes == other.maxTripDurationMinutes;
+        }
+
+        @Override
+        public int hashCode () {
+            return Objects.hash(date, fromTime, toTime, maxTripDurationMinutes);
+        }
+    }
+}
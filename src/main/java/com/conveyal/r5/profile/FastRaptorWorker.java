@@ -4,7 +4,6 @@ import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TripPattern;
 import com.conveyal.r5.transit.TripSchedule;
 import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,8 +12,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 /**
  * RaptorWorker is fast, but FastRaptorWorker is knock-your-socks-off fast, and also more maintainable.
@@ -36,13 +37,23 @@ public class FastRaptorWorker {
     private static final Logger LOG = LoggerFactory.getLogger(FastRaptorWorker.class);
 
     /** Step for departure times */
-    private static final int DEPARTURE_STEP_SEC = 60;
+    static final int DEPARTURE_STEP_SEC = 60;
 
     /** Minimum wait for boarding to account for schedule variation */
-    private static final int MINIMUM_BOARD_WAIT_SEC = 60;
+    static final int MINIMUM_BOARD_WAIT_SEC = 60;
+
+    /**
+     * Pool used to run Monte Carlo draws in parallel when parallelFrequencySearch is set. It is shared by all workers so
+     * that several concurrent searches cannot use more threads than there are processors.
+     */
+    private static final ForkJoinPool frequencySearchPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
     public final int nMinutes;
     public final int monteCarloDrawsPerMinute;
 
+    /** The total number of iterations (departure minutes times Monte Carlo draws) this search will produce */
+    public final int nIterations;
+
     // Variables to track time spent, all in nanoseconds (some of the operations we're timing are significantly submillisecond)
     // (although I suppose using ms would be fine because the number of times we cross a millisecond boundary would be proportional
     //  to the portion of a millisecond that operation took).
@@ -84,51 +95,144 @@ public class FastRaptorWorker {
     /** Array mapping from original pattern indices to the filtered scheduled indices */
     private int[] scheduledIndexForOriginalPatternIndex;
 
-    private FrequencyRandomOffsets offsets;
+    /** The running frequency and scheduled patterns at each stop, built when patterns are prefiltered */
+    private PatternsForStopIndex frequencyPatternsForStop;
+    private PatternsForStopIndex scheduledPatternsForStop;
+
+    /**
+     * The patterns to explore in the current round of the scheduled search, reused every round. Each Monte Carlo draw
+     * has its own in its FrequencySearchBuffers, as draws may run in parallel.
+     */
+    private BitSet patternsTouched;
+
+    /**
+     * For each filtered scheduled pattern, the scheduled (non-frequency) trips that are running on the date of the search,
+     * in the order they appear in the pattern. Filtering these once per search keeps the service and frequency checks
+     * out of the boarding search.
+     */
+    private TripSchedule[][] activeTripsForScheduledIndex;
+
+    /**
+     * For each filtered scheduled pattern, whether the active trips depart in order at every stop (i.e. no trip
+     * overtakes another). Trips are sorted on their first departure, so this is usually true, and allows finding the
+     * earliest boardable trip with a binary search. Otherwise we fall back to scanning the active trips.
+     */
+    private boolean[] tripsDepartInOrderForScheduledIndex;
+
+    /**
+     * Buffers that are not currently in use by a Monte Carlo draw. Each draw takes a set of buffers from this pool and
+     * returns it when finished, so the frequency search reuses the same state arrays rather than allocating new ones for
+     * every draw. There are never more buffers than there are threads performing draws at once.
+     */
+    private final Queue<FrequencySearchBuffers> frequencySearchBufferPool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * When request.frequencyDrawWindowMinutes is greater than one, the buffers belonging to each Monte Carlo draw of the
+     * current window of departure minutes. These keep their random offsets and states from one minute to the next, so
+     * that each draw can be continued as a range-RAPTOR search rather than started over; they are not returned to the
+     * pool.
+     */
+    private FrequencySearchBuffers[] buffersForDraw;
 
     /** Services active on the date of the search */
     private final BitSet servicesActive;
 
-    private final RaptorState[] scheduleState;
+    /**
+     * Where the search stores its results: travel times to each stop, either one array per iteration or a single
+     * stop-major array (see routeStopMajor). Exactly one of these is set while a search is running.
+     */
+    private int[][] iterationMajorTravelTimes;
+    private int[] stopMajorTravelTimes;
+
+    /** One state for each round of the scheduled search, created when the search is run. */
+    private RaptorState[] scheduleState;
 
-    /** set to true to save all states for path reconstruction */
+    /**
+     * set to true to save all states for path reconstruction. When this is false, RaptorStates are created without the
+     * arrays that are only used for path reconstruction.
+     */
     public boolean saveAllStates = false;
 
     public List<RaptorState> statesEachIteration;
 
+    /**
+     * Set to true to spread the Monte Carlo draws for each departure minute across multiple threads. This is useful for
+     * single point requests; regional analyses already keep all processors busy by computing many origins at once.
+     * When this is set, the time spent in the components of the frequency search is not recorded.
+     */
+    public boolean parallelFrequencySearch = false;
+
     public FastRaptorWorker (TransitLayer transitLayer, ProfileRequest request, TIntIntMap accessStops) {
         this.transit = transitLayer;
         this.request = request;
         this.accessStops = accessStops;
-        this.servicesActive  = transit.getActiveServicesForDate(request.date);
-        // we add one to request.maxRides, first state is result of initial walk
-        this.scheduleState = IntStream.range(0, request.maxRides + 1)
-                .mapToObj((i) -> new RaptorState(transit.getStopCount(), request.maxTripDurationMinutes * 60))
-                .toArray(RaptorState[]::new);
-
-        for (int i = 1; i < this.scheduleState.length; i++) this.scheduleState[i].previous = this.scheduleState[i - 1];
-
-        offsets = new FrequencyRandomOffsets(transitLayer);
+        this.servicesActive = ActiveTransitView.forRequest(transit, request).servicesActive;
 
         // compute number of minutes for scheduled search
         nMinutes = (request.toTime - request.fromTime) / DEPARTURE_STEP_SEC;
 
         // how many monte carlo draws per minute of scheduled search to get desired total iterations?
         monteCarloDrawsPerMinute = (int) Math.ceil((double) request.monteCarloDraws / nMinutes);
+
+        nIterations = nMinutes * monteCarloDrawsPerMinute;
+    }
+
+    /**
+     * Create one RaptorState for each round of the search, each linked to the state from the previous round. The states
+     * only track paths if all states are being saved.
+     */
+    private RaptorState[] createStates () {
+        // we add one to request.maxRides, first state is result of initial walk
+        RaptorState[] states = IntStream.range(0, request.maxRides + 1)
+                .mapToObj((i) -> new RaptorState(transit.getStopCount(), request.maxTripDurationMinutes * 60, saveAllStates))
+                .toArray(RaptorState[]::new);
+
+        for (int i = 1; i < states.length; i++) states[i].previous = states[i - 1];
+
+        return states;
     }
 
     /** For each iteration, return the travel time to each transit stop */
     public int[][] route () {
+        iterationMajorTravelTimes = new int[nIterations][];
+        stopMajorTravelTimes = null;
+        search();
+        return iterationMajorTravelTimes;
+    }
+
+    /**
+     * Run the search, returning the travel time to each transit stop for each iteration in a single stop-major array:
+     * the travel time to stop s in iteration i is at index s * nIterations + i. This is the layout PerTargetPropagater
+     * reads from, as it considers all iterations at a few nearby stops at once, so the search results do not need to be
+     * copied or inverted before propagation.
+     *
+     * @param buffer an array to store the results in, e.g. one returned by a previous search for another origin. It is
+     *               reused if it has the right size, otherwise (or if it is null) a new array is allocated.
+     */
+    public int[] routeStopMajor (int[] buffer) {
+        int size = transit.getStopCount() * nIterations;
+        stopMajorTravelTimes = buffer != null && buffer.length == size ? buffer : new int[size];
+        iterationMajorTravelTimes = null;
+        search();
+        return stopMajorTravelTimes;
+    }
+
+    /** Run the search, storing travel times in whichever result array is set. */
+    private void search () {
         startClockTime = System.nanoTime();
 
         if (saveAllStates) statesEachIteration = new ArrayList<>();
 
+        scheduleState = createStates();
+
         prefilterPatterns();
 
         LOG.info("Performing {} scheduled iterations each with {} Monte Carlo draws for a total of {} iterations",
-                nMinutes, monteCarloDrawsPerMinute, nMinutes * monteCarloDrawsPerMinute);
+                nMinutes, monteCarloDrawsPerMinute, nIterations);
+
+        int frequencyDrawWindowMinutes = Math.max(request.frequencyDrawWindowMinutes, 1);
+        buffersForDraw = frequencyDrawWindowMinutes > 1 ? new FrequencySearchBuffers[monteCarloDrawsPerMinute] : null;
 
-        int[][] results = new int[nMinutes * monteCarloDrawsPerMinute][];
         int currentIteration = 0;
 
         // main loop over departure times
@@ -136,17 +240,12 @@ public class FastRaptorWorker {
              departureTime >= request.fromTime; departureTime -= DEPARTURE_STEP_SEC, minute--) {
             if (minute % 15 == 0) LOG.info("  minute {}", minute);
 
+            // Take new Monte Carlo draws at the start of every window (always, when the window is a single minute)
+            boolean newFrequencyDraws = (nMinutes - minute) % frequencyDrawWindowMinutes == 0;
+
             // run the search
-            int[][] resultsForMinute = runRaptorForMinute(departureTime, monteCarloDrawsPerMinute);
-
-            // effectively final nonsense
-            final int finalDepartureTime = departureTime;
-            for (int[] resultsForIteration : resultsForMinute) {
-                // NB this copies the array, so we don't have issues with it being updated later
-                results[currentIteration++] = IntStream.of(resultsForIteration)
-                        .map(r -> r != RaptorWorker.UNREACHED ? r - finalDepartureTime : r)
-                        .toArray();
-            }
+            runRaptorForMinute(departureTime, monteCarloDrawsPerMinute, currentIteration, newFrequencyDraws);
+            currentIteration += monteCarloDrawsPerMinute;
         }
 
         LOG.info("Search completed in {}s", (System.nanoTime() - startClockTime) / 1e9d);
@@ -158,47 +257,25 @@ public class FastRaptorWorker {
         LOG.info("  - Frequency component: {}s", timeInFrequencySearchFrequency / 1e9d);
         LOG.info("  - Resulting updates to scheduled component: {}s", timeInFrequencySearchScheduled / 1e9d);
         LOG.info("  - Transfers: {}s", timeInFrequencySearchTransfers / 1e9d);
-
-        return results;
     }
 
-    /** Prefilter the patterns to only ones that are running */
+    /**
+     * Get the patterns and trips that are running on the date and during the time window of the search. These are
+     * filtered once for each window and shared by all searches with that window, see ActiveTransitView.
+     */
     private void prefilterPatterns () {
-        TIntList frequencyPatterns = new TIntArrayList();
-        TIntList scheduledPatterns = new TIntArrayList();
-        frequencyIndexForOriginalPatternIndex = new int[transit.tripPatterns.size()];
-        Arrays.fill(frequencyIndexForOriginalPatternIndex, -1);
-        scheduledIndexForOriginalPatternIndex = new int[transit.tripPatterns.size()];
-        Arrays.fill(scheduledIndexForOriginalPatternIndex, -1);
-
-        int patternIndex = -1; // first increment lands at 0
-        int frequencyIndex = 0;
-        int scheduledIndex = 0;
-        for (TripPattern pattern : transit.tripPatterns) {
-            patternIndex++;
-            if (pattern.servicesActive.intersects(servicesActive)) {
-                // at least one trip on this pattern is relevant
-                if (pattern.hasFrequencies) {
-                    frequencyPatterns.add(patternIndex);
-                    frequencyIndexForOriginalPatternIndex[patternIndex] = frequencyIndex++;
-                }
-                if (pattern.hasSchedules) { // NB not else b/c we still support combined frequency and schedule patterns.
-                    scheduledPatterns.add(patternIndex);
-                    scheduledIndexForOriginalPatternIndex[patternIndex] = scheduledIndex++;
-                }
-            }
-        }
-
-        originalPatternIndexForFrequencyIndex = frequencyPatterns.toArray();
-        originalPatternIndexForScheduledIndex = scheduledPatterns.toArray();
-
-        runningFrequencyPatterns = IntStream.of(originalPatternIndexForFrequencyIndex)
-                .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
-        runningScheduledPatterns = IntStream.of(originalPatternIndexForScheduledIndex)
-                .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
-
-        LOG.info("Prefiltering patterns based on date active reduced {} patterns to {} frequency and {} scheduled patterns",
-                transit.tripPatterns.size(), frequencyPatterns.size(), scheduledPatterns.size());
+        ActiveTransitView view = ActiveTransitView.forRequest(transit, request);
+        runningFrequencyPatterns = view.runningFrequencyPatterns;
+        runningScheduledPatterns = view.runningScheduledPatterns;
+        originalPatternIndexForFrequencyIndex = view.originalPatternIndexForFrequencyIndex;
+        originalPatternIndexForScheduledIndex = view.originalPatternIndexForScheduledIndex;
+        frequencyIndexForOriginalPatternIndex = view.frequencyIndexForOriginalPatternIndex;
+        scheduledIndexForOriginalPatternIndex = view.scheduledIndexForOriginalPatternIndex;
+        frequencyPatternsForStop = view.frequencyPatternsForStop;
+        scheduledPatternsForStop = view.scheduledPatternsForStop;
+        activeTripsForScheduledIndex = view.activeTripsForScheduledIndex;
+        tripsDepartInOrderForScheduledIndex = view.tripsDepartInOrderForScheduledIndex;
+        patternsTouched = new BitSet(transit.tripPatterns.size());
     }
 
     /**
@@ -231,9 +308,13 @@ public class FastRaptorWorker {
      * @param iterationsPerMinute When frequencies are present, we perform multiple searches per departure minute using
      *                            different randomly-generated schedules (Monte Carlo search); this parameter controls
      *                            how many.
-     * @return an array of length iterationsPerMinute, containing the arrival (clock) times at each stop for each iteration.
+     * @param firstIteration the travel times to each stop from these iterations are recorded as iterations firstIteration
+     *                       through firstIteration + iterationsPerMinute - 1 of the results.
+     * @param newFrequencyDraws if false, continue the Monte Carlo draws of the previous (later) minute with the same
+     *                          random schedules, rather than taking new ones. Only allowed when buffersForDraw is set.
      */
-    private int[][] runRaptorForMinute (int departureTime, int iterationsPerMinute) {
+    private void runRaptorForMinute (int departureTime, int iterationsPerMinute, int firstIteration,
+                                     boolean newFrequencyDraws) {
         advanceScheduledSearchToPreviousMinute(departureTime);
 
         // Run the scheduled search
@@ -253,12 +334,12 @@ public class FastRaptorWorker {
                 scheduleState[round].min(scheduleState[round - 1]);
 
                 long scheduledStartTime = System.nanoTime();
-                doScheduledSearchForRound(scheduleState[round - 1], scheduleState[round]);
+                doScheduledSearchForRound(scheduleState[round - 1], scheduleState[round], patternsTouched);
                 timeInScheduledSearchTransit += System.nanoTime() - scheduledStartTime;
 
                 // perform a frequency search using worst-case boarding time to provide a tighter upper bound
                 long frequencyStartTime = System.nanoTime();
-                doFrequencySearchForRound(scheduleState[round - 1], scheduleState[round], true);
+                doFrequencySearchForRound(scheduleState[round - 1], scheduleState[round], null, true, patternsTouched);
                 timeInScheduledSearchFrequencyBounds += System.nanoTime() - frequencyStartTime;
 
                 long transferStartTime = System.nanoTime();
@@ -274,68 +355,149 @@ public class FastRaptorWorker {
         // Conway, Byrd and van der Linden 2017.
         if (transit.hasFrequencies) {
             long startTime = System.nanoTime();
-            int[][] result = new int[iterationsPerMinute][];
-            for (int iteration = 0; iteration < iterationsPerMinute; iteration++) {
-                // copy the state, with advancingRound = false
-                RaptorState[] frequencyState = Stream.of(scheduleState).map((s) -> s.copy()).toArray(RaptorState[]::new);
-                for (int i = 1; i < frequencyState.length; i++) frequencyState[i].previous = frequencyState[i - 1];
-
-                // take a new Monte Carlo draw
-                // Einstein was probably wrong; God does in fact play dice with the universe, and so do we
-                offsets.randomize();
-
-                for (int round = 1; round <= request.maxRides; round++) {
-                    frequencyState[round].min(frequencyState[round - 1]);
-
-                    // scheduled search: use only stops touched within this loop
-                    // we need to repeat the scheduled search when we do frequency searches to handle combinations of schedules
-                    // and frequencies
-                    long scheduledStart = System.nanoTime();
-                    doScheduledSearchForRound(frequencyState[round - 1], frequencyState[round]);
-                    timeInFrequencySearchScheduled += System.nanoTime() - scheduledStart;
-
-                    // frequency search: additionally use stops touched by scheduled search
-                    // okay to destructively modify last round frequency state, it will not be used after this
-                    long frequencyStart = System.nanoTime();
-                    frequencyState[round - 1].bestStopsTouched.or(scheduleState[round - 1].bestStopsTouched);
-                    frequencyState[round - 1].nonTransferStopsTouched.or(scheduleState[round - 1].nonTransferStopsTouched);
-                    doFrequencySearchForRound(frequencyState[round - 1], frequencyState[round], false);
-                    timeInFrequencySearchFrequency += System.nanoTime() - frequencyStart;
-
-                    long transferStart = System.nanoTime();
-                    doTransfers(frequencyState[round]);
-                    timeInFrequencySearchTransfers += System.nanoTime() - transferStart;
+            RaptorState[] savedStates = saveAllStates ? new RaptorState[iterationsPerMinute] : null;
+
+            if (parallelFrequencySearch) {
+                // Each draw works on its own buffers and random offsets, so draws can be computed on any thread.
+                // Results are stored by iteration so that they are in the same order as in the sequential search.
+                frequencySearchPool.submit(() -> IntStream.range(0, iterationsPerMinute).parallel().forEach(draw ->
+                        runFrequencyDraw(departureTime, firstIteration, draw, newFrequencyDraws, savedStates, false)
+                )).join();
+            } else {
+                for (int draw = 0; draw < iterationsPerMinute; draw++) {
+                    runFrequencyDraw(departureTime, firstIteration, draw, newFrequencyDraws, savedStates, true);
                 }
-
-                // we are doing frequencies, this is already copy, no need for a protective copy
-                if (saveAllStates) statesEachIteration.add(frequencyState[request.maxRides]);
-                result[iteration] = frequencyState[request.maxRides].bestNonTransferTimes;
             }
 
-            timeInFrequencySearch += System.nanoTime() - startTime;
+            if (saveAllStates) statesEachIteration.addAll(Arrays.asList(savedStates));
 
-            return result;
+            timeInFrequencySearch += System.nanoTime() - startTime;
         } else {
             // No frequencies, return result of scheduled search, but multiplied by the number of
             // MC draws so that the scheduled search accessibility avoids potential bugs where assumptions
             // are made about how many results will be returned from a search, e.g., in
             // https://github.com/conveyal/r5/issues/306
-            int[][] result = new int[iterationsPerMinute][];
-            for (int i = 0; i < monteCarloDrawsPerMinute; i++) {
+            for (int i = 0; i < iterationsPerMinute; i++) {
                 if (saveAllStates) statesEachIteration.add(scheduleState[request.maxRides].deepCopy());
-                result[i] = scheduleState[request.maxRides].bestNonTransferTimes;
+                recordTravelTimes(scheduleState[request.maxRides].bestNonTransferTimes, departureTime, firstIteration + i);
             }
-            return result;
         }
     }
 
-    /** Perform a scheduled search */
-    private void doScheduledSearchForRound(RaptorState inputState, RaptorState outputState) {
-        BitSet patternsTouched = getPatternsTouchedForStops(inputState, scheduledIndexForOriginalPatternIndex);
+    /**
+     * Perform a single Monte Carlo draw of the frequency search, starting from the results of the scheduled search for
+     * the current minute. This does not modify the scheduled state, so it may be called from several threads at once.
+     *
+     * @param firstIteration the first iteration of the current minute; the travel times to each stop found by this draw
+     *                       are recorded as iteration firstIteration + draw.
+     * @param draw the index of this draw within the current minute.
+     * @param newFrequencyDraw if true, take a new random schedule and start from the scheduled search. Otherwise continue
+     *                         this draw from the previous minute: its schedule is unchanged, so the arrival times it found
+     *                         are still valid upper bounds (range-RAPTOR), and only stops improved by the scheduled search
+     *                         for this minute need to be explored again.
+     * @param savedStates if not null, a copy of the final state of this draw will be stored in this array at position
+     *                    draw, for path reconstruction.
+     * @param recordTimes whether to record the time spent in each component of the search. This should be false when
+     *                    draws are performed in parallel, as the timing fields are not thread safe.
+     */
+    private void runFrequencyDraw (int departureTime, int firstIteration, int draw, boolean newFrequencyDraw,
+                                   RaptorState[] savedStates, boolean recordTimes) {
+        FrequencySearchBuffers buffers;
+        if (buffersForDraw != null) {
+            // each draw keeps its own buffers for the whole window
+            if (buffersForDraw[draw] == null) buffersForDraw[draw] = new FrequencySearchBuffers();
+            buffers = buffersForDraw[draw];
+        } else {
+            buffers = frequencySearchBufferPool.poll();
+            if (buffers == null) buffers = new FrequencySearchBuffers();
+        }
+
+        RaptorState[] frequencyState = buffers.states;
+        if (newFrequencyDraw) {
+            // copy the state into our reusable buffers, with advancingRound = false
+            for (int i = 0; i < frequencyState.length; i++) frequencyState[i].copyFrom(scheduleState[i]);
+
+            // take a new Monte Carlo draw
+            // Einstein was probably wrong; God does in fact play dice with the universe, and so do we
+            buffers.offsets.randomize();
+        } else {
+            // Carry this draw forward to the earlier departure time, and improve it with the scheduled search for this
+            // minute, which is an upper bound under any random schedule. Stops touched by the scheduled search are
+            // added to the stops to explore in each round below, exactly as when starting from the scheduled search.
+            for (int i = 0; i < frequencyState.length; i++) {
+                RaptorState state = frequencyState[i];
+                state.setDepartureTime(departureTime);
+                state.bestStopsTouched.clear();
+                state.nonTransferStopsTouched.clear();
+                state.min(scheduleState[i]);
+            }
+        }
+
+        for (int round = 1; round <= request.maxRides; round++) {
+            frequencyState[round].min(frequencyState[round - 1]);
+
+            // scheduled search: use only stops touched within this loop
+            // we need to repeat the scheduled search when we do frequency searches to handle combinations of schedules
+            // and frequencies
+            long scheduledStart = System.nanoTime();
+            doScheduledSearchForRound(frequencyState[round - 1], frequencyState[round], buffers.patternsTouched);
+            if (recordTimes) timeInFrequencySearchScheduled += System.nanoTime() - scheduledStart;
+
+            // frequency search: additionally use stops touched by scheduled search
+            // okay to destructively modify last round frequency state, it will not be used after this
+            long frequencyStart = System.nanoTime();
+            frequencyState[round - 1].bestStopsTouched.or(scheduleState[round - 1].bestStopsTouched);
+            frequencyState[round - 1].nonTransferStopsTouched.or(scheduleState[round - 1].nonTransferStopsTouched);
+            doFrequencySearchForRound(frequencyState[round - 1], frequencyState[round], buffers.offsets, false,
+                    buffers.patternsTouched);
+            if (recordTimes) timeInFrequencySearchFrequency += System.nanoTime() - frequencyStart;
+
+            long transferStart = System.nanoTime();
+            doTransfers(frequencyState[round]);
+            if (recordTimes) timeInFrequencySearchTransfers += System.nanoTime() - transferStart;
+        }
+
+        // The buffers will be overwritten by the next draw or minute, so copy out anything we want to keep before returning them
+        RaptorState finalState = frequencyState[request.maxRides];
+        recordTravelTimes(finalState.bestNonTransferTimes, departureTime, firstIteration + draw);
+        if (savedStates != null) savedStates[draw] = finalState.deepCopy();
+
+        if (buffersForDraw == null) frequencySearchBufferPool.add(buffers);
+    }
+
+    /**
+     * Convert arrival clock times at each stop to travel times and store them in the results as the given iteration.
+     * Different iterations are stored in disjoint parts of the results, so this may be called from several threads at
+     * once for different iterations.
+     */
+    private void recordTravelTimes (int[] arrivalTimes, int departureTime, int iteration) {
+        if (stopMajorTravelTimes != null) {
+            for (int stop = 0, index = iteration; stop < arrivalTimes.length; stop++, index += nIterations) {
+                int arrivalTime = arrivalTimes[stop];
+                stopMajorTravelTimes[index] = arrivalTime != RaptorWorker.UNREACHED ? arrivalTime - departureTime : arrivalTime;
+            }
+        } else {
+            int[] travelTimes = new int[arrivalTimes.length];
+            for (int stop = 0; stop < arrivalTimes.length; stop++) {
+                int arrivalTime = arrivalTimes[stop];
+                travelTimes[stop] = arrivalTime != RaptorWorker.UNREACHED ? arrivalTime - departureTime : arrivalTime;
+            }
+            iterationMajorTravelTimes[iteration] = travelTimes;
+        }
+    }
+
+    /**
+     * Perform a scheduled search
+     * @param patternsTouched a bitset in which to mark the patterns to explore, which is cleared before use.
+     */
+    private void doScheduledSearchForRound(RaptorState inputState, RaptorState outputState, BitSet patternsTouched) {
+        getPatternsTouchedForStops(inputState, scheduledPatternsForStop, patternsTouched);
 
         for (int patternIndex = patternsTouched.nextSetBit(0); patternIndex >= 0; patternIndex = patternsTouched.nextSetBit(patternIndex + 1)) {
             int originalPatternIndex = originalPatternIndexForScheduledIndex[patternIndex];
             TripPattern pattern = runningScheduledPatterns[patternIndex];
+            TripSchedule[] activeTrips = activeTripsForScheduledIndex[patternIndex];
+            boolean tripsDepartInOrder = tripsDepartInOrderForScheduledIndex[patternIndex];
             int onTrip = -1;
             int waitTime = 0;
             int boardTime = 0;
@@ -367,39 +529,23 @@ public class FastRaptorWorker {
                 if (inputState.bestStopsTouched.get(stop) && sourcePatternIndex != originalPatternIndex) {
                     int earliestBoardTime = inputState.bestTimes[stop] + MINIMUM_BOARD_WAIT_SEC;
 
-                    // only attempt to board if the stop was touched
-                    if (onTrip == -1) {
-                        if (inputState.bestStopsTouched.get(stop)) {
-                            int candidateTripIndex = -1;
-                            EARLIEST_TRIP:
-                            for (TripSchedule candidateSchedule : pattern.tripSchedules) {
-                                candidateTripIndex++;
-
-                                if (!servicesActive.get(candidateSchedule.serviceCode) || candidateSchedule.headwaySeconds != null) {
-                                    // frequency trip or not running
-                                    continue;
-                                }
-
-                                if (earliestBoardTime < candidateSchedule.departures[stopPositionInPattern]) {
-                                    // board this vehicle
-                                    onTrip = candidateTripIndex;
-                                    schedule = candidateSchedule;
-                                    boardTime = candidateSchedule.departures[stopPositionInPattern];
-                                    waitTime = boardTime - inputState.bestTimes[stop];
-                                    boardStop = stop;
-                                    break EARLIEST_TRIP;
-                                }
-                            }
+                    if (onTrip == -1 || tripsDepartInOrder) {
+                        // Find the earliest trip we can board here. When trips depart in order, this is also how we
+                        // check whether we can back up to an earlier trip due to this stop being reached earlier.
+                        int candidateTripIndex = findEarliestTrip(activeTrips, tripsDepartInOrder, stopPositionInPattern, earliestBoardTime);
+                        if (candidateTripIndex != -1 && (onTrip == -1 || candidateTripIndex < onTrip)) {
+                            // board this vehicle
+                            onTrip = candidateTripIndex;
+                            schedule = activeTrips[candidateTripIndex];
+                            boardTime = schedule.departures[stopPositionInPattern];
+                            waitTime = boardTime - inputState.bestTimes[stop];
+                            boardStop = stop;
                         }
                     } else {
                         // check if we can back up to an earlier trip due to this stop being reached earlier
                         int bestTripIdx = onTrip;
                         while (--bestTripIdx >= 0) {
-                            TripSchedule trip = pattern.tripSchedules.get(bestTripIdx);
-                            if (trip.headwaySeconds != null || !servicesActive.get(trip.serviceCode)) {
-                                // This is a frequency trip or it is not running on the day of the search.
-                                continue;
-                            }
+                            TripSchedule trip = activeTrips[bestTripIdx];
                             if (trip.departures[stopPositionInPattern] > earliestBoardTime) {
                                 onTrip = bestTripIdx;
                                 schedule = trip;
@@ -417,12 +563,42 @@ public class FastRaptorWorker {
         }
     }
 
+    /**
+     * Find the earliest of the given trips that departs the given stop position strictly after earliestBoardTime.
+     *
+     * @param tripsDepartInOrder if true, the trips are sorted by departure time at every stop and a binary search is used.
+     *                           Otherwise, the first such trip in the order given is returned.
+     * @return the index of that trip in the trips array, or -1 if there is no such trip.
+     */
+    static int findEarliestTrip (TripSchedule[] trips, boolean tripsDepartInOrder, int stopPositionInPattern,
+                                         int earliestBoardTime) {
+        if (!tripsDepartInOrder) {
+            for (int trip = 0; trip < trips.length; trip++) {
+                if (earliestBoardTime < trips[trip].departures[stopPositionInPattern]) return trip;
+            }
+            return -1;
+        }
+
+        // binary search for the first trip departing after earliestBoardTime
+        int low = 0;
+        int high = trips.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (trips[mid].departures[stopPositionInPattern] > earliestBoardTime) high = mid;
+            else low = mid + 1;
+        }
+        return low < trips.length ? low : -1;
+    }
+
     /** Do a frequency search. If computeDeterministicUpperBound is true, worst-case frequency boarding time will be used
      * so that the output of this function can be used in a range-RAPTOR search. Otherwise Monte Carlo schedules will be
-     * used to improve upon the output of the range-RAPTOR bounds search.
+     * used to improve upon the output of the range-RAPTOR bounds search, using the supplied random offsets (which may be
+     * null when computing the deterministic upper bound). The patterns to explore are marked in patternsTouched, which
+     * is cleared first.
      */
-    private void doFrequencySearchForRound(RaptorState inputState, RaptorState outputState, boolean computeDeterministicUpperBound) {
-        BitSet patternsTouched = getPatternsTouchedForStops(inputState, frequencyIndexForOriginalPatternIndex);
+    private void doFrequencySearchForRound(RaptorState inputState, RaptorState outputState, FrequencyRandomOffsets offsets,
+                                           boolean computeDeterministicUpperBound, BitSet patternsTouched) {
+        getPatternsTouchedForStops(inputState, frequencyPatternsForStop, patternsTouched);
 
         for (int patternIndex = patternsTouched.nextSetBit(0); patternIndex >= 0; patternIndex = patternsTouched.nextSetBit(patternIndex + 1)) {
             TripPattern pattern = runningFrequencyPatterns[patternIndex];
@@ -436,7 +612,8 @@ public class FastRaptorWorker {
 
                 for (int frequencyEntryIdx = 0; frequencyEntryIdx < schedule.headwaySeconds.length; frequencyEntryIdx++) {
                     int originalPatternIndex = originalPatternIndexForFrequencyIndex[patternIndex];
-                    int offset = offsets.offsets.get(originalPatternIndex)[tripScheduleIndex][frequencyEntryIdx];
+                    int offset = computeDeterministicUpperBound ?
+                            0 : offsets.offsets.get(originalPatternIndex)[tripScheduleIndex][frequencyEntryIdx];
 
                     int boardTime = -1;
                     int boardStopPositionInPattern = -1;
@@ -487,7 +664,7 @@ public class FastRaptorWorker {
     }
 
     /** Get the earliest departure time on a particular scheduled frequency entry, or -1 if the frequency entry is not usable */
-    public int getRandomFrequencyDepartureTime (TripSchedule schedule, int stopPositionInPattern, int offset, int frequencyEntryIdx, int earliestTime) {
+    public static int getRandomFrequencyDepartureTime (TripSchedule schedule, int stopPositionInPattern, int offset, int frequencyEntryIdx, int earliestTime) {
         // earliest board time is start time plus travel time plus offset
         int earliestBoardTimeThisEntry = schedule.startTimes[frequencyEntryIdx] +
                 schedule.departures[stopPositionInPattern] +
@@ -524,7 +701,7 @@ public class FastRaptorWorker {
         }
     }
 
-    public int getWorstCaseFrequencyDepartureTime (TripSchedule schedule, int stopPositionInPattern, int frequencyEntryIdx, int earliestTime) {
+    public static int getWorstCaseFrequencyDepartureTime (TripSchedule schedule, int stopPositionInPattern, int frequencyEntryIdx, int earliestTime) {
         int headway = schedule.headwaySeconds[frequencyEntryIdx];
         int travelTimeFromStartOfTrip = schedule.departures[stopPositionInPattern];
         // The last vehicle could leave the terminal as early as headwaySeconds before the end of the frequency entry.
@@ -571,38 +748,29 @@ public class FastRaptorWorker {
     }
 
     /**
-     * Get a list of the internal IDs of the patterns "touched" using the given index (frequency or scheduled)
-     * "touched" means they were reached in the last round, and the index maps from the original pattern index to the
-     * local index of the filtered patterns.
+     * Mark the internal IDs of the patterns "touched" in the given index (frequency or scheduled) in patternsTouched,
+     * after clearing it. "touched" means they pass through a stop that was reached in the last round.
      */
-    private BitSet getPatternsTouchedForStops(RaptorState state, int[] index) {
-        BitSet patternsTouched = new BitSet();
+    private void getPatternsTouchedForStops(RaptorState state, PatternsForStopIndex patternsForStop, BitSet patternsTouched) {
+        patternsTouched.clear();
 
         for (int stop = state.bestStopsTouched.nextSetBit(0); stop >= 0; stop = state.bestStopsTouched.nextSetBit(stop + 1)) {
-            // copy stop to a new final variable to get around Java 8 "effectively final" nonsense
-            final int finalStop = stop;
-            transit.patternsForStop.get(stop).forEach(originalPattern -> {
-                int filteredPattern = index[originalPattern];
-
-                if (filteredPattern < 0) {
-                    return true; // this pattern does not exist in the local subset of patterns, continue iteration
-                }
-
-                int sourcePatternIndex = state.previousStop[finalStop] == -1 ?
-                        state.previousPatterns[finalStop] :
-                        state.previousPatterns[state.previousStop[finalStop]];
-
-                if (sourcePatternIndex != originalPattern) {
-                    // don't re-explore the same pattern we used to reach this stop
-                    // we forbid riding the same pattern twice in a row in the search code above, this will prevent
-                    // us even having to loop over the stops in the pattern if potential board stops were only reached
-                    // using this pattern.
-                    patternsTouched.set(filteredPattern);
-                }
-                return true; // continue iteration
-            });
+            int sourcePatternIndex = state.previousStop[stop] == -1 ?
+                    state.previousPatterns[stop] :
+                    state.previousPatterns[state.previousStop[stop]];
+
+            // don't re-explore the same pattern we used to reach this stop
+            // we forbid riding the same pattern twice in a row in the search code above, this will prevent
+            // us even having to loop over the stops in the pattern if potential board stops were only reached
+            // using this pattern.
+            patternsForStop.markPatterns(stop, sourcePatternIndex, patternsTouched);
         }
+    }
 
-        return patternsTouched;
+    /** The state arrays, random offsets and touched patterns used by a single Monte Carlo draw, which are reused by subsequent draws. */
+    private class FrequencySearchBuffers {
+        final FrequencyRandomOffsets offsets = new FrequencyRandomOffsets(transit);
+        final RaptorState[] states = createStates();
+        final BitSet patternsTouched = new BitSet(transit.tripPatterns.size());
     }
 }
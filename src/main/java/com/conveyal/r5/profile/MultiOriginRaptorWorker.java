@@ -0,0 +1,593 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import gnu.trove.list.TIntList;
+import gnu.trove.map.TIntIntMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.DEPARTURE_STEP_SEC;
+import static com.conveyal.r5.profile.FastRaptorWorker.MINIMUM_BOARD_WAIT_SEC;
+
+/**
+ * Performs the same search as FastRaptorWorker, but from several origins at once. This is used in regional analyses,
+ * where neighboring origins share most of their access stops and reach the same stops on the same patterns, so that
+ * searches from each of them one at a time repeat almost all of the same work.
+ *
+ * The search keeps one lane per origin: the state arrays are indexed by stop * nOrigins + origin, so the times for all
+ * origins at a stop are next to each other in memory. Each pattern is scanned once per round for all origins that
+ * touched it, reading the trip schedules once, and the range-RAPTOR and Monte Carlo loops, the pattern filtering and
+ * the random frequency offsets are shared by all origins. The origins of a batch share each Monte Carlo draw, which
+ * does not change the distribution of results at any one origin.
+ *
+ * The results are exactly those FastRaptorWorker would produce for each origin given the same random offsets. Paths
+ * are not saved, and draws are not spread across threads, as regional analyses keep all processors busy anyway.
+ */
+public class MultiOriginRaptorWorker {
+    private static final Logger LOG = LoggerFactory.getLogger(MultiOriginRaptorWorker.class);
+
+    /**
+     * The largest number of origins to route from at once. The state of the search grows linearly with the number of
+     * origins, as do the results, which hold one travel time per stop and iteration for each origin.
+     */
+    public static final int MAX_ORIGINS = 8;
+
+    /**
+     * The fraction of the heap that the searches running on all processors at once may use between them. At large
+     * numbers of stops and iterations the results of even a few origins take hundreds of megabytes, see maxOriginsFor.
+     */
+    private static final double MAX_HEAP_FRACTION = 0.25;
+
+    public final int nMinutes;
+    public final int monteCarloDrawsPerMinute;
+
+    /** The total number of iterations (departure minutes times Monte Carlo draws) this search will produce */
+    public final int nIterations;
+
+    /** The number of origins, i.e. lanes in the state arrays */
+    public final int nOrigins;
+
+    /** the transit layer to route on */
+    private final TransitLayer transit;
+
+    /** Times to access each transit stop using the street network (seconds), for each origin */
+    private final List<TIntIntMap> accessStopsForOrigin;
+
+    /** The profilerequest describing routing parameters, which must be the same for all origins */
+    private final ProfileRequest request;
+
+    /** Services active on the date of the search */
+    private final BitSet servicesActive;
+
+    private final int nStops;
+
+    /** Frequency-based trip patterns running on a given day */
+    private TripPattern[] runningFrequencyPatterns;
+
+    /** Schedule-based trip patterns running on a given day */
+    private TripPattern[] runningScheduledPatterns;
+
+    /** Map from internal, filtered frequency pattern indices back to original pattern indices for frequency patterns */
+    private int[] originalPatternIndexForFrequencyIndex;
+
+    /** Map from internal, filtered pattern indices back to original pattern indices for scheduled patterns */
+    private int[] originalPatternIndexForScheduledIndex;
+
+    /** Array mapping from original pattern indices to the filtered frequency indices */
+    private int[] frequencyIndexForOriginalPatternIndex;
+
+    /** Array mapping from original pattern indices to the filtered scheduled indices */
+    private int[] scheduledIndexForOriginalPatternIndex;
+
+    /** The running frequency and scheduled patterns at each stop, built when patterns are prefiltered */
+    private PatternsForStopIndex frequencyPatternsForStop;
+    private PatternsForStopIndex scheduledPatternsForStop;
+
+    /** The patterns to explore in the current round, reused every round */
+    private BitSet patternsTouched;
+
+    /** For each filtered scheduled pattern, the scheduled trips running on the date of the search, see FastRaptorWorker */
+    private TripSchedule[][] activeTripsForScheduledIndex;
+
+    /** For each filtered scheduled pattern, whether the active trips depart in order at every stop */
+    private boolean[] tripsDepartInOrderForScheduledIndex;
+
+    /** One state for each round of the scheduled search */
+    private LaneState[] scheduleState;
+
+    /**
+     * One state for each round of each Monte Carlo draw, and the random offsets of each draw. When every minute takes new
+     * draws, there is a single set that is reused by every draw. When draws are carried across a window of minutes
+     * (ProfileRequest.frequencyDrawWindowMinutes), each draw of a minute has its own, as in FastRaptorWorker.
+     */
+    private LaneState[][] frequencyStateForDraw;
+    private FrequencyRandomOffsets[] offsetsForDraw;
+
+    /** The offsets of the draw currently being searched */
+    private FrequencyRandomOffsets offsets;
+
+    /** The travel times to each stop for each iteration, in a stop-major array for each origin */
+    private int[][] travelTimesToStops;
+
+    // The trip each origin is riding while scanning a pattern, reused for every pattern.
+    private final int[] onTripForOrigin;
+    private final TripSchedule[] scheduleForOrigin;
+    private final int[] boardStopForOrigin;
+    private final int[] boardTimeForOrigin;
+    private final int[] boardStopPositionForOrigin;
+
+    /**
+     * @param accessStopsForOrigin the times to reach each transit stop from each origin. There must be at most
+     *                             MAX_ORIGINS of them.
+     */
+    public MultiOriginRaptorWorker (TransitLayer transitLayer, ProfileRequest request, List<TIntIntMap> accessStopsForOrigin) {
+        if (accessStopsForOrigin.isEmpty() || accessStopsForOrigin.size() > MAX_ORIGINS) {
+            throw new IllegalArgumentException("Can route from between 1 and " + MAX_ORIGINS + " origins at once.");
+        }
+
+        this.transit = transitLayer;
+        this.request = request;
+        this.accessStopsForOrigin = accessStopsForOrigin;
+        this.servicesActive = ActiveTransitView.forRequest(transit, request).servicesActive;
+        this.nOrigins = accessStopsForOrigin.size();
+        this.nStops = transit.getStopCount();
+
+        // compute number of minutes for scheduled search
+        nMinutes = (request.toTime - request.fromTime) / DEPARTURE_STEP_SEC;
+
+        // how many monte carlo draws per minute of scheduled search to get desired total iterations?
+        monteCarloDrawsPerMinute = (int) Math.ceil((double) request.monteCarloDraws / nMinutes);
+
+        nIterations = nMinutes * monteCarloDrawsPerMinute;
+
+        onTripForOrigin = new int[nOrigins];
+        scheduleForOrigin = new TripSchedule[nOrigins];
+        boardStopForOrigin = new int[nOrigins];
+        boardTimeForOrigin = new int[nOrigins];
+        boardStopPositionForOrigin = new int[nOrigins];
+    }
+
+    /**
+     * Get the number of origins to route from at once on the given transit layer, so that a search running on each
+     * processor fits in MAX_HEAP_FRACTION of the heap. This is between 1 and MAX_ORIGINS.
+     */
+    public static int maxOriginsFor (TransitLayer transitLayer, ProfileRequest request) {
+        long bytesPerOrigin = bytesPerOrigin(transitLayer, request);
+        Runtime runtime = Runtime.getRuntime();
+        long bytesPerSearch = (long) (runtime.maxMemory() * MAX_HEAP_FRACTION / runtime.availableProcessors());
+        return (int) Math.max(1, Math.min(MAX_ORIGINS, bytesPerSearch / bytesPerOrigin));
+    }
+
+    /**
+     * Estimate the memory used by each origin of a search: its travel times to every stop at every iteration, and its
+     * lane in the state of every round of the scheduled search and of every Monte Carlo draw that is kept.
+     */
+    static long bytesPerOrigin (TransitLayer transitLayer, ProfileRequest request) {
+        long nStops = transitLayer.getStopCount();
+        int nMinutes = (request.toTime - request.fromTime) / DEPARTURE_STEP_SEC;
+        int monteCarloDrawsPerMinute = (int) Math.ceil((double) request.monteCarloDraws / nMinutes);
+        long nIterations = (long) nMinutes * monteCarloDrawsPerMinute;
+
+        int nStateSets = 1;
+        if (transitLayer.hasFrequencies) {
+            nStateSets += request.frequencyDrawWindowMinutes > 1 ? monteCarloDrawsPerMinute : 1;
+        }
+        // four int arrays and two bitsets per state
+        long bytesPerState = nStops * (4 * Integer.BYTES + 1);
+        return nStops * nIterations * Integer.BYTES + (long) nStateSets * (request.maxRides + 1) * bytesPerState;
+    }
+
+    /**
+     * Run the search, returning the travel times to each transit stop for each iteration from each origin. There is one
+     * array per origin, in the order the access stops were given, each in the stop-major layout described in
+     * FastRaptorWorker.routeStopMajor.
+     */
+    public int[][] routeStopMajor () {
+        long startClockTime = System.nanoTime();
+
+        travelTimesToStops = new int[nOrigins][nStops * nIterations];
+        scheduleState = createStates();
+        int frequencyDrawWindowMinutes = Math.max(request.frequencyDrawWindowMinutes, 1);
+        if (transit.hasFrequencies) {
+            int nDrawBuffers = frequencyDrawWindowMinutes > 1 ? monteCarloDrawsPerMinute : 1;
+            frequencyStateForDraw = new LaneState[nDrawBuffers][];
+            offsetsForDraw = new FrequencyRandomOffsets[nDrawBuffers];
+            for (int i = 0; i < nDrawBuffers; i++) {
+                frequencyStateForDraw[i] = createStates();
+                offsetsForDraw[i] = new FrequencyRandomOffsets(transit);
+            }
+        }
+
+        prefilterPatterns();
+
+        LOG.info("Performing {} scheduled iterations each with {} Monte Carlo draws for a total of {} iterations from {} origins",
+                nMinutes, monteCarloDrawsPerMinute, nIterations, nOrigins);
+
+        int currentIteration = 0;
+
+        // main loop over departure times
+        for (int departureTime = request.toTime - DEPARTURE_STEP_SEC, minute = nMinutes; departureTime >= request.fromTime;
+             departureTime -= DEPARTURE_STEP_SEC, minute--) {
+            boolean newFrequencyDraws = (nMinutes - minute) % frequencyDrawWindowMinutes == 0;
+            runRaptorForMinute(departureTime, currentIteration, newFrequencyDraws);
+            currentIteration += monteCarloDrawsPerMinute;
+        }
+
+        LOG.info("Search from {} origins completed in {}s", nOrigins, (System.nanoTime() - startClockTime) / 1e9d);
+
+        return travelTimesToStops;
+    }
+
+    private LaneState[] createStates () {
+        // we add one to request.maxRides, first state is result of initial walk
+        return IntStream.range(0, request.maxRides + 1)
+                .mapToObj(i -> new LaneState(nStops, nOrigins, request.maxTripDurationMinutes * 60))
+                .toArray(LaneState[]::new);
+    }
+
+    /** Get the patterns and trips that are running during the search, as in FastRaptorWorker */
+    private void prefilterPatterns () {
+        ActiveTransitView view = ActiveTransitView.forRequest(transit, request);
+        runningFrequencyPatterns = view.runningFrequencyPatterns;
+        runningScheduledPatterns = view.runningScheduledPatterns;
+        originalPatternIndexForFrequencyIndex = view.originalPatternIndexForFrequencyIndex;
+        originalPatternIndexForScheduledIndex = view.originalPatternIndexForScheduledIndex;
+        frequencyIndexForOriginalPatternIndex = view.frequencyIndexForOriginalPatternIndex;
+        scheduledIndexForOriginalPatternIndex = view.scheduledIndexForOriginalPatternIndex;
+        frequencyPatternsForStop = view.frequencyPatternsForStop;
+        scheduledPatternsForStop = view.scheduledPatternsForStop;
+        activeTripsForScheduledIndex = view.activeTripsForScheduledIndex;
+        tripsDepartInOrderForScheduledIndex = view.tripsDepartInOrderForScheduledIndex;
+        patternsTouched = new BitSet(transit.tripPatterns.size());
+    }
+
+    /** Perform one minute of the search from all origins, see FastRaptorWorker.runRaptorForMinute */
+    private void runRaptorForMinute (int departureTime, int firstIteration, boolean newFrequencyDraws) {
+        for (LaneState state : scheduleState) {
+            state.setDepartureTime(departureTime);
+            state.bestStopsTouched.clear();
+            state.nonTransferStopsTouched.clear();
+        }
+
+        // add initial stops
+        LaneState initialState = scheduleState[0];
+        for (int origin = 0; origin < nOrigins; origin++) {
+            final int lane = origin;
+            accessStopsForOrigin.get(origin).forEachEntry((stop, accessTime) -> {
+                initialState.setTimeAtStop(stop * nOrigins + lane, accessTime + departureTime, -1, -1, true);
+                return true; // continue iteration
+            });
+        }
+
+        // Range-RAPTOR scheduled search, with worst-case frequency boarding as an upper bound
+        if (transit.hasSchedules) {
+            for (int round = 1; round <= request.maxRides; round++) {
+                scheduleState[round].min(scheduleState[round - 1]);
+                doScheduledSearchForRound(scheduleState[round - 1], scheduleState[round]);
+                doFrequencySearchForRound(scheduleState[round - 1], scheduleState[round], true);
+                doTransfers(scheduleState[round]);
+            }
+        }
+
+        if (transit.hasFrequencies) {
+            for (int draw = 0; draw < monteCarloDrawsPerMinute; draw++) {
+                LaneState[] frequencyState = frequencyStateForDraw[draw % frequencyStateForDraw.length];
+                offsets = offsetsForDraw[draw % offsetsForDraw.length];
+
+                if (newFrequencyDraws) {
+                    for (int i = 0; i < frequencyState.length; i++) frequencyState[i].copyFrom(scheduleState[i]);
+                    offsets.randomize();
+                } else {
+                    // continue this draw from the previous minute as range-RAPTOR, see FastRaptorWorker.runFrequencyDraw
+                    for (int i = 0; i < frequencyState.length; i++) {
+                        LaneState state = frequencyState[i];
+                        state.setDepartureTime(departureTime);
+                        state.bestStopsTouched.clear();
+                        state.nonTransferStopsTouched.clear();
+                        state.min(scheduleState[i]);
+                    }
+                }
+
+                for (int round = 1; round <= request.maxRides; round++) {
+                    frequencyState[round].min(frequencyState[round - 1]);
+                    doScheduledSearchForRound(frequencyState[round - 1], frequencyState[round]);
+                    // frequency search: additionally use stops touched by scheduled search
+                    frequencyState[round - 1].bestStopsTouched.or(scheduleState[round - 1].bestStopsTouched);
+                    frequencyState[round - 1].nonTransferStopsTouched.or(scheduleState[round - 1].nonTransferStopsTouched);
+                    doFrequencySearchForRound(frequencyState[round - 1], frequencyState[round], false);
+                    doTransfers(frequencyState[round]);
+                }
+
+                recordTravelTimes(frequencyState[request.maxRides].bestNonTransferTimes, departureTime, firstIteration + draw);
+            }
+        } else {
+            // No frequencies, repeat the result of the scheduled search for each Monte Carlo draw, as FastRaptorWorker does
+            for (int draw = 0; draw < monteCarloDrawsPerMinute; draw++) {
+                recordTravelTimes(scheduleState[request.maxRides].bestNonTransferTimes, departureTime, firstIteration + draw);
+            }
+        }
+    }
+
+    /** Convert arrival clock times at each stop from each origin to travel times and store them as the given iteration */
+    private void recordTravelTimes (int[] arrivalTimes, int departureTime, int iteration) {
+        for (int stop = 0, index = 0; stop < nStops; stop++) {
+            int resultIndex = stop * nIterations + iteration;
+            for (int origin = 0; origin < nOrigins; origin++, index++) {
+                int arrivalTime = arrivalTimes[index];
+                travelTimesToStops[origin][resultIndex] =
+                        arrivalTime != RaptorWorker.UNREACHED ? arrivalTime - departureTime : arrivalTime;
+            }
+        }
+    }
+
+    /** Perform a scheduled search from all origins */
+    private void doScheduledSearchForRound (LaneState inputState, LaneState outputState) {
+        getPatternsTouchedForStops(inputState, scheduledPatternsForStop);
+
+        for (int patternIndex = patternsTouched.nextSetBit(0); patternIndex >= 0; patternIndex = patternsTouched.nextSetBit(patternIndex + 1)) {
+            int originalPatternIndex = originalPatternIndexForScheduledIndex[patternIndex];
+            TripPattern pattern = runningScheduledPatterns[patternIndex];
+            TripSchedule[] activeTrips = activeTripsForScheduledIndex[patternIndex];
+            boolean tripsDepartInOrder = tripsDepartInOrderForScheduledIndex[patternIndex];
+            Arrays.fill(onTripForOrigin, -1);
+
+            for (int stopPositionInPattern = 0; stopPositionInPattern < pattern.stops.length; stopPositionInPattern++) {
+                int stop = pattern.stops[stopPositionInPattern];
+                int firstIndex = stop * nOrigins;
+
+                // attempt to alight if we're on board, done above the board search so that we don't check for alighting
+                // when boarding
+                for (int origin = 0; origin < nOrigins; origin++) {
+                    if (onTripForOrigin[origin] > -1) {
+                        outputState.setTimeAtStop(firstIndex + origin, scheduleForOrigin[origin].arrivals[stopPositionInPattern],
+                                originalPatternIndex, boardStopForOrigin[origin], false);
+                    }
+                }
+
+                // skip the boarding search if this stop was not reached from any origin in the last round
+                int touchedIndex = inputState.bestStopsTouched.nextSetBit(firstIndex);
+                if (touchedIndex < 0 || touchedIndex >= firstIndex + nOrigins) continue;
+
+                for (int origin = 0; origin < nOrigins; origin++) {
+                    int index = firstIndex + origin;
+
+                    // Don't attempt to board if this stop was not reached in the last round, and don't attempt to
+                    // reboard the same pattern
+                    if (!inputState.bestStopsTouched.get(index) ||
+                            inputState.sourcePatternIndex(stop, origin) == originalPatternIndex) continue;
+
+                    int earliestBoardTime = inputState.bestTimes[index] + MINIMUM_BOARD_WAIT_SEC;
+                    int onTrip = onTripForOrigin[origin];
+
+                    if (onTrip == -1 || tripsDepartInOrder) {
+                        int candidateTripIndex = FastRaptorWorker.findEarliestTrip(activeTrips, tripsDepartInOrder,
+                                stopPositionInPattern, earliestBoardTime);
+                        if (candidateTripIndex != -1 && (onTrip == -1 || candidateTripIndex < onTrip)) {
+                            // board this vehicle
+                            onTripForOrigin[origin] = candidateTripIndex;
+                            scheduleForOrigin[origin] = activeTrips[candidateTripIndex];
+                            boardStopForOrigin[origin] = stop;
+                        }
+                    } else {
+                        // check if we can back up to an earlier trip due to this stop being reached earlier
+                        for (int tripIndex = onTrip - 1; tripIndex >= 0; tripIndex--) {
+                            TripSchedule trip = activeTrips[tripIndex];
+                            if (trip.departures[stopPositionInPattern] > earliestBoardTime) {
+                                onTripForOrigin[origin] = tripIndex;
+                                scheduleForOrigin[origin] = trip;
+                                boardStopForOrigin[origin] = stop;
+                            } else {
+                                // this trip arrives too early, break loop since they are sorted by departure time
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Do a frequency search from all origins, using either the worst-case boarding time for the range-RAPTOR upper
+     * bound or the current Monte Carlo offsets, see FastRaptorWorker.doFrequencySearchForRound.
+     */
+    private void doFrequencySearchForRound (LaneState inputState, LaneState outputState, boolean computeDeterministicUpperBound) {
+        getPatternsTouchedForStops(inputState, frequencyPatternsForStop);
+
+        for (int patternIndex = patternsTouched.nextSetBit(0); patternIndex >= 0; patternIndex = patternsTouched.nextSetBit(patternIndex + 1)) {
+            TripPattern pattern = runningFrequencyPatterns[patternIndex];
+            int originalPatternIndex = originalPatternIndexForFrequencyIndex[patternIndex];
+
+            int tripScheduleIndex = -1; // first increment lands at 0
+            for (TripSchedule schedule : pattern.tripSchedules) {
+                tripScheduleIndex++;
+
+                // scheduled trip or not running
+                if (!servicesActive.get(schedule.serviceCode) || schedule.headwaySeconds == null) continue;
+
+                for (int frequencyEntryIdx = 0; frequencyEntryIdx < schedule.headwaySeconds.length; frequencyEntryIdx++) {
+                    int offset = computeDeterministicUpperBound ?
+                            0 : offsets.offsets.get(originalPatternIndex)[tripScheduleIndex][frequencyEntryIdx];
+
+                    Arrays.fill(boardTimeForOrigin, -1);
+                    Arrays.fill(boardStopPositionForOrigin, -1);
+
+                    for (int stopPositionInPattern = 0; stopPositionInPattern < pattern.stops.length; stopPositionInPattern++) {
+                        int stop = pattern.stops[stopPositionInPattern];
+                        int firstIndex = stop * nOrigins;
+
+                        for (int origin = 0; origin < nOrigins; origin++) {
+                            int index = firstIndex + origin;
+                            int boardTime = boardTimeForOrigin[origin];
+                            int boardStopPositionInPattern = boardStopPositionForOrigin[origin];
+
+                            // attempt to alight if boarded
+                            if (boardTime > -1) {
+                                int travelTime = schedule.arrivals[stopPositionInPattern] - schedule.departures[boardStopPositionInPattern];
+                                outputState.setTimeAtStop(index, boardTime + travelTime, originalPatternIndex,
+                                        pattern.stops[boardStopPositionInPattern], false);
+                            }
+
+                            // attempt to board (even if already boarded, since this is a frequency trip and we could move back)
+                            if (!inputState.bestStopsTouched.get(index)) continue;
+
+                            int earliestBoardTime = inputState.bestTimes[index] + MINIMUM_BOARD_WAIT_SEC;
+                            int newBoardingDepartureTimeAtStop = computeDeterministicUpperBound ?
+                                    FastRaptorWorker.getWorstCaseFrequencyDepartureTime(schedule, stopPositionInPattern,
+                                            frequencyEntryIdx, earliestBoardTime) :
+                                    FastRaptorWorker.getRandomFrequencyDepartureTime(schedule, stopPositionInPattern,
+                                            offset, frequencyEntryIdx, earliestBoardTime);
+
+                            int remainOnBoardDepartureTimeAtStop = Integer.MAX_VALUE;
+                            if (boardTime > -1) {
+                                remainOnBoardDepartureTimeAtStop = boardTime +
+                                        schedule.departures[stopPositionInPattern] - schedule.departures[boardStopPositionInPattern];
+                            }
+
+                            if (newBoardingDepartureTimeAtStop > -1 && newBoardingDepartureTimeAtStop < remainOnBoardDepartureTimeAtStop) {
+                                // board this trip
+                                boardTimeForOrigin[origin] = newBoardingDepartureTimeAtStop;
+                                boardStopPositionForOrigin[origin] = stopPositionInPattern;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void doTransfers (LaneState state) {
+        // avoid integer casts in tight loop below
+        int walkSpeedMillimetersPerSecond = (int) (request.walkSpeed * 1000);
+        int maxWalkMillimeters = (int) (request.walkSpeed * request.maxWalkTime * 60 * 1000);
+
+        for (int index = state.nonTransferStopsTouched.nextSetBit(0); index > -1; index = state.nonTransferStopsTouched.nextSetBit(index + 1)) {
+            int stop = index / nOrigins;
+            int origin = index % nOrigins;
+            TIntList transfersFromStop = transit.transfersForStop.get(stop);
+            if (transfersFromStop == null) continue;
+
+            for (int stopIdx = 0; stopIdx < transfersFromStop.size(); stopIdx += 2) {
+                int targetStop = transfersFromStop.get(stopIdx);
+                int distanceToTargetStopMillimeters = transfersFromStop.get(stopIdx + 1);
+
+                if (distanceToTargetStopMillimeters < maxWalkMillimeters) {
+                    int walkTimeToTargetStopSeconds = distanceToTargetStopMillimeters / walkSpeedMillimetersPerSecond;
+                    int timeAtTargetStop = state.bestNonTransferTimes[index] + walkTimeToTargetStopSeconds;
+                    state.setTimeAtStop(targetStop * nOrigins + origin, timeAtTargetStop, -1, stop, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark the filtered indices of the patterns that can be boarded at stops reached in the last round from any origin,
+     * excluding the patterns that were used to reach them, in patternsTouched.
+     */
+    private void getPatternsTouchedForStops (LaneState state, PatternsForStopIndex patternsForStop) {
+        patternsTouched.clear();
+        for (int touched = state.bestStopsTouched.nextSetBit(0); touched >= 0; touched = state.bestStopsTouched.nextSetBit(touched + 1)) {
+            int stop = touched / nOrigins;
+            patternsForStop.markPatterns(stop, state.sourcePatternIndex(stop, touched % nOrigins), patternsTouched);
+        }
+    }
+
+    /**
+     * The state of one round of the search from all origins. This holds the same arrays as a RaptorState without path
+     * tracking, but each is indexed by stop * nOrigins + origin, as are the touched stop bitsets.
+     */
+    private static class LaneState {
+        final int nOrigins;
+        final int maxDurationSeconds;
+        int departureTime;
+
+        final int[] bestTimes;
+        final int[] bestNonTransferTimes;
+        final int[] previousPatterns;
+        final int[] previousStop;
+
+        final BitSet bestStopsTouched;
+        final BitSet nonTransferStopsTouched;
+
+        LaneState (int nStops, int nOrigins, int maxDurationSeconds) {
+            this.nOrigins = nOrigins;
+            this.maxDurationSeconds = maxDurationSeconds;
+            int size = nStops * nOrigins;
+            bestTimes = new int[size];
+            bestNonTransferTimes = new int[size];
+            previousPatterns = new int[size];
+            previousStop = new int[size];
+            Arrays.fill(bestTimes, RaptorWorker.UNREACHED);
+            Arrays.fill(bestNonTransferTimes, RaptorWorker.UNREACHED);
+            Arrays.fill(previousPatterns, -1);
+            Arrays.fill(previousStop, -1);
+            bestStopsTouched = new BitSet(size);
+            nonTransferStopsTouched = new BitSet(size);
+        }
+
+        /** The pattern used to reach the given stop from the given origin, see FastRaptorWorker */
+        int sourcePatternIndex (int stop, int origin) {
+            int index = stop * nOrigins + origin;
+            return previousStop[index] == -1 ? previousPatterns[index] : previousPatterns[previousStop[index] * nOrigins + origin];
+        }
+
+        /** Overwrite this state with another, clearing the touched stops, as RaptorState.copyFrom does */
+        void copyFrom (LaneState state) {
+            System.arraycopy(state.bestTimes, 0, bestTimes, 0, bestTimes.length);
+            System.arraycopy(state.bestNonTransferTimes, 0, bestNonTransferTimes, 0, bestNonTransferTimes.length);
+            System.arraycopy(state.previousPatterns, 0, previousPatterns, 0, previousPatterns.length);
+            System.arraycopy(state.previousStop, 0, previousStop, 0, previousStop.length);
+            departureTime = state.departureTime;
+            bestStopsTouched.clear();
+            nonTransferStopsTouched.clear();
+        }
+
+        /** Set this state to the min values found in this state or the other, as RaptorState.min does */
+        void min (LaneState other) {
+            for (int i = 0; i < bestTimes.length; i++) {
+                // prefer times from other when breaking tie as other is earlier in RAPTOR search and thus has fewer transfers
+                if (other.bestTimes[i] <= bestTimes[i]) bestTimes[i] = other.bestTimes[i];
+
+                if (other.bestNonTransferTimes[i] <= bestNonTransferTimes[i]) {
+                    bestNonTransferTimes[i] = other.bestNonTransferTimes[i];
+                    previousPatterns[i] = other.previousPatterns[i];
+                    previousStop[i] = other.previousStop[i];
+                }
+            }
+        }
+
+        /** Set the departure time and remove trips that are now too long, as RaptorState.setDepartureTime does */
+        void setDepartureTime (int departureTime) {
+            this.departureTime = departureTime;
+            int maxClockTime = departureTime + maxDurationSeconds;
+            for (int i = 0; i < bestTimes.length; i++) {
+                if (bestTimes[i] > maxClockTime) bestTimes[i] = RaptorWorker.UNREACHED;
+                if (bestNonTransferTimes[i] > maxClockTime) bestNonTransferTimes[i] = RaptorWorker.UNREACHED;
+            }
+        }
+
+        /** Set the time at the given index (stop * nOrigins + origin) iff it is optimal, as RaptorState.setTimeAtStop does */
+        void setTimeAtStop (int index, int time, int fromPattern, int fromStop, boolean transfer) {
+            if (time > departureTime + maxDurationSeconds) return;
+
+            if (!transfer && time < bestNonTransferTimes[index]) {
+                bestNonTransferTimes[index] = time;
+                nonTransferStopsTouched.set(index);
+                previousPatterns[index] = fromPattern;
+                previousStop[index] = fromStop;
+            }
+
+            if (time < bestTimes[index]) {
+                bestTimes[index] = time;
+                bestStopsTouched.set(index);
+            }
+        }
+    }
+}
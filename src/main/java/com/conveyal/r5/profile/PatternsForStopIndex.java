@@ -0,0 +1,69 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.transit.TransitLayer;
+import gnu.trove.list.TIntList;
+
+import java.util.BitSet;
+
+/**
+ * The patterns running on the day of a search that pass through each stop, in compressed sparse row form: the patterns
+ * for stop s are at positions firstPatternForStop[s] (inclusive) through firstPatternForStop[s + 1] (exclusive) of the
+ * pattern arrays. This is built once per search from TransitLayer.patternsForStop, leaving out patterns that are not
+ * running, so that marking the patterns to explore in each round of the search is a walk over a few flat arrays rather
+ * than an iteration over a list of Trove lists followed by a lookup of each pattern's filtered index.
+ */
+class PatternsForStopIndex {
+    /** For each stop, where its patterns start in the pattern arrays. There is one extra entry at the end. */
+    final int[] firstPatternForStop;
+
+    /** The filtered (running) index of each pattern, which is what the search marks as touched */
+    final int[] filteredPatterns;
+
+    /** The original index in TransitLayer.tripPatterns of each pattern, parallel to filteredPatterns */
+    final int[] originalPatterns;
+
+    /**
+     * @param filteredIndexForOriginalPatternIndex the filtered index of each pattern in the transit layer, or -1 if
+     *                                             the pattern is not running and should be left out.
+     */
+    PatternsForStopIndex (TransitLayer transit, int[] filteredIndexForOriginalPatternIndex) {
+        int nStops = transit.getStopCount();
+        firstPatternForStop = new int[nStops + 1];
+
+        // first pass: count the running patterns at each stop
+        for (int stop = 0; stop < nStops; stop++) {
+            TIntList patterns = transit.patternsForStop.get(stop);
+            int count = 0;
+            for (int i = 0; i < patterns.size(); i++) {
+                if (filteredIndexForOriginalPatternIndex[patterns.get(i)] >= 0) count++;
+            }
+            firstPatternForStop[stop + 1] = firstPatternForStop[stop] + count;
+        }
+
+        // second pass: fill them in
+        filteredPatterns = new int[firstPatternForStop[nStops]];
+        originalPatterns = new int[firstPatternForStop[nStops]];
+        for (int stop = 0, position = 0; stop < nStops; stop++) {
+            TIntList patterns = transit.patternsForStop.get(stop);
+            for (int i = 0; i < patterns.size(); i++) {
+                int originalPattern = patterns.get(i);
+                int filteredPattern = filteredIndexForOriginalPatternIndex[originalPattern];
+                if (filteredPattern >= 0) {
+                    filteredPatterns[position] = filteredPattern;
+                    originalPatterns[position] = originalPattern;
+                    position++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark the filtered index of each pattern at the given stop in patternsTouched, except the pattern with the given
+     * original index, which was used to reach the stop and should not be ridden again.
+     */
+    void markPatterns (int stop, int sourcePatternIndex, BitSet patternsTouched) {
+        for (int i = firstPatternForStop[stop], end = firstPatternForStop[stop + 1]; i < end; i++) {
+            if (originalPatterns[i] != sourcePatternIndex) patternsTouched.set(filteredPatterns[i]);
+        }
+    }
+}
@@ -1,11 +1,11 @@
 package com.conveyal.r5.profile;
 
 import com.conveyal.r5.streets.LinkedPointSet;
-import gnu.trove.map.TIntIntMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * This class propagates from times at transit stops to times at destinations (targets). It is called with a function
@@ -16,12 +16,29 @@ import java.util.Arrays;
  *
  * It may seem needlessly generic to use a lambda function, but it allows us to confine the bootstrapping code to GridComputer.
  * Perhaps this should be refactored to be a BootstrappingPropagater that just returns bootstrapped accessibility values.
+ *
+ * When parallel is set, targets are split into contiguous blocks of row-major indices (i.e. geographic bands) which are
+ * propagated on different threads. In that case the reducer is called concurrently for different targets and must be
+ * thread safe. It is still called exactly once for each target (or each target that was ever reached), and the arrays
+ * passed to it belong to the calling thread and are reused for the next target, so the reducer must not retain them.
  */
 public class PerTargetPropagater {
     private static final Logger LOG = LoggerFactory.getLogger(PerTargetPropagater.class);
 
-    /** Times at transit stops for each iteration */
-    public final int[][] travelTimesToStopsEachIteration;
+    /**
+     * The number of consecutive targets propagated together on one thread in parallel mode. Large enough that each
+     * block covers several rows of a typical grid, so the travel times to nearby stops stay in cache within a block.
+     */
+    private static final int TARGETS_PER_BLOCK = 4096;
+
+    /**
+     * Times at transit stops for each iteration, in stop-major order: the time at stop s in iteration i is at index
+     * s * nIterations + i (see FastRaptorWorker.routeStopMajor).
+     */
+    public final int[] travelTimesToStops;
+
+    /** The number of iterations (departure minutes times Monte Carlo draws) */
+    public final int nIterations;
 
     /** Times at targets using the street network */
     public final int[] nonTransitTravelTimesToTargets;
@@ -35,8 +52,15 @@ public class PerTargetPropagater {
     /** the profilerequest (used for walk speed etc.) */
     public final ProfileRequest request;
 
-    public PerTargetPropagater (int[][] travelTimesToStopsEachIteration, int[] nonTransitTravelTimesToTargets, LinkedPointSet targets, ProfileRequest request, int cutoffSeconds) {
-        this.travelTimesToStopsEachIteration = travelTimesToStopsEachIteration;
+    /**
+     * Whether to propagate blocks of targets on multiple threads. The reducer must then be thread safe, see class
+     * Javadoc. This is off by default because regional analyses already compute many origins at once.
+     */
+    public boolean parallel = false;
+
+    public PerTargetPropagater (int[] travelTimesToStops, int nIterations, int[] nonTransitTravelTimesToTargets, LinkedPointSet targets, ProfileRequest request, int cutoffSeconds) {
+        this.travelTimesToStops = travelTimesToStops;
+        this.nIterations = nIterations;
         this.nonTransitTravelTimesToTargets = nonTransitTravelTimesToTargets;
         this.targets = targets;
         this.request = request;
@@ -44,7 +68,6 @@ public class PerTargetPropagater {
     }
 
     private void propagate (Reducer reducer, TravelTimeReducer travelTimeReducer) {
-        boolean saveTravelTimes = travelTimeReducer != null;
         targets.makePointToStopDistanceTablesIfNeeded();
 
         long startTimeMillis = System.currentTimeMillis();
@@ -54,31 +77,45 @@ public class PerTargetPropagater {
         // than floats.
         int speedMillimetersPerSecond = (int) (request.walkSpeed * 1000);
 
-        boolean[] perIterationResults = new boolean[travelTimesToStopsEachIteration.length];
-        int[] perIterationTravelTimes = saveTravelTimes ? new int[travelTimesToStopsEachIteration.length] : null;
-
-        // Invert the travel times to stops array, to provide better memory locality in the tight loop below. Confirmed
-        // that this provides a significant speedup, which makes sense; Java doesn't have true multidimensional arrays
-        // but rather represents int[][] as Object[int[]], which means that each of the arrays "on the inside" is stored
-        // separately in memory and may not be contiguous, also meaning the CPU can't efficiently predict and prefetch
-        // what we need next. When we invert the array, we then have all travel times to a particular stop for all iterations
-        // in a single array. The CPU will only page the data that is relevant for the current target, i.e. the travel
-        // times to nearby stops. Since we are also looping over the targets in a geographic manner (in row-major order),
-        // it is likely the stops relevant to a particular target will already be in memory from the previous target.
-        // This should not increase memory consumption very much as we're only storing the travel times to stops. The
-        // Netherlands has about 70,000 stops, if you do 1,000 iterations to 70,000 stops, the array being duplicated is
-        // only 70,000 * 1000 * 4 bytes per int ~= 267 megabytes. I don't think it will be worthwhile to change the
-        // algorithm to output already-transposed data as that will create other memory locality problems (since the
-        // pathfinding algorithm solves one iteration for all stops simultaneously).
-        int[][] invertedTravelTimesToStops = new int[travelTimesToStopsEachIteration[0].length][travelTimesToStopsEachIteration.length];
-
-        for (int iteration = 0; iteration < travelTimesToStopsEachIteration.length; iteration++) {
-            for (int stop = 0; stop < travelTimesToStopsEachIteration[0].length; stop++) {
-                invertedTravelTimesToStops[stop][iteration] = travelTimesToStopsEachIteration[iteration][stop];
-            }
+        if (parallel) {
+            int nBlocks = (targets.size() + TARGETS_PER_BLOCK - 1) / TARGETS_PER_BLOCK;
+            IntStream.range(0, nBlocks).parallel().forEach(block -> propagateTargets(block * TARGETS_PER_BLOCK,
+                    Math.min(targets.size(), (block + 1) * TARGETS_PER_BLOCK), speedMillimetersPerSecond, reducer,
+                    travelTimeReducer));
+        } else {
+            propagateTargets(0, targets.size(), speedMillimetersPerSecond, reducer, travelTimeReducer);
         }
 
-        for (int targetIdx = 0; targetIdx < targets.size(); targetIdx++) {
+        long totalTimeMillis = System.currentTimeMillis() - startTimeMillis;
+        LOG.info("Propagating {} iterations from {} stops to {} targets took {}s",
+                nIterations,
+                travelTimesToStops.length / nIterations,
+                targets.size(),
+                totalTimeMillis / 1000d
+                );
+    }
+
+    /**
+     * Propagate to the targets with indices in [fromTarget, toTarget). The per-iteration arrays are allocated here
+     * so that each thread has its own when propagating in parallel.
+     */
+    private void propagateTargets (int fromTarget, int toTarget, int speedMillimetersPerSecond, Reducer reducer,
+                                   TravelTimeReducer travelTimeReducer) {
+        boolean saveTravelTimes = travelTimeReducer != null;
+        boolean[] perIterationResults = new boolean[nIterations];
+        int[] perIterationTravelTimes = saveTravelTimes ? new int[nIterations] : null;
+        int[] pointToStopOffsets = targets.pointToStopOffsets;
+        int[] pointToStopStops = targets.pointToStopStops;
+        int[] pointToStopDistances_mm = targets.pointToStopDistances_mm;
+
+        // The travel times to stops are stored in stop-major order to provide better memory locality in the tight loop
+        // below. We have all travel times to a particular stop for all iterations next to each other in memory, so the
+        // CPU will only page the data that is relevant for the current target, i.e. the travel times to nearby stops.
+        // Since we are also looping over the targets in a geographic manner (in row-major order), it is likely the stops
+        // relevant to a particular target will already be in memory from the previous target. FastRaptorWorker writes
+        // its results directly in this layout, so no copy or inversion of the travel times is needed here.
+
+        for (int targetIdx = fromTarget; targetIdx < toTarget; targetIdx++) {
             // clear previous results, fill with whether target is reached within the cutoff without transit (which does
             // not vary with monte carlo draw)
             boolean targetReachedWithoutTransit = nonTransitTravelTimesToTargets[targetIdx] < cutoffSeconds;
@@ -94,51 +131,38 @@ public class PerTargetPropagater {
                 continue;
             }
 
-            TIntIntMap pointToStopDistanceTable = targets.pointToStopDistanceTables.get(targetIdx);
-
-            // all variables used in lambdas must be "effectively final"; arrays are effectively final even if their
-            // values change
-            boolean[] targetEverReached = new boolean[] { nonTransitTravelTimesToTargets[targetIdx] <= cutoffSeconds };
-
-            // don't try to propagate transit if there are no nearby transit stops,
-            // but still call the reducer below with the non-transit times, because you can walk even where there is no
-            // transit
-            if (pointToStopDistanceTable != null) {
-                pointToStopDistanceTable.forEachEntry((stop, distanceMillimeters) -> {
-                    for (int iteration = 0; iteration < perIterationResults.length; iteration++) {
-                        int timeAtStop = invertedTravelTimesToStops[stop][iteration];
-
-                        if (timeAtStop > cutoffSeconds || saveTravelTimes && timeAtStop > perIterationTravelTimes[iteration]) continue; // avoid overflow
-
-                        int timeAtTargetThisStop = timeAtStop + distanceMillimeters / speedMillimetersPerSecond;
-
-                        if (timeAtTargetThisStop < cutoffSeconds) {
-                            if (saveTravelTimes) {
-                                if (timeAtTargetThisStop < perIterationTravelTimes[iteration]) {
-                                    perIterationTravelTimes[iteration] = timeAtTargetThisStop;
-                                    targetEverReached[0] = true;
-                                }
-                            } else {
-                                perIterationResults[iteration] = true;
-                                targetEverReached[0] = true;
+            boolean targetEverReached = nonTransitTravelTimesToTargets[targetIdx] <= cutoffSeconds;
+
+            // Loop over the nearby transit stops. If there are none we still call the reducer below with the non-transit
+            // times, because you can walk even where there is no transit.
+            for (int entry = pointToStopOffsets[targetIdx]; entry < pointToStopOffsets[targetIdx + 1]; entry++) {
+                int stop = pointToStopStops[entry];
+                int distanceMillimeters = pointToStopDistances_mm[entry];
+
+                for (int iteration = 0, index = stop * nIterations; iteration < nIterations; iteration++, index++) {
+                    int timeAtStop = travelTimesToStops[index];
+
+                    if (timeAtStop > cutoffSeconds || saveTravelTimes && timeAtStop > perIterationTravelTimes[iteration]) continue; // avoid overflow
+
+                    int timeAtTargetThisStop = timeAtStop + distanceMillimeters / speedMillimetersPerSecond;
+
+                    if (timeAtTargetThisStop < cutoffSeconds) {
+                        if (saveTravelTimes) {
+                            if (timeAtTargetThisStop < perIterationTravelTimes[iteration]) {
+                                perIterationTravelTimes[iteration] = timeAtTargetThisStop;
+                                targetEverReached = true;
                             }
+                        } else {
+                            perIterationResults[iteration] = true;
+                            targetEverReached = true;
                         }
                     }
-                    return true;
-                });
+                }
             }
 
             if (saveTravelTimes) travelTimeReducer.accept(targetIdx, perIterationTravelTimes);
-            else if (targetEverReached[0]) reducer.accept(targetIdx, perIterationResults);
+            else if (targetEverReached) reducer.accept(targetIdx, perIterationResults);
         }
-
-        long totalTimeMillis = System.currentTimeMillis() - startTimeMillis;
-        LOG.info("Propagating {} iterations from {} stops to {} targets took {}s",
-                travelTimesToStopsEachIteration.length,
-                travelTimesToStopsEachIteration[0].length,
-                targets.size(),
-                totalTimeMillis / 1000d
-                );
     }
 
     public void propagate (Reducer reducer) {
@@ -259,6 +259,17 @@ public class ProfileRequest implements Serializable, Cloneable {
      */
     public int monteCarloDraws = 220;
 
+    /**
+     * Number of consecutive departure minutes over which each Monte Carlo draw keeps the same randomized frequency
+     * schedule. With the default of 1, every minute gets fresh draws, each searched from scratch on top of the scheduled
+     * search. With a longer window, each draw is carried from one minute to the next as a range-RAPTOR search (which is
+     * valid because its schedule does not change), so only stops improved by the earlier departure are re-explored.
+     * This makes the frequency search much faster on frequency-heavy networks, at the cost of the draws in neighboring
+     * minutes of a window no longer being independent, so more minutes are needed for the same Monte Carlo error.
+     * Regional analyses bootstrap the draws of each window together (see GridComputer.computeBootstrapWeights).
+     */
+    public int frequencyDrawWindowMinutes = 1;
+
     public boolean isProfile() {
         return profile;
     }
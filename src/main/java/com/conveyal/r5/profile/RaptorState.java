@@ -12,6 +12,12 @@ import java.util.BitSet;
  * frequency searches. Note that this represents the _entire_ state of the RAPTOR search, rather than the state at
  * a particular vertex, as is the case with State objects in other search algorithms we have.
  *
+ * A RaptorState can be created with or without path tracking. Without path tracking, only the arrays needed to compute
+ * travel times to stops (plus the patterns used to reach each stop, which are used to avoid reboarding the same pattern)
+ * are allocated, which more than halves the memory used by each state and the cost of copying it. This is what
+ * FastRaptorWorker uses unless it has been asked to save all states for path reconstruction. The path-only arrays
+ * (marked below) are null when paths are not tracked.
+ *
  * @author mattwigway
  */
 public class RaptorState {
@@ -28,14 +34,14 @@ public class RaptorState {
     public int[] bestTimes;
 
     /**
-     * wait time for transit, parallel to bestTimes
+     * wait time for transit, parallel to bestTimes. Path tracking only.
      * Deprecated because FastRaptorWorker does not need separate wait times for bestTimes and bestNonTransferTimes.
      */
     @Deprecated
     public int[] waitTime;
 
     /**
-     * in-vehicle travel time, parallel to bestTimes
+     * in-vehicle travel time, parallel to bestTimes. Path tracking only.
      * Deprecated because FastRaptorWorker does not need separate in vehicle times for bestTimes and bestNonTransferTimes.
      */
     @Deprecated
@@ -44,10 +50,10 @@ public class RaptorState {
     /** The best times for reaching stops via transit rather than via a transfer from another stop */
     public int[] bestNonTransferTimes;
 
-    /** cumulative wait time for transit, parallel to bestNonTransferTimes */
+    /** cumulative wait time for transit, parallel to bestNonTransferTimes. Path tracking only. */
     public int[] nonTransferWaitTime;
 
-    /** cumulative in-vehicle travel time, parallel to bestNonTransferTimes */
+    /** cumulative in-vehicle travel time, parallel to bestNonTransferTimes. Path tracking only. */
     public int[] nonTransferInVehicleTravelTime;
 
     /**
@@ -65,7 +71,7 @@ public class RaptorState {
     /** The stop the previous pattern was boarded at */
     public int[] previousStop;
 
-    /** If this stop is optimally reached via a transfer, the stop we transferred from */
+    /** If this stop is optimally reached via a transfer, the stop we transferred from. Path tracking only. */
     public int[] transferStop;
 
     /** Stops touched by transit search */
@@ -77,6 +83,9 @@ public class RaptorState {
     /** Maximum duration of trips stored by this RaptorState */
     public int maxDurationSeconds;
 
+    /** Whether this state allocates and maintains the arrays needed to reconstruct paths, wait and in-vehicle times. */
+    public final boolean trackPaths;
+
     @Deprecated
     public RaptorState(int nStops) {
         this(nStops, 7200);
@@ -84,6 +93,15 @@ public class RaptorState {
 
     /** create a RaptorState for a network with a particular number of stops, and a given maximum duration */
     public RaptorState (int nStops, int maxDurationSeconds) {
+        this(nStops, maxDurationSeconds, true);
+    }
+
+    /**
+     * create a RaptorState for a network with a particular number of stops, and a given maximum duration, optionally
+     * without the arrays that are only needed for path reconstruction.
+     */
+    public RaptorState (int nStops, int maxDurationSeconds, boolean trackPaths) {
+        this.trackPaths = trackPaths;
         this.bestTimes = new int[nStops];
         this.bestNonTransferTimes = new int[nStops];
 
@@ -92,15 +110,19 @@ public class RaptorState {
 
         this.previousPatterns = new int[nStops];
         this.previousStop = new int[nStops];
-        this.transferStop = new int[nStops];
         Arrays.fill(previousPatterns, -1);
         Arrays.fill(previousStop, -1);
-        Arrays.fill(transferStop, -1);
 
-        this.inVehicleTravelTime = new int[nStops];
-        this.waitTime = new int[nStops];
-        this.nonTransferWaitTime = new int[nStops];
-        this.nonTransferInVehicleTravelTime = new int[nStops];
+        if (trackPaths) {
+            this.transferStop = new int[nStops];
+            Arrays.fill(transferStop, -1);
+
+            this.inVehicleTravelTime = new int[nStops];
+            this.waitTime = new int[nStops];
+            this.nonTransferWaitTime = new int[nStops];
+            this.nonTransferInVehicleTravelTime = new int[nStops];
+        }
+
         this.nonTransferStopsTouched = new BitSet(nStops);
         this.bestStopsTouched = new BitSet(nStops);
         this.maxDurationSeconds = maxDurationSeconds;
@@ -110,15 +132,18 @@ public class RaptorState {
      * copy constructor, does not copy touchedStops data
      */
     private RaptorState(RaptorState state) {
+        this.trackPaths = state.trackPaths;
         this.bestTimes = Arrays.copyOf(state.bestTimes, state.bestTimes.length);
         this.bestNonTransferTimes = Arrays.copyOf(state.bestNonTransferTimes, state.bestNonTransferTimes.length);
         this.previousPatterns = Arrays.copyOf(state.previousPatterns, state.previousPatterns.length);
         this.previousStop = Arrays.copyOf(state.previousStop, state.previousStop.length);
-        this.transferStop = Arrays.copyOf(state.transferStop, state.transferStop.length);
-        this.waitTime = Arrays.copyOf(state.waitTime, state.waitTime.length);
-        this.inVehicleTravelTime = Arrays.copyOf(state.inVehicleTravelTime, state.inVehicleTravelTime.length);
-        this.nonTransferWaitTime = Arrays.copyOf(state.nonTransferWaitTime, state.nonTransferWaitTime.length);
-        this.nonTransferInVehicleTravelTime = Arrays.copyOf(state.nonTransferInVehicleTravelTime, state.nonTransferInVehicleTravelTime.length);
+        if (trackPaths) {
+            this.transferStop = Arrays.copyOf(state.transferStop, state.transferStop.length);
+            this.waitTime = Arrays.copyOf(state.waitTime, state.waitTime.length);
+            this.inVehicleTravelTime = Arrays.copyOf(state.inVehicleTravelTime, state.inVehicleTravelTime.length);
+            this.nonTransferWaitTime = Arrays.copyOf(state.nonTransferWaitTime, state.nonTransferWaitTime.length);
+            this.nonTransferInVehicleTravelTime = Arrays.copyOf(state.nonTransferInVehicleTravelTime, state.nonTransferInVehicleTravelTime.length);
+        }
         this.departureTime = state.departureTime;
 
         this.previous = state;
@@ -134,6 +159,32 @@ public class RaptorState {
         return new RaptorState(this);
     }
 
+    /**
+     * Overwrite this state with the contents of another state for the same network, reusing the existing arrays rather
+     * than allocating new ones. Like copy(), this does not copy touchedStops data. The previous state is not changed, so
+     * this can be used to refill a chain of states that has already been linked together. Both states must either track
+     * paths or not.
+     */
+    public void copyFrom (RaptorState state) {
+        System.arraycopy(state.bestTimes, 0, this.bestTimes, 0, state.bestTimes.length);
+        System.arraycopy(state.bestNonTransferTimes, 0, this.bestNonTransferTimes, 0, state.bestNonTransferTimes.length);
+        System.arraycopy(state.previousPatterns, 0, this.previousPatterns, 0, state.previousPatterns.length);
+        System.arraycopy(state.previousStop, 0, this.previousStop, 0, state.previousStop.length);
+        if (trackPaths) {
+            System.arraycopy(state.transferStop, 0, this.transferStop, 0, state.transferStop.length);
+            System.arraycopy(state.waitTime, 0, this.waitTime, 0, state.waitTime.length);
+            System.arraycopy(state.inVehicleTravelTime, 0, this.inVehicleTravelTime, 0, state.inVehicleTravelTime.length);
+            System.arraycopy(state.nonTransferWaitTime, 0, this.nonTransferWaitTime, 0, state.nonTransferWaitTime.length);
+            System.arraycopy(state.nonTransferInVehicleTravelTime, 0, this.nonTransferInVehicleTravelTime, 0, state.nonTransferInVehicleTravelTime.length);
+        }
+        this.departureTime = state.departureTime;
+
+        this.nonTransferStopsTouched.clear();
+        this.bestStopsTouched.clear();
+
+        this.maxDurationSeconds = state.maxDurationSeconds;
+    }
+
     /**
      * Set this state to the min values found in this state or the other passed in (used in Range RAPTOR).
      * Since this is used to progress between rounds, does not copy stopsTouched data.
@@ -144,19 +195,23 @@ public class RaptorState {
             // prefer times from other when breaking tie as other is earlier in RAPTOR search and thus has fewer transfers
             if (other.bestTimes[stop] <= this.bestTimes[stop]) {
                 this.bestTimes[stop] = other.bestTimes[stop];
-                this.transferStop[stop] = other.transferStop[stop];
-                this.inVehicleTravelTime[stop] = other.inVehicleTravelTime[stop];
-                // add in any additional wait at the beginning in the range raptor case.
-                this.waitTime[stop] = other.waitTime[stop] + (other.departureTime - this.departureTime);
+                if (trackPaths) {
+                    this.transferStop[stop] = other.transferStop[stop];
+                    this.inVehicleTravelTime[stop] = other.inVehicleTravelTime[stop];
+                    // add in any additional wait at the beginning in the range raptor case.
+                    this.waitTime[stop] = other.waitTime[stop] + (other.departureTime - this.departureTime);
+                }
             }
 
             if (other.bestNonTransferTimes[stop] <= this.bestNonTransferTimes[stop]) {
                 this.bestNonTransferTimes[stop] = other.bestNonTransferTimes[stop];
                 this.previousPatterns[stop] = other.previousPatterns[stop];
                 this.previousStop[stop] = other.previousStop[stop];
-                this.nonTransferInVehicleTravelTime[stop] = other.nonTransferInVehicleTravelTime[stop];
-                // add in any additional wait at the beginning in the range raptor case.
-                this.nonTransferWaitTime[stop] = other.nonTransferWaitTime[stop] + (other.departureTime - this.departureTime);
+                if (trackPaths) {
+                    this.nonTransferInVehicleTravelTime[stop] = other.nonTransferInVehicleTravelTime[stop];
+                    // add in any additional wait at the beginning in the range raptor case.
+                    this.nonTransferWaitTime[stop] = other.nonTransferWaitTime[stop] + (other.departureTime - this.departureTime);
+                }
             }
         }
     }
@@ -176,37 +231,40 @@ public class RaptorState {
             nonTransferStopsTouched.set(stop);
             previousPatterns[stop] = fromPattern;
             previousStop[stop] = fromStop;
+            optimal = true;
+
+            // wait and in-vehicle times are only needed to reconstruct paths
+            if (trackPaths) {
+                // wait time is not stored after transfers, so copy from pre-transfer
+                int totalWaitTime, totalInVehicleTime;
 
-            // wait time is not stored after transfers, so copy from pre-transfer
-            int totalWaitTime, totalInVehicleTime;
-
-            if (previous == null) {
-                // first round, there is no previous wait time or in vehicle time
-                totalWaitTime = waitTime;
-                totalInVehicleTime = inVehicleTime;
-            } else {
-                if (previous.transferStop[fromStop] != -1) {
-                    // previous stop is optimally reached via a transfer, so grab the wait and in vehicle time from
-                    // the stop we transferred from. Otherwise we'll be grabbing the wait time to get to the board stop
-                    // on a vehicle, which may be impossible at this round or may simply take longer.
-                    int preTransferStop = previous.transferStop[fromStop];
-                    totalWaitTime = previous.nonTransferWaitTime[preTransferStop] + waitTime;
-                    totalInVehicleTime = previous.nonTransferInVehicleTravelTime[preTransferStop] + inVehicleTime;
+                if (previous == null) {
+                    // first round, there is no previous wait time or in vehicle time
+                    totalWaitTime = waitTime;
+                    totalInVehicleTime = inVehicleTime;
                 } else {
-                    // the stop we boarded at was not the result of a transfer from another stop, grab the cumulative
-                    // wait time from that stop
-                    totalWaitTime = previous.nonTransferWaitTime[fromStop] + waitTime;
-                    totalInVehicleTime = previous.nonTransferInVehicleTravelTime[fromStop] + inVehicleTime;
+                    if (previous.transferStop[fromStop] != -1) {
+                        // previous stop is optimally reached via a transfer, so grab the wait and in vehicle time from
+                        // the stop we transferred from. Otherwise we'll be grabbing the wait time to get to the board stop
+                        // on a vehicle, which may be impossible at this round or may simply take longer.
+                        int preTransferStop = previous.transferStop[fromStop];
+                        totalWaitTime = previous.nonTransferWaitTime[preTransferStop] + waitTime;
+                        totalInVehicleTime = previous.nonTransferInVehicleTravelTime[preTransferStop] + inVehicleTime;
+                    } else {
+                        // the stop we boarded at was not the result of a transfer from another stop, grab the cumulative
+                        // wait time from that stop
+                        totalWaitTime = previous.nonTransferWaitTime[fromStop] + waitTime;
+                        totalInVehicleTime = previous.nonTransferInVehicleTravelTime[fromStop] + inVehicleTime;
+                    }
                 }
-            }
 
-            if (totalInVehicleTime + totalWaitTime > time - departureTime) {
-                LOG.error("Wait and travel time greater than total time.");
-            }
+                if (totalInVehicleTime + totalWaitTime > time - departureTime) {
+                    LOG.error("Wait and travel time greater than total time.");
+                }
 
-            nonTransferWaitTime[stop] = totalWaitTime;
-            nonTransferInVehicleTravelTime[stop] = totalInVehicleTime;
-            optimal = true;
+                nonTransferWaitTime[stop] = totalWaitTime;
+                nonTransferInVehicleTravelTime[stop] = totalInVehicleTime;
+            }
         }
 
         // nonTransferTimes upper bounds bestTimes so we don't need to update wait time and in-vehicle time here, if we
@@ -214,10 +272,12 @@ public class RaptorState {
         if (time < bestTimes[stop]) {
             bestTimes[stop] = time;
             bestStopsTouched.set(stop);
-            if (transfer) {
-                transferStop[stop] = fromStop;
-            } else {
-                transferStop[stop] = -1;
+            if (trackPaths) {
+                if (transfer) {
+                    transferStop[stop] = fromStop;
+                } else {
+                    transferStop[stop] = -1;
+                }
             }
             optimal = true;
         }
@@ -225,7 +285,7 @@ public class RaptorState {
         return optimal;
     }
 
-    /** dump this as a string */
+    /** dump this as a string. This requires that paths are tracked. */
     public String dump (int stop) {
         Path p = new Path(this, stop);
 
@@ -266,6 +326,7 @@ public class RaptorState {
         }
 
         // handle updating wait
+        if (!trackPaths) return;
         for (int stop = 0; stop < this.bestTimes.length; stop++) {
             if (this.previousPatterns[stop] > -1) {
                 this.nonTransferWaitTime[stop] += previousDepartureTime - departureTime;
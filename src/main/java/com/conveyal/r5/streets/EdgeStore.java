@@ -152,6 +152,11 @@ public class EdgeStore implements Serializable {
 
     private long generatedOSMID = 1;
 
+    /** @return the next number to use in generating a negative OSM ID for an edge that does not come from OSM. */
+    public long getGeneratedOSMID () {
+        return generatedOSMID;
+    }
+
     public EdgeStore (VertexStore vertexStore, StreetLayer layer, int initialSize) {
         this.vertexStore = vertexStore;
         this.layer = layer;
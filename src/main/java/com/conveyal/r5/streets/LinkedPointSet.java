@@ -71,11 +71,22 @@ public class LinkedPointSet implements Serializable {
     /** For each transit stop, the distances to nearby PointSet points as packed (point_index, distance) pairs. */
     public List<int[]> stopToPointDistanceTables;
 
-    /**
-     * For each pointset point, the stops reachable without using transit, as a map from StopID to distance in millimeters.
-     * Inverted version of stopToPointDistanceTables.
+    /*
+     * For each pointset point, the stops reachable without using transit and the distances to them in millimeters.
+     * This is the inverted version of stopToPointDistanceTables, stored in compressed sparse row form rather than as one
+     * map per point, as there can be millions of points with dozens of stops each. The stops near point p are
+     * pointToStopStops[i] for pointToStopOffsets[p] <= i < pointToStopOffsets[p + 1], in increasing order of stop index,
+     * and the distance to each is pointToStopDistances_mm[i].
      */
-    public transient List<TIntIntMap> pointToStopDistanceTables;
+
+    /** For each point, the index of its first entry in pointToStopStops. Has one extra element at the end. */
+    public transient int[] pointToStopOffsets;
+
+    /** The stops near each point, see pointToStopOffsets. */
+    public transient int[] pointToStopStops;
+
+    /** The distance in millimeters to each stop in pointToStopStops. */
+    public transient int[] pointToStopDistances_mm;
 
     /** It is preferred to specify a mode when linking TODO remove this. */
     @Deprecated
@@ -150,6 +161,21 @@ public class LinkedPointSet implements Serializable {
     }
 
 
+    /**
+     * Construct a LinkedPointSet from linkage arrays that were computed earlier, e.g. read back from disk by
+     * LinkageFileCache. No linking is performed.
+     */
+    public LinkedPointSet(PointSet pointSet, StreetLayer streetLayer, StreetMode streetMode, int[] edges,
+                          int[] distances0_mm, int[] distances1_mm, List<int[]> stopToPointDistanceTables) {
+        this.pointSet = pointSet;
+        this.streetLayer = streetLayer;
+        this.streetMode = streetMode;
+        this.edges = edges;
+        this.distances0_mm = distances0_mm;
+        this.distances1_mm = distances1_mm;
+        this.stopToPointDistanceTables = stopToPointDistanceTables;
+    }
+
     /**
      * Construct a new LinkedPointSet for a grid that falls entirely within an existing grid LinkedPointSet.
      * @param sourceLinkage a LinkedPointSet whose PointSet must be a WebMercatorGridPointset
@@ -385,28 +411,46 @@ public class LinkedPointSet implements Serializable {
         counter.done();
     }
 
+    /**
+     * Invert the stop to point distance tables into the compressed sparse row tables from points to stops. This makes
+     * two passes over the stop to point tables: one to count the stops near each point and one to fill in the stops and
+     * distances. Stops are visited in order, so the stops for each point end up sorted by stop index.
+     */
     public synchronized void makePointToStopDistanceTablesIfNeeded () {
-        if (pointToStopDistanceTables != null) return;
-
-        synchronized (this) {
-            // check again in case they were built while waiting on this synchronized block
-            if (pointToStopDistanceTables != null) return;
-            if (stopToPointDistanceTables == null) makeStopToPointDistanceTables(null);
-            TIntIntMap[] result = new TIntIntMap[size()];
-
-            for (int stop = 0; stop < stopToPointDistanceTables.size(); stop++) {
-                int[] stopToPointDistanceTable = stopToPointDistanceTables.get(stop);
-                if (stopToPointDistanceTable == null) continue;
-
-                for (int idx = 0; idx < stopToPointDistanceTable.length; idx += 2) {
-                    int point = stopToPointDistanceTable[idx];
-                    int distance = stopToPointDistanceTable[idx + 1];
-                    if (result[point] == null) result[point] = new TIntIntHashMap();
-                    result[point].put(stop, distance);
-                }
+        if (pointToStopOffsets != null) return;
+        if (stopToPointDistanceTables == null) makeStopToPointDistanceTables(null);
+
+        int nPoints = size();
+        int[] offsets = new int[nPoints + 1];
+        for (int[] stopToPointDistanceTable : stopToPointDistanceTables) {
+            if (stopToPointDistanceTable == null) continue;
+            for (int idx = 0; idx < stopToPointDistanceTable.length; idx += 2) {
+                offsets[stopToPointDistanceTable[idx] + 1]++;
+            }
+        }
+        // cumulative sum, so that offsets[p] is the index of the first entry for point p
+        for (int point = 0; point < nPoints; point++) offsets[point + 1] += offsets[point];
+
+        int[] stops = new int[offsets[nPoints]];
+        int[] distances = new int[offsets[nPoints]];
+        // the next free slot for each point
+        int[] next = Arrays.copyOf(offsets, nPoints);
+        for (int stop = 0; stop < stopToPointDistanceTables.size(); stop++) {
+            int[] stopToPointDistanceTable = stopToPointDistanceTables.get(stop);
+            if (stopToPointDistanceTable == null) continue;
+
+            for (int idx = 0; idx < stopToPointDistanceTable.length; idx += 2) {
+                int slot = next[stopToPointDistanceTable[idx]]++;
+                stops[slot] = stop;
+                distances[slot] = stopToPointDistanceTable[idx + 1];
             }
-            pointToStopDistanceTables = Arrays.asList(result);
         }
+
+        pointToStopStops = stops;
+        pointToStopDistances_mm = distances;
+        // set last, this is what we check to see if the tables have been built
+        pointToStopOffsets = offsets;
+        LOG.info("Made point to stop distance tables with {} entries for {} points.", stops.length, nPoints);
     }
 
 
@@ -42,7 +42,9 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
 
@@ -113,7 +115,8 @@ public class StreetLayer implements Serializable, Cloneable {
     /** Envelope of this street layer, in decimal degrees (floating, not fixed-point) */
     public Envelope envelope = new Envelope();
 
-    TLongIntMap vertexIndexForOsmNode = new TLongIntHashMap(100_000, 0.75f, -1, -1);
+    /** Map from OSM node IDs to the street vertices created for them, null once the network is built unless saved */
+    public TLongIntMap vertexIndexForOsmNode = new TLongIntHashMap(100_000, 0.75f, -1, -1);
 
     // Initialize these when we have an estimate of the number of expected edges.
     public VertexStore vertexStore = new VertexStore(100_000);
@@ -151,6 +154,19 @@ public class StreetLayer implements Serializable, Cloneable {
      */
     public StreetLayer baseStreetLayer = null;
 
+    /**
+     * The checksum of this StreetLayer when it was last computed, which scenario copies that share all of its contents
+     * reuse rather than hashing the same data again. See TransportNetworkChecksum.streetLayer.
+     */
+    public transient volatile Long checksum;
+
+    /**
+     * Routers on this layer that have finished their searches and can be reused, so that searches run once per origin
+     * do not regrow a router's maps every time. There are never more of them than searches that ran at the same time.
+     * Created lazily because transient fields are not initialized when a layer is deserialized. See getRouter.
+     */
+    private transient Queue<StreetRouter> routerPool;
+
     public static final EnumSet<EdgeStore.EdgeFlag> ALL_PERMISSIONS = EnumSet
         .of(EdgeStore.EdgeFlag.ALLOWS_BIKE, EdgeStore.EdgeFlag.ALLOWS_CAR,
             EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN, EdgeStore.EdgeFlag.NO_THRU_TRAFFIC,
@@ -1356,6 +1372,29 @@ public class StreetLayer implements Serializable, Cloneable {
      * saves a comparison and an extra dereference every time we use the edge/vertex stores.
      * TODO check whether this actually affects speed. If not, just wrap the lists in every scenario copy.
      */
+    /**
+     * @return a router on this street layer with all of its parameters at their defaults, reusing one that was given back
+     * with returnRouter if there is one. Routers are not thread safe, so each one is only handed out to one caller.
+     */
+    public StreetRouter getRouter () {
+        StreetRouter router = routerPool().poll();
+        return router == null ? new StreetRouter(this) : router;
+    }
+
+    /**
+     * Give back a router obtained from getRouter once none of its results are needed any more. It is reset here, which
+     * also releases the states of its last search.
+     */
+    public void returnRouter (StreetRouter router) {
+        router.reset();
+        routerPool().add(router);
+    }
+
+    private synchronized Queue<StreetRouter> routerPool () {
+        if (routerPool == null) routerPool = new ConcurrentLinkedQueue<>();
+        return routerPool;
+    }
+
     public StreetLayer scenarioCopy(TransportNetwork newScenarioNetwork, boolean willBeModified) {
         StreetLayer copy = this.clone();
         if (willBeModified) {
@@ -1370,6 +1409,9 @@ public class StreetLayer implements Serializable, Cloneable {
         }
         copy.parentNetwork = newScenarioNetwork;
         copy.baseStreetLayer = this;
+        copy.checksum = null;
+        // Pooled routers route on this layer, not on the copy.
+        copy.routerPool = null;
         return copy;
     }
 
@@ -7,6 +7,7 @@ import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.util.TIntObjectHashMultimap;
+import com.conveyal.r5.util.TIntObjectMinHeap;
 import com.conveyal.r5.util.TIntObjectMultimap;
 import gnu.trove.iterator.TIntIterator;
 import com.conveyal.r5.transit.TransportNetwork;
@@ -27,8 +28,10 @@ import java.util.*;
 
 /**
  * This routes over the street layer of a TransitNetwork.
- * It is a throw-away calculator object that retains routing state and after the search is finished.
+ * It is a calculator object that retains routing state and after the search is finished.
  * Additional functions are called to retrieve the routing results from that state.
+ * An instance can be reused for many searches on the same street layer by calling reset() between them, which avoids
+ * regrowing its internal maps and queue from scratch for every search.
  */
 public class StreetRouter {
 
@@ -114,15 +117,34 @@ public class StreetRouter {
      * the best state at a particular vertex require a left turn onto the split edge; it is important to apply that left
      * turn costs. Even more important is to make sure that the split edge is not the end of a restricted turn; if it is,
      * one must reach the split via an alternate state.
+     *
+     * We take advantage of the fact that we almost always have a single state per edge: states that are not in the
+     * middle of a turn restriction are all comparable with one another, so there is at most one of them at each edge,
+     * and it is kept in this simple map. Only turn-restricted states, which can be incomparable, go in the multimap
+     * turnRestrictedStatesAtEdge. See addState, isDominated and getStateAtEdge.
+     *
+     * This is a hash map rather than an array with one slot per edge because most searches (access, egress and stop
+     * to stop searches limited by time or distance) touch a small neighborhood of a street layer that may have tens of
+     * millions of edges. An array would make every router cost memory proportional to the whole layer for as long as
+     * it is kept for reuse, and allocating one would cost far more than the search itself wherever a router is used
+     * only once. The map only grows to the number of edges a search actually reaches.
      */
-    // TODO we might be able to make this more efficient by taking advantage of the fact that we almost always have a
-    // single state per edge (the only time we don't is when we're in the middle of a turn restriction).
-    TIntObjectMultimap<State> bestStatesAtEdge = new TIntObjectHashMultimap<>();
+    TIntObjectHashMap<State> bestStateAtEdge = new TIntObjectHashMap<>();
+
+    /** The non-dominated states at the end of each edge that are in the middle of turn restrictions. */
+    TIntObjectMultimap<State> turnRestrictedStatesAtEdge = new TIntObjectHashMultimap<>();
 
-    // The sort order of the priority queue uses the specified routing dominance variable.
-    PriorityQueue<State> queue = new PriorityQueue<>(
-            (s0, s1) -> (s0.getRoutingVariable(dominanceVariable) + s0.heuristic) -
-                        (s1.getRoutingVariable(dominanceVariable) + s1.heuristic));
+    /**
+     * The edges at which this search has stored states, so that reset can remove just those entries instead of
+     * clearing every slot of the maps above. An edge may appear twice if it has both kinds of state.
+     */
+    private TIntList touchedEdges = new TIntArrayList();
+
+    /**
+     * The priority queue of states to explore, keyed on the value of the dominance variable plus the A* heuristic.
+     * The keys are computed once when a state is added, rather than every time two states are compared.
+     */
+    TIntObjectMinHeap<State> queue = new TIntObjectMinHeap<>();
 
     // If you set this to a non-negative number, the search will be directed toward the vertex with that index.
     public int toVertex = ALL_VERTICES;
@@ -206,11 +228,11 @@ public class StreetRouter {
     public TIntIntMap getReachedVertices () {
         TIntIntMap result = new TIntIntHashMap();
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
-        bestStatesAtEdge.forEachEntry((eidx, states) -> {
+        getReachedEdges().forEach(eidx -> {
             if (eidx < 0) return true;
 
-            State state = states.stream()
-                    .reduce((s0, s1) -> s0.getRoutingVariable(dominanceVariable) < s1.getRoutingVariable(dominanceVariable) ? s0 : s1).get();
+            State state = getStateAtEdge(eidx);
+            if (state == null) return true;
             e.seek(eidx);
             int vidx = e.getToVertex();
 
@@ -235,11 +257,11 @@ public class StreetRouter {
         TIntObjectMap<State> result = new TIntObjectHashMap<>();
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
         VertexStore.Vertex v = streetLayer.vertexStore.getCursor();
-        bestStatesAtEdge.forEachEntry((eidx, states) -> {
+        getReachedEdges().forEach(eidx -> {
             if (eidx < 0) return true;
 
-            State state = states.stream().reduce((s0, s1) ->
-                    s0.getRoutingVariable(dominanceVariable) < s1.getRoutingVariable(dominanceVariable) ? s0 : s1).get();
+            State state = getStateAtEdge(eidx);
+            if (state == null) return true;
             e.seek(eidx);
             int vidx = e.getToVertex();
             v.seek(vidx);
@@ -256,10 +278,48 @@ public class StreetRouter {
         return result;
     }
 
+    /** @return the indexes of all edges at the end of which there is at least one state. */
+    private TIntSet getReachedEdges () {
+        TIntSet edges = new TIntHashSet();
+        for (TIntIterator it = touchedEdges.iterator(); it.hasNext(); ) {
+            int eidx = it.next();
+            if (bestStateAtEdge.containsKey(eidx) || !turnRestrictedStatesAtEdge.get(eidx).isEmpty()) edges.add(eidx);
+        }
+        return edges;
+    }
+
     public StreetRouter (StreetLayer streetLayer) {
         this.streetLayer = streetLayer;
         // TODO one of two things: 1) don't hardwire drive-on-right, or 2) https://en.wikipedia.org/wiki/Dagen_H
         this.turnCostCalculator = new TurnCostCalculator(streetLayer, true);
+        // Entries are removed one by one on reset, which should not shrink the map and make the next search regrow it.
+        bestStateAtEdge.setAutoCompactionFactor(0);
+    }
+
+    /**
+     * Return this router to the state it was in when it was constructed, so it can be reused for another search on the
+     * same street layer. All search parameters are set back to their defaults and all results are discarded, but the
+     * internal maps and queue keep their capacity. Only the entries for the edges the last search touched are removed,
+     * so a reset takes time proportional to the size of that search, not to the largest search this router has done.
+     */
+    public void reset () {
+        clearStates();
+        transitStopSearch = false;
+        flagSearch = null;
+        maxTransitStops = PointToPointQuery.MAX_ACCESS_STOPS;
+        maxVertices = 20;
+        distanceLimitMeters = 0;
+        timeLimitSeconds = 0;
+        dominanceVariable = State.RoutingVariable.WEIGHT;
+        toVertex = ALL_VERTICES;
+        profileRequest = new ProfileRequest();
+        streetMode = StreetMode.WALK;
+        routingVisitor = null;
+        originSplit = null;
+        destinationSplit = null;
+        bestValueAtDestination = Integer.MAX_VALUE;
+        maxAbsOriginLat = Integer.MIN_VALUE;
+        previousRouter = null;
     }
 
     /**
@@ -276,8 +336,7 @@ public class StreetRouter {
             return false;
         }
         originSplit = split;
-        bestStatesAtEdge.clear();
-        queue.clear();
+        clearStates();
         // from vertex is at end of back edge. Set edge correctly so that turn restrictions/costs are applied correctly
         // at the origin.
         State startState0 = new State(split.vertex0, split.edge + 1, streetMode);
@@ -300,19 +359,15 @@ public class StreetRouter {
         streetLayer.edgeStore.startTurnRestriction(streetMode, profileRequest.reverseSearch, startState0);
         streetLayer.edgeStore.startTurnRestriction(streetMode, profileRequest.reverseSearch, startState1);
 
-        // NB not adding to bestStates, as it will be added when it comes out of the queue
-        queue.add(startState0);
-        queue.add(startState1);
-        bestStatesAtEdge.put(startState0.backEdge, startState0);
-        bestStatesAtEdge.put(startState1.backEdge, startState1);
+        addState(startState0);
+        addState(startState1);
 
         maxAbsOriginLat = originSplit.fixedLat;
         return true;
     }
 
     public void setOrigin (int fromVertex) {
-        bestStatesAtEdge.clear();
-        queue.clear();
+        clearStates();
 
         // sets maximal absolute origin latitude used for goal direction heuristic
         VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(fromVertex);
@@ -320,7 +375,7 @@ public class StreetRouter {
 
         // NB backEdge of -1 is no problem as it is a special case that indicates that the origin was a vertex.
         State startState = new State(fromVertex, -1, streetMode);
-        queue.add(startState);
+        queue.add(startState, 0);
     }
 
     /**
@@ -335,8 +390,7 @@ public class StreetRouter {
      * @param legMode What origin search is this bike share or P+R
      */
     public void setOrigin(TIntObjectMap<State> previousStates, int switchTime, int switchCost, LegMode legMode) {
-        bestStatesAtEdge.clear();
-        queue.clear();
+        clearStates();
         //Maximal origin latitude is used in goal direction heuristic.
         final int[] maxOriginLatArr = { Integer.MIN_VALUE };
 
@@ -352,8 +406,7 @@ public class StreetRouter {
             }
             state.distance = previousState.distance;
             if (!isDominated(state)) {
-                bestStatesAtEdge.put(state.backEdge, state);
-                queue.add(state);
+                addState(state);
                 VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(state.vertex);
                 int deltaLatFixed = vertex.getFixedLat();
                 maxOriginLatArr[0] = Math.max(maxOriginLatArr[0], Math.abs(deltaLatFixed));
@@ -396,7 +449,6 @@ public class StreetRouter {
         //This is needed otherwise timeLimitSeconds gets changed and
         // on next call of route on same streetRouter wrong warnings are returned
         // (since timeLimitSeconds is MAX_INTEGER not 0)
-        // FIXME this class is supposed to be throw-away, should we be reusing instances at all? change this variable name to be clearer.
         final int tmpTimeLimitSeconds;
 
         // Set up goal direction.
@@ -494,7 +546,7 @@ public class StreetRouter {
             // by traversing the same edge. Check that the state coming off the queue has not been dominated before
             // exploring it. States at the origin may have their backEdge set to a negative number to indicate that
             // they have no backEdge (were not produced by traversing an edge). Skip the check for those states.
-            if (s0.backEdge >= 0 && !bestStatesAtEdge.get(s0.backEdge).contains(s0)) continue;
+            if (s0.backEdge >= 0 && !isBestState(s0)) continue;
 
             // If the search has reached the destination, the state coming off the queue is the best way to get there.
             if (toVertex > 0 && toVertex == s0.vertex) break;
@@ -540,8 +592,7 @@ public class StreetRouter {
                     if (!isDominated(s1)) {
                         // Calculate the heuristic (which involves a square root) only when the state is retained.
                         s1.heuristic = calcHeuristic(s1);
-                        bestStatesAtEdge.put(s1.backEdge, s1);
-                        queue.add(s1);
+                        addState(s1);
                     }
                 }
                 return true; // Iteration over the edge list should continue.
@@ -554,15 +605,52 @@ public class StreetRouter {
         LOG.debug("Routing took {} msec", routingTimeMsec);
     }
 
+    private void clearStates () {
+        for (TIntIterator it = touchedEdges.iterator(); it.hasNext(); ) {
+            int eidx = it.next();
+            bestStateAtEdge.remove(eidx);
+            turnRestrictedStatesAtEdge.removeAll(eidx);
+        }
+        touchedEdges.resetQuick();
+        queue.clear();
+    }
+
+    /**
+     * Record a new non-dominated state at the end of its back edge and add it to the priority queue. A state that is
+     * not in a turn restriction replaces any existing such state at the same edge, which isDominated has established
+     * it dominates.
+     */
+    private void addState (State state) {
+        if (state.turnRestrictions == null) {
+            if (bestStateAtEdge.put(state.backEdge, state) == null) touchedEdges.add(state.backEdge);
+        } else {
+            if (!turnRestrictedStatesAtEdge.containsKey(state.backEdge)) touchedEdges.add(state.backEdge);
+            turnRestrictedStatesAtEdge.put(state.backEdge, state);
+        }
+        queue.add(state, state.getRoutingVariable(dominanceVariable) + state.heuristic);
+    }
+
+    /** @return whether the given state is still one of the non-dominated states at the end of its back edge. */
+    private boolean isBestState (State state) {
+        if (state.turnRestrictions == null) return bestStateAtEdge.get(state.backEdge) == state;
+        else return turnRestrictedStatesAtEdge.get(state.backEdge).contains(state);
+    }
+
     /**
      * Given a new state, check whether it is dominated by any existing state that resulted from traversing the
      * same edge. Side effect: Boot out any existing states that are dominated by the new one.
      */
     private boolean isDominated(State newState) {
-        // States in turn restrictions are incomparable (don't dominate and aren't dominated by other states)
-        // If the new state is not in a turn restriction, check whether it dominates any existing states and remove them.
+        if (newState.turnRestrictions == null) {
+            // The common case. States not in a turn restriction are only comparable with one another, and there is
+            // at most one of them per edge. If the new state beats it, addState will replace it.
+            State existingState = bestStateAtEdge.get(newState.backEdge);
+            return existingState != null && dominates(existingState, newState);
+        }
+        // States in turn restrictions are incomparable (don't dominate and aren't dominated by other states), except
+        // with other states having exactly the same turn restrictions.
         // Multimap returns empty list for missing keys.
-        for (Iterator<State> it = bestStatesAtEdge.get(newState.backEdge).iterator(); it.hasNext(); ) {
+        for (Iterator<State> it = turnRestrictedStatesAtEdge.get(newState.backEdge).iterator(); it.hasNext(); ) {
             State existingState = it.next();
             if (dominates(existingState, newState)) {
                 // If any existing state dominates the new one, bail out early and declare the new state dominated.
@@ -636,13 +724,27 @@ public class StreetRouter {
      * There can be more than one state at the end of an edge due to turn restrictions
      */
     public State getStateAtEdge (int edgeIndex) {
-        Collection<State> states = bestStatesAtEdge.get(edgeIndex);
-        if (states.isEmpty()) {
-            return null; // Unreachable
-        }
+        State ret = bestStateAtEdge.get(edgeIndex);
         // Get the lowest weight, even if it's in the middle of a turn restriction.
-        return states.stream().reduce((s0, s1) ->
-                s0.getRoutingVariable(dominanceVariable) < s1.getRoutingVariable(dominanceVariable) ? s0 : s1).get();
+        if (turnRestrictedStatesAtEdge.containsKey(edgeIndex)) {
+            for (State state : turnRestrictedStatesAtEdge.get(edgeIndex)) {
+                if (ret == null || ret.getRoutingVariable(dominanceVariable) > state.getRoutingVariable(dominanceVariable)) {
+                    ret = state;
+                }
+            }
+        }
+        return ret; // null if unreachable
+    }
+
+    /** @return all the non-dominated states at the end of the given edge, which may be empty. */
+    private Collection<State> getStatesAtEdge (int edgeIndex) {
+        State state = bestStateAtEdge.get(edgeIndex);
+        Collection<State> turnRestrictedStates = turnRestrictedStatesAtEdge.get(edgeIndex);
+        if (state == null) return turnRestrictedStates;
+        if (turnRestrictedStates.isEmpty()) return Collections.singletonList(state);
+        List<State> states = new ArrayList<>(turnRestrictedStates);
+        states.add(state);
+        return states;
     }
 
     /**
@@ -702,7 +804,7 @@ public class StreetRouter {
         }
 
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             // NB this needs a state to copy turn restrictions into. We then don't use that state, which is fine because
             // we don't need the turn restrictions any more because we're at the end of the search
             states.stream().filter(s -> e.canTurnFrom(s, new State(-1, split.edge, s), profileRequest.reverseSearch))
@@ -734,7 +836,7 @@ public class StreetRouter {
         }
 
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             states.stream().filter(s -> e.canTurnFrom(s, new State(-1, split.edge + 1, s), profileRequest.reverseSearch))
                     .map(s -> {
                         State ret = new State(-1, split.edge + 1, s);
@@ -0,0 +1,140 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.StreetLayer;
+import com.google.common.cache.Weigher;
+import gnu.trove.list.TIntList;
+import gnu.trove.map.TIntIntMap;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Estimates how much memory a scenario network retains beyond the base network it was copied from, in kilobytes, so
+ * that a cache of scenario networks can be bounded by memory rather than by the number of scenarios.
+ *
+ * Scenario networks are copy-on-write: most of their contents are shared with the base network, and only the
+ * structures that a scenario changed are held by the scenario network alone. We count only those, by comparing
+ * references with the base network. The sizes are rough (object headers and hash table load factors are approximated
+ * with constants) but they are proportional to the real size, which is all that is needed to choose what to evict.
+ */
+public class ScenarioNetworkWeigher implements Weigher<String, TransportNetwork> {
+
+    private static final int REFERENCE_BYTES = 8;
+    private static final int INT_BYTES = 4;
+    private static final int OBJECT_OVERHEAD_BYTES = 16;
+    /** A Trove int-int hash map entry is two ints, in tables that are kept at most half full */
+    private static final int HASH_ENTRY_BYTES = 4 * INT_BYTES;
+    /** Edges are stored in parallel arrays, around a dozen ints and longs per pair of edges */
+    private static final int EDGE_BYTES = 64;
+    private static final int VERTEX_BYTES = 32;
+    /** Each vertex has a small Trove list of incoming and of outgoing edges */
+    private static final int EDGE_LIST_BYTES = 2 * (OBJECT_OVERHEAD_BYTES + 4 * INT_BYTES);
+
+    private final TransportNetwork baseNetwork;
+
+    public ScenarioNetworkWeigher (TransportNetwork baseNetwork) {
+        this.baseNetwork = baseNetwork;
+    }
+
+    @Override
+    public int weigh (String scenarioId, TransportNetwork scenarioNetwork) {
+        long kilobytes = estimateRetainedBytes(scenarioNetwork, baseNetwork) / 1024;
+        // Guava weights are ints, and every entry must weigh something for the cache to be bounded by count as well.
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, kilobytes));
+    }
+
+    /** @return the approximate number of bytes held by the scenario network and not shared with the base network. */
+    public static long estimateRetainedBytes (TransportNetwork scenarioNetwork, TransportNetwork baseNetwork) {
+        return estimateRetainedBytes(scenarioNetwork.transitLayer, baseNetwork.transitLayer) +
+                estimateRetainedBytes(scenarioNetwork.streetLayer, baseNetwork.streetLayer) +
+                estimateRetainedBytes(scenarioNetwork.linkedGridPointSet, baseNetwork.linkedGridPointSet);
+    }
+
+    private static long estimateRetainedBytes (TransitLayer transit, TransitLayer base) {
+        long bytes = 0;
+
+        // The per-stop lists are copied when a scenario modifies the transit layer, and indexes are rebuilt.
+        if (transit.stopIdForIndex != base.stopIdForIndex) {
+            bytes += 8L * transit.getStopCount() * REFERENCE_BYTES;
+        }
+        if (transit.patternsForStop != base.patternsForStop && transit.patternsForStop != null) {
+            for (TIntList patterns : transit.patternsForStop) {
+                bytes += OBJECT_OVERHEAD_BYTES + patterns.size() * INT_BYTES;
+            }
+        }
+
+        // Distance tables and transfers for stops that were created or rebuilt by the scenario.
+        for (int s = 0; s < transit.stopToVertexDistanceTables.size(); s++) {
+            TIntIntMap table = transit.stopToVertexDistanceTables.get(s);
+            if (table != null && (s >= base.stopToVertexDistanceTables.size() ||
+                    table != base.stopToVertexDistanceTables.get(s))) {
+                bytes += OBJECT_OVERHEAD_BYTES + table.size() * HASH_ENTRY_BYTES;
+            }
+        }
+        for (int s = base.transfersForStop.size(); s < transit.transfersForStop.size(); s++) {
+            bytes += OBJECT_OVERHEAD_BYTES + transit.transfersForStop.get(s).size() * INT_BYTES;
+        }
+
+        // Trip patterns and schedules that were created or modified by the scenario.
+        if (transit.tripPatterns != base.tripPatterns) {
+            Set<TripPattern> basePatterns = identitySet(base.tripPatterns);
+            Set<TripSchedule> baseSchedules = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (TripPattern pattern : base.tripPatterns) baseSchedules.addAll(pattern.tripSchedules);
+
+            for (TripPattern pattern : transit.tripPatterns) {
+                if (basePatterns.contains(pattern)) continue;
+                bytes += OBJECT_OVERHEAD_BYTES + pattern.stops.length * 4L * INT_BYTES +
+                        pattern.tripSchedules.size() * REFERENCE_BYTES;
+                for (TripSchedule schedule : pattern.tripSchedules) {
+                    if (baseSchedules.contains(schedule)) continue;
+                    bytes += OBJECT_OVERHEAD_BYTES + (schedule.arrivals.length + schedule.departures.length) * INT_BYTES;
+                    if (schedule.headwaySeconds != null) {
+                        bytes += 3L * schedule.headwaySeconds.length * INT_BYTES;
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static long estimateRetainedBytes (StreetLayer streets, StreetLayer base) {
+        if (streets.edgeStore == base.edgeStore) return 0;
+        long bytes = (long) (streets.edgeStore.nEdges() - base.edgeStore.nEdges()) * EDGE_BYTES +
+                (long) (streets.vertexStore.getVertexCount() - base.vertexStore.getVertexCount()) * VERTEX_BYTES;
+        // The edge lists are rebuilt for every vertex when a scenario changes the streets.
+        if (streets.outgoingEdges != base.outgoingEdges) {
+            bytes += (long) streets.vertexStore.getVertexCount() * EDGE_LIST_BYTES;
+        }
+        return bytes;
+    }
+
+    private static long estimateRetainedBytes (LinkedPointSet linkage, LinkedPointSet base) {
+        if (linkage == null || linkage == base) return 0;
+        // Three ints per point, plus any stop-to-point tables that are not shared with the base linkage
+        long bytes = 3L * linkage.edges.length * INT_BYTES;
+        // The point-to-stop tables are derived from the stop-to-point tables, and are never shared. Their offsets are
+        // set last when they are built, so check those first.
+        if (linkage.pointToStopOffsets != null) {
+            bytes += (long) (linkage.pointToStopOffsets.length + linkage.pointToStopStops.length +
+                    linkage.pointToStopDistances_mm.length) * INT_BYTES;
+        }
+        List<int[]> tables = linkage.stopToPointDistanceTables;
+        for (int s = 0; s < tables.size(); s++) {
+            int[] table = tables.get(s);
+            if (table != null && (base == null || s >= base.stopToPointDistanceTables.size() ||
+                    table != base.stopToPointDistanceTables.get(s))) {
+                bytes += OBJECT_OVERHEAD_BYTES + table.length * INT_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    private static <T> Set<T> identitySet (List<T> items) {
+        Set<T> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        set.addAll(items);
+        return set;
+    }
+}
@@ -16,6 +16,10 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * TODO optimization: combine TransferFinder with stop-to-vertex distance table builder.
@@ -48,6 +52,8 @@ public class TransferFinder {
         int unconnectedParkRides = 0;
         int parkRidesWithoutStops = 0;
         LOG.info("Finding closest stops to P+R for {} P+Rs", this.streetLayer.parkRideLocationsMap.size());
+        // Reuse one router for all the searches. The states it returns are not modified when it is reset.
+        StreetRouter streetRouter = new StreetRouter(streetLayer);
         for (ParkRideParking parkRideParking : this.streetLayer.parkRideLocationsMap.valueCollection()) {
             int originStreetVertex;
             if (parkRideParking.id == null || parkRideParking.id < 0) {
@@ -57,7 +63,7 @@ public class TransferFinder {
                 originStreetVertex = parkRideParking.id;
             }
 
-            StreetRouter streetRouter = new StreetRouter(streetLayer);
+            streetRouter.reset();
             streetRouter.distanceLimitMeters = TransitLayer.PARKRIDE_DISTANCE_LIMIT;
             streetRouter.setOrigin(originStreetVertex);
             streetRouter.dominanceVariable = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
@@ -99,27 +105,42 @@ public class TransferFinder {
         // We look at any existing list of transfers and do enough iterations to make it as long as the list of stops.
         int firstStopIndex = transfersForStop.size();
         LOG.info("Finding transfers through the street network from {} stops...", transitLayer.getStopCount() - transfersForStop.size());
-        // TODO Parallelize with streams. See distance table generation.
+        // Run the street searches from all the stops in parallel, reusing routers from a pool as when building
+        // distance tables. This yields the distances to the reached stops in stop order, or null for unlinked stops.
+        Queue<StreetRouter> routers = new ConcurrentLinkedQueue<>();
+        List<TIntIntMap> distancesToReachedStopsForStop = IntStream.range(firstStopIndex, transitLayer.getStopCount())
+                .parallel()
+                .mapToObj(s -> {
+                    // From each stop, run a street search looking for other transit stops.
+                    int originStreetVertex = transitLayer.streetVertexForStop.get(s);
+                    if (originStreetVertex == -1) return null;
+
+                    StreetRouter streetRouter = routers.poll();
+                    if (streetRouter == null) streetRouter = new StreetRouter(streetLayer);
+                    streetRouter.reset();
+                    streetRouter.distanceLimitMeters = TransitLayer.TRANSFER_DISTANCE_LIMIT;
+
+                    streetRouter.setOrigin(originStreetVertex);
+                    streetRouter.dominanceVariable = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+
+                    streetRouter.route();
+                    TIntIntMap distancesToReachedStops = streetRouter.getReachedStops();
+                    routers.add(streetRouter);
+                    // FIXME the following is technically incorrect, measure that it's actually improving calculation speed
+                    retainClosestStopsOnPatterns(distancesToReachedStops);
+                    return distancesToReachedStops;
+                }).collect(Collectors.toList());
+
+        // Record the transfers sequentially in stop order, so the result is the same as a serial search.
         for (int s = firstStopIndex; s < transitLayer.getStopCount(); s++) {
-            // From each stop, run a street search looking for other transit stops.
-            int originStreetVertex = transitLayer.streetVertexForStop.get(s);
-            if (originStreetVertex == -1) {
+            TIntIntMap distancesToReachedStops = distancesToReachedStopsForStop.get(s - firstStopIndex);
+            if (distancesToReachedStops == null) {
                 unconnectedStops++;
                 // Every iteration must add an array to transfersForStop to maintain the right length.
                 transfersForStop.add(EMPTY_INT_LIST);
                 continue;
             }
 
-            StreetRouter streetRouter = new StreetRouter(streetLayer);
-            streetRouter.distanceLimitMeters = TransitLayer.TRANSFER_DISTANCE_LIMIT;
-
-            streetRouter.setOrigin(originStreetVertex);
-            streetRouter.dominanceVariable = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
-
-            streetRouter.route();
-            TIntIntMap distancesToReachedStops = streetRouter.getReachedStops();
-            // FIXME the following is technically incorrect, measure that it's actually improving calculation speed
-            retainClosestStopsOnPatterns(distancesToReachedStops);
             // At this point we have the distances to all stops that are the closest one on some pattern.
             // Make transfers to them, packed as pairs of (target stop index, distance).
             TIntList packedTransfers = new TIntArrayList();
@@ -39,6 +39,7 @@ import java.time.DateTimeException;
 import java.time.ZoneId;
 import java.time.zone.ZoneRulesException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
@@ -523,6 +524,11 @@ public class TransitLayer implements Serializable, Cloneable {
         LambdaCounter buildCounter = new LambdaCounter(LOG, getStopCount(), 1000,
                 "Computed distances to street vertices from {} of {} transit stops.");
 
+        // Street routers are reused across stops rather than created for every search. Each thread takes one from this
+        // pool (or makes a new one if none is free) and returns it when done. The pool is discarded with this method
+        // call, so it does not retain references to the street layer.
+        Queue<StreetRouter> routers = new ConcurrentLinkedQueue<>();
+
         // Working in parallel, create a new list containing one distance table for each stop index, optionally
         // skipping stops falling outside the specified geometry.
         stopToVertexDistanceTables = IntStream.range(0, getStopCount()).parallel().mapToObj(stopIndex -> {
@@ -535,7 +541,11 @@ public class TransitLayer implements Serializable, Cloneable {
                 }
             }
             buildCounter.increment();
-            return this.buildOneDistanceTable(stopIndex);
+            StreetRouter router = routers.poll();
+            if (router == null) router = new StreetRouter(parentNetwork.streetLayer);
+            TIntIntMap distanceTable = this.buildOneDistanceTable(stopIndex, router);
+            routers.add(router);
+            return distanceTable;
         }).collect(Collectors.toList());
         buildCounter.done();
     }
@@ -547,13 +557,21 @@ public class TransitLayer implements Serializable, Cloneable {
      * @return a map from street vertex numbers to distances in millimeters
      */
     public TIntIntMap buildOneDistanceTable(int stop) {
+        return buildOneDistanceTable(stop, new StreetRouter(parentNetwork.streetLayer));
+    }
+
+    /**
+     * Perform a single on-street search from the specified transit stop, reusing the supplied router for the search.
+     * The router is reset first, so any previous results in it are discarded.
+     */
+    public TIntIntMap buildOneDistanceTable(int stop, StreetRouter router) {
         int originVertex = streetVertexForStop.get(stop);
         if (originVertex == -1) {
             // -1 indicates that this stop is not linked to the street network.
             LOG.warn("Stop {} has not been linked to the street network, cannot build a distance table for it.", stop);
             return null;
         }
-        StreetRouter router = new StreetRouter(parentNetwork.streetLayer);
+        router.reset();
         router.distanceLimitMeters = DISTANCE_TABLE_SIZE_METERS;
 
         // Dominate based on distance in millimeters, since (a) we're using a hard distance limit, and (b) we divide
@@ -9,14 +9,12 @@ import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
 import com.conveyal.r5.util.ExpandingMMFBytez;
-import com.google.common.hash.HashCode;
-import com.google.common.hash.Hashing;
 import com.conveyal.r5.profile.GreedyFareCalculator;
 import com.conveyal.r5.profile.StreetMode;
-import com.google.common.io.Files;
 import com.vividsolutions.jts.geom.Envelope;
 import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.StreetLayer;
+import com.google.common.cache.Cache;
 import org.nustaq.serialization.FSTObjectInput;
 import org.nustaq.serialization.FSTObjectOutput;
 import org.slf4j.Logger;
@@ -41,10 +39,11 @@ public class TransportNetwork implements Serializable {
     public TransitLayer transitLayer;
 
     /**
-     * This stores any number of lightweight scenario networks built upon the current base network.
-     * FIXME that sounds like a memory leak, should be a WeighingCache or at least size-limited.
+     * Lightweight scenario networks built upon the current base network, keyed on scenario ID. This is created by
+     * TransportNetworkCache, which bounds the estimated memory held by these networks and evicts the least recently
+     * used ones when that budget is exceeded.
      */
-    public transient Map<String, TransportNetwork> scenarios = new HashMap<>();
+    public transient Cache<String, TransportNetwork> scenarios;
 
     /**
      * A grid point set that covers the full extent of this transport network. The PointSet itself then caches linkages
@@ -80,15 +79,31 @@ public class TransportNetwork implements Serializable {
     /** Non-fatal warnings encountered when applying the scenario, null on a base network */
     public List<TaskError> scenarioApplicationWarnings;
 
+    /**
+     * Write this network to a file. The bulk primitive data (edges, vertices and distance tables) are written as flat
+     * columns after the rest of the object graph, see TransportNetworkColumns. They are removed from this network
+     * while it is being written, so this must never be called on a network that other threads can see: routing on it
+     * at the same time would fail or give wrong results. Networks are only written right after they are built, before
+     * they are returned to anything else (e.g. by TransportNetworkCache.buildNetwork).
+     */
     public void write (File file) throws IOException {
         LOG.info("Writing transport network...");
-        ExpandingMMFBytez.writeObjectToFile(file, this);
+        TransportNetworkColumns columns = TransportNetworkColumns.detach(this);
+        try {
+            ExpandingMMFBytez.writeObjectToFile(file, this);
+        } finally {
+            columns.reattach(this);
+        }
+        columns.append(file);
         LOG.info("Done writing.");
     }
 
     public static TransportNetwork read (File file) throws Exception {
         LOG.info("Reading transport network...");
         TransportNetwork result = ExpandingMMFBytez.readObjectFromFile(file);
+        if (!TransportNetworkColumns.readInto(file, result)) {
+            LOG.info("Network file has no columns, all data were read from the object graph.");
+        }
         LOG.info("Done reading.");
         if (result.fareCalculator != null) {
             result.fareCalculator.transitLayer = result.transitLayer;
@@ -410,21 +425,23 @@ public class TransportNetwork implements Serializable {
 
     /**
      * @return a checksum of the graph, for use in verifying whether it changed or remained the same after
-     * some operation.
+     * some operation. The street layer, the transit layer, the transit stop distance tables, the grid linkage and the
+     * remaining fields of the network are hashed separately in memory, which takes far less time than serializing the
+     * whole network to a file and hashing that. The checksums are not cached, because the point is to detect changes
+     * to the network, except that a scenario network reuses the checksum of an unmodified base street layer (see
+     * TransportNetworkChecksum).
      */
     public long checksum () {
         LOG.info("Calculating transport network checksum...");
-        try {
-            File tempFile = File.createTempFile("r5-network-checksum-", ".dat");
-            tempFile.deleteOnExit();
-            this.write(tempFile);
-            HashCode crc32 = Files.hash(tempFile, Hashing.crc32());
-            tempFile.delete();
-            LOG.info("Network CRC is {}", crc32.hashCode());
-            return crc32.hashCode();
-        } catch (IOException e) {
-            throw new RuntimeException();
-        }
+        long checksum = TransportNetworkChecksum.combine(
+                TransportNetworkChecksum.streetLayer(streetLayer),
+                TransportNetworkChecksum.transitLayer(transitLayer),
+                TransportNetworkChecksum.distanceTables(transitLayer.stopToVertexDistanceTables),
+                TransportNetworkChecksum.linkage(linkedGridPointSet),
+                TransportNetworkChecksum.networkFields(this)
+        );
+        LOG.info("Network checksum is {}", checksum);
+        return checksum;
     }
 
 }
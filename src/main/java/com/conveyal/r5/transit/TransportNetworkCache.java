@@ -7,17 +7,21 @@ import com.amazonaws.services.s3.model.S3Object;
 import com.conveyal.gtfs.GTFSCache;
 import com.conveyal.osmlib.OSMCache;
 import com.conveyal.r5.analyst.cluster.BundleManifest;
+import com.conveyal.r5.analyst.error.ScenarioApplicationException;
 import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.common.R5Version;
 import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
 import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.streets.StreetLayer;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,8 +29,9 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -49,6 +54,12 @@ public class TransportNetworkCache {
 
     private static final int DEFAULT_CACHE_SIZE = 1;
 
+    /**
+     * The estimated memory that the networks for applied scenarios may hold beyond their base network before the least
+     * recently used ones are evicted. This must be set before the first scenario is applied to a base network.
+     */
+    public long scenarioCacheMegabytes = Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024;
+
     private final LoadingCache<String, TransportNetwork> cache;
     private final GTFSCache gtfsCache;
     private final OSMCache osmCache;
@@ -96,8 +107,12 @@ public class TransportNetworkCache {
         this.bucketFolder = bucketFolder;
     }
 
-    /** Convenience method that returns transport network from cache. */
-    public synchronized TransportNetwork getNetwork (String networkId) {
+    /**
+     * Convenience method that returns transport network from cache. This does not lock the whole cache: a network
+     * that is already loaded is returned immediately, different networks can be loaded at the same time, and threads
+     * asking for a network that is being loaded wait for that one load to finish.
+     */
+    public TransportNetwork getNetwork (String networkId) {
         try {
             return cache.get(networkId);
         } catch (Exception e) {
@@ -107,6 +122,21 @@ public class TransportNetworkCache {
         }
     }
 
+    /**
+     * Start loading or building the given network on a background thread, so that the work overlaps with whatever
+     * the caller does next. Calls to getNetwork for the same network will wait for this load rather than starting
+     * another one.
+     * @return a future that completes with the network, or with null if it could not be loaded.
+     */
+    public CompletableFuture<TransportNetwork> prefetchNetwork (String networkId) {
+        CompletableFuture<TransportNetwork> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> future.complete(getNetwork(networkId)), "prefetch-network-" + networkId);
+        // Do not keep the JVM alive just to finish loading a network no one is waiting for.
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
     /**
      * Find or create a TransportNetwork for the scenario specified in a ProfileRequest.
      * ProfileRequests may contain an embedded complete scenario, or it may contain only the ID of a scenario that
@@ -116,72 +146,122 @@ public class TransportNetworkCache {
      * rather than a compound key of (networkId, scenarioId).
      *
      * The fact that scenario networks are cached means that PointSet linkages will be automatically reused when
+     * the same scenario is requested again. Concurrent requests for the same scenario wait for a single application
+     * of that scenario, while requests for other scenarios that are already cached are answered without waiting.
      * TODO it seems to me that this method should just take a Scenario as its second parameter, and that resolving the scenario against caches on S3 or local disk should be pulled out into a separate function
      */
-    public synchronized TransportNetwork getNetworkForScenario (String networkId, ProfileRequest request) {
+    public TransportNetwork getNetworkForScenario (String networkId, ProfileRequest request) {
         String scenarioId = request.scenarioId != null ? request.scenarioId : request.scenario.id;
 
         // The following call clears the scenarioNetworkCache if the current base graph changes.
         TransportNetwork baseNetwork = this.getNetwork(networkId);
-        if (baseNetwork.scenarios == null) {
-            baseNetwork.scenarios = new HashMap<>();
-        }
-        TransportNetwork scenarioNetwork =  baseNetwork.scenarios.get(scenarioId);
-
-        // DEBUG force scenario re-application
-        // scenarioNetwork = null;
+        Cache<String, TransportNetwork> scenarios = getScenarioCache(baseNetwork);
 
-        if (scenarioNetwork == null) {
-            LOG.info("Applying scenario to base network...");
+        TransportNetwork scenarioNetwork;
+        try {
+            // The cache only runs this loader once at a time for a given scenario ID.
+            scenarioNetwork = scenarios.get(scenarioId, () -> applyScenario(networkId, scenarioId, baseNetwork, request));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            // Errors in the modifications are reported back to the user, so pass them on to the caller.
+            if (e.getCause() instanceof ScenarioApplicationException) {
+                throw (ScenarioApplicationException) e.getCause();
+            }
+            LOG.error("Could not apply scenario {} to network {}", scenarioId, networkId, e.getCause());
+            return null;
+        }
+        LOG.info("Scenario network cache for network {} holds {} scenarios: {}", networkId, scenarios.size(),
+                scenarios.stats());
+        return scenarioNetwork;
+    }
 
-            Scenario scenario;
-            if (request.scenario == null && request.scenarioId != null) {
-                // resolve scenario
-                LOG.info("Retrieving scenario stored separately on S3 rather than in the ProfileRequest");
+    /** Fetch the scenario for a request as needed and apply it to the base network. */
+    private TransportNetwork applyScenario (String networkId, String scenarioId, TransportNetwork baseNetwork,
+                                            ProfileRequest request) {
+        LOG.info("Applying scenario to base network...");
 
-                File scenarioFile = new File(cacheDir, getScenarioFilename(networkId, scenarioId));
+        Scenario scenario;
+        if (request.scenario == null && request.scenarioId != null) {
+            // resolve scenario
+            LOG.info("Retrieving scenario stored separately on S3 rather than in the ProfileRequest");
 
-                if (!scenarioFile.exists()) {
-                    try {
-                        S3Object obj = s3.getObject(sourceBucket, getScenarioKey(networkId, scenarioId));
-                        InputStream is = obj.getObjectContent();
-                        OutputStream os = new BufferedOutputStream(new FileOutputStream(scenarioFile));
-                        ByteStreams.copy(is, os);
-                        is.close();
-                        os.close();
-                    } catch (Exception e) {
-                        LOG.info("Error retrieving scenario from S3", e);
-                        return null;
-                    }
-                }
+            File scenarioFile = new File(cacheDir, getScenarioFilename(networkId, scenarioId));
 
+            if (!scenarioFile.exists()) {
                 try {
-                    scenario = JsonUtilities.objectMapper.readValue(scenarioFile, Scenario.class);
-                } catch (IOException e) {
-                    LOG.error("Could not read scenario {} from disk", scenarioId, e);
-                    return null;
+                    S3Object obj = s3.getObject(sourceBucket, getScenarioKey(networkId, scenarioId));
+                    InputStream is = obj.getObjectContent();
+                    OutputStream os = new BufferedOutputStream(new FileOutputStream(scenarioFile));
+                    ByteStreams.copy(is, os);
+                    is.close();
+                    os.close();
+                } catch (Exception e) {
+                    throw new RuntimeException("Error retrieving scenario from S3", e);
                 }
-            } else if (request.scenario != null) {
-                scenario = request.scenario;
-            } else {
-                LOG.warn("No scenario specified");
-                scenario = new Scenario();
             }
 
-            // Apply any scenario modifications to the network before use, performing protective copies where necessary.
-            // Prepend a pre-filter that removes trips that are not running during the search time window.
-            // FIXME Caching transportNetworks with scenarios already applied means we can’t use the InactiveTripsFilter.
-            // Solution may be to cache linked point sets based on scenario ID but always apply scenarios every time.
-            // scenario.modifications.add(0, new InactiveTripsFilter(baseNetwork, clusterRequest.profileRequest));
-            scenarioNetwork = scenario.applyToTransportNetwork(baseNetwork);
-            LOG.info("Done applying scenario. Caching the resulting network.");
-            baseNetwork.scenarios.put(scenario.id, scenarioNetwork);
+            try {
+                scenario = JsonUtilities.objectMapper.readValue(scenarioFile, Scenario.class);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read scenario from disk", e);
+            }
+        } else if (request.scenario != null) {
+            scenario = request.scenario;
         } else {
-            LOG.info("Reusing cached TransportNetwork for scenario {}.", scenarioId);
+            LOG.warn("No scenario specified");
+            scenario = new Scenario();
+        }
+
+        // Apply any scenario modifications to the network before use, performing protective copies where necessary.
+        // Trips that are not running during the search time window are not removed here, as the resulting network is
+        // cached and shared between requests. The routers skip them using an ActiveTransitView for each request.
+        TransportNetwork scenarioNetwork = scenario.applyToTransportNetwork(baseNetwork);
+        if (scenario.affectsStreetLayer() && scenarioNetwork.linkedGridPointSet != null) {
+            // The scenario has its own grid linkage. Build its point to stop tables now rather than on first use, so
+            // they are already there when the network is weighed on its way into the cache.
+            scenarioNetwork.linkedGridPointSet.makePointToStopDistanceTablesIfNeeded();
         }
+        LOG.info("Done applying scenario. Caching the resulting network.");
         return scenarioNetwork;
     }
 
+    /**
+     * Get the cache of scenario networks built upon the given base network, creating it if this is the first
+     * scenario applied to that network. Each entry is weighed by an estimate of the memory it holds that is not shared
+     * with the base network, and the least recently used entries are evicted when the total exceeds
+     * scenarioCacheMegabytes.
+     */
+    private Cache<String, TransportNetwork> getScenarioCache (TransportNetwork baseNetwork) {
+        synchronized (baseNetwork) {
+            if (baseNetwork.scenarios == null) {
+                baseNetwork.scenarios = createScenarioCache(baseNetwork, scenarioCacheMegabytes * 1024);
+            }
+            return baseNetwork.scenarios;
+        }
+    }
+
+    /**
+     * Create a cache of scenario networks built upon the given base network, holding at most the given number of
+     * kilobytes as estimated by ScenarioNetworkWeigher. Guava splits the maximum weight evenly between the segments of
+     * a cache, so the cache has a single segment: a street-changing scenario can weigh a large part of the whole budget,
+     * and would be evicted as soon as it was loaded if it only had a quarter of the budget to itself. Scenario networks
+     * are loaded rarely, so there is no need for the concurrency of several segments.
+     */
+    static Cache<String, TransportNetwork> createScenarioCache (TransportNetwork baseNetwork, long maximumKilobytes) {
+        RemovalListener<String, TransportNetwork> removalListener = removalNotification -> {
+            if (removalNotification.wasEvicted()) {
+                LOG.info("Evicted scenario network {} from the cache ({}).", removalNotification.getKey(),
+                        removalNotification.getCause());
+            }
+        };
+        return CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(maximumKilobytes)
+                .weigher(new ScenarioNetworkWeigher(baseNetwork))
+                .removalListener(removalListener)
+                .recordStats()
+                .build();
+    }
+
     private String getScenarioFilename(String networkId, String scenarioId) {
         return String.format("%s_%s.json", networkId, scenarioId);
     }
@@ -449,7 +529,6 @@ public class TransportNetworkCache {
             network = buildNetwork(networkId);
         }
 
-        cache.put(networkId, network);
         return network;
     }
 
@@ -460,8 +539,16 @@ public class TransportNetworkCache {
     public Set<String> getAppliedScenarios() {
         return cache.asMap().values().stream()
                 .filter(network -> network.scenarios != null)
-                .map(network -> network.scenarios.keySet())
+                .map(network -> network.scenarios.asMap().keySet())
                 .flatMap(Collection::stream)
                 .collect(Collectors.toSet());
     }
+
+    /** @return the hits, misses and evictions of the scenario network caches of all loaded base networks combined. */
+    public CacheStats getScenarioCacheStats() {
+        return cache.asMap().values().stream()
+                .filter(network -> network.scenarios != null)
+                .map(network -> network.scenarios.stats())
+                .reduce(new CacheStats(0, 0, 0, 0, 0, 0), CacheStats::plus);
+    }
 }
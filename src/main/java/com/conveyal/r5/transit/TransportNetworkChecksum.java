@@ -0,0 +1,337 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.gtfs.model.Service;
+import com.conveyal.r5.analyst.WebMercatorGridPointSet;
+import com.conveyal.r5.streets.EdgeStore;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.streets.VertexStore;
+import com.conveyal.r5.util.TIntIntMultimap;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.vividsolutions.jts.geom.Envelope;
+import gnu.trove.TIntCollection;
+import gnu.trove.list.TByteList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.TShortList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.set.TIntSet;
+import org.nustaq.serialization.FSTObjectOutput;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Computes checksums of the parts of a TransportNetwork in memory. The bulk primitive data (the same columns that
+ * TransportNetworkColumns writes to disk) are fed straight into a hash function, and only the comparatively small
+ * object graphs that remain (trip patterns, routes, services, turn restrictions etc.) are serialized with FST, into a
+ * stream that hashes its input rather than into a file.
+ *
+ * Everything that FST would serialize is hashed, so that a checksum changes whenever the network changes in a way that
+ * would change the serialized network. In addition the point to stop tables of the grid linkage, which are transient
+ * and built on demand, are built if needed and hashed, so that they are verified too. Apart from that nothing here
+ * modifies the network, so checksums can be computed while other threads are routing on it.
+ *
+ * Hash maps are hashed in key order rather than iteration order, as their iteration order depends on their capacity and
+ * can change when a network is written to disk and read back. Maps that are serialized with FST are first copied into
+ * sorted maps.
+ *
+ * The checksum of each street layer is kept in the layer. A scenario copy of a street layer that shares all of its
+ * contents with its base layer, because the scenario did not modify the streets, reuses the checksum of the base layer
+ * if it has been computed. Scenarios must never modify their base network (which Scenario verifies by computing the
+ * checksum of the base network again), so this is the checksum the scenario copy would have. Every other checksum,
+ * including that of the base layer itself, is computed anew on each call, as the point is to detect changes.
+ */
+public class TransportNetworkChecksum {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    public static long streetLayer (StreetLayer streetLayer) {
+        StreetLayer base = streetLayer.baseStreetLayer;
+        if (base != null && base.checksum != null && sharesContents(streetLayer, base)) {
+            streetLayer.checksum = base.checksum;
+            return base.checksum;
+        }
+
+        Hasher hasher = HASH_FUNCTION.newHasher();
+
+        VertexStore vertexStore = streetLayer.vertexStore;
+        putInts(hasher, vertexStore.fixedLats);
+        putInts(hasher, vertexStore.fixedLons);
+        putBytes(hasher, vertexStore.vertexFlags);
+
+        EdgeStore edgeStore = streetLayer.edgeStore;
+        putInts(hasher, edgeStore.flags);
+        putShorts(hasher, edgeStore.speeds);
+        putInts(hasher, edgeStore.fromVertices);
+        putInts(hasher, edgeStore.toVertices);
+        putInts(hasher, edgeStore.lengths_mm);
+        putLongs(hasher, edgeStore.osmids);
+        putBytes(hasher, edgeStore.inAngles);
+        putBytes(hasher, edgeStore.outAngles);
+        hasher.putInt(edgeStore.geometries.size());
+        for (int[] geometry : edgeStore.geometries) putInts(hasher, geometry);
+
+        hasher.putInt(edgeStore.firstModifiableEdge);
+        hasher.putLong(edgeStore.getGeneratedOSMID());
+        putSet(hasher, edgeStore.temporarilyDeletedEdges);
+
+        putMap(hasher, streetLayer.vertexIndexForOsmNode);
+        putEnvelope(hasher, streetLayer.envelope);
+        hasher.putBoolean(streetLayer.bikeSharing);
+
+        putObjects(hasher, streetLayer.turnRestrictions, sorted(edgeStore.turnRestrictions),
+                sorted(edgeStore.turnRestrictionsReverse), sorted(streetLayer.bikeRentalStationMap),
+                sorted(streetLayer.parkRideLocationsMap), streetLayer.scenarioId);
+
+        long checksum = hasher.hash().asLong();
+        streetLayer.checksum = checksum;
+        return checksum;
+    }
+
+    /** @return true if the scenario copy of a street layer refers to all the same contents as its base layer. */
+    private static boolean sharesContents (StreetLayer streetLayer, StreetLayer base) {
+        return streetLayer.vertexStore == base.vertexStore && streetLayer.edgeStore == base.edgeStore &&
+                streetLayer.vertexIndexForOsmNode == base.vertexIndexForOsmNode &&
+                streetLayer.envelope == base.envelope && streetLayer.bikeSharing == base.bikeSharing &&
+                streetLayer.turnRestrictions == base.turnRestrictions &&
+                streetLayer.bikeRentalStationMap == base.bikeRentalStationMap &&
+                streetLayer.parkRideLocationsMap == base.parkRideLocationsMap &&
+                Objects.equals(streetLayer.scenarioId, base.scenarioId);
+    }
+
+    /**
+     * Hash everything in the transit layer except the distance tables, which are hashed separately by
+     * {@link #distanceTables(List)}, and the reference back to the parent network.
+     */
+    public static long transitLayer (TransitLayer transitLayer) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        // Each service holds a hash map of exceptions to its calendar.
+        List<Object[]> services = null;
+        if (transitLayer.services != null) {
+            services = new ArrayList<>();
+            for (Service service : transitLayer.services) {
+                services.add(new Object[] { service.service_id, service.calendar, sorted(service.calendar_dates) });
+            }
+        }
+        putObjects(hasher, transitLayer.timeZone, transitLayer.stopIdForIndex, transitLayer.tripPatterns,
+                transitLayer.streetVertexForStop, transitLayer.transfersForStop, transitLayer.routes,
+                transitLayer.stopNames, transitLayer.patternsForStop, services,
+                sorted(transitLayer.frequencyEntryIndexForId), transitLayer.stopsWheelchair, transitLayer.centerLon,
+                transitLayer.centerLat, transitLayer.hasFrequencies, transitLayer.hasSchedules,
+                sorted(transitLayer.feedChecksums), transitLayer.scenarioId);
+        return hasher.hash().asLong();
+    }
+
+    /** Hash the distance tables from transit stops to street vertices. */
+    public static long distanceTables (List<TIntIntMap> stopToVertexDistanceTables) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        if (stopToVertexDistanceTables == null) return hasher.putInt(-1).hash().asLong();
+        hasher.putInt(stopToVertexDistanceTables.size());
+        for (TIntIntMap table : stopToVertexDistanceTables) {
+            if (table == null) {
+                hasher.putInt(-1);
+                continue;
+            }
+            putMap(hasher, table);
+        }
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Hash the linkage of the grid point set to the street layer: the linked edges, the distances along them, and the
+     * distance tables between transit stops and points in both directions. The point to stop tables are built first if
+     * they have not been used yet, so that the checksum does not depend on whether routing has used the linkage.
+     */
+    public static long linkage (LinkedPointSet linkedPointSet) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        if (linkedPointSet == null) return hasher.putInt(-1).hash().asLong();
+        hasher.putInt(linkedPointSet.streetMode == null ? -1 : linkedPointSet.streetMode.ordinal());
+        putInts(hasher, linkedPointSet.edges);
+        putInts(hasher, linkedPointSet.distances0_mm);
+        putInts(hasher, linkedPointSet.distances1_mm);
+
+        List<int[]> stopToPointDistanceTables = linkedPointSet.stopToPointDistanceTables;
+        if (stopToPointDistanceTables == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(stopToPointDistanceTables.size());
+            for (int[] table : stopToPointDistanceTables) putInts(hasher, table);
+            linkedPointSet.makePointToStopDistanceTablesIfNeeded();
+        }
+        putInts(hasher, linkedPointSet.pointToStopOffsets);
+        putInts(hasher, linkedPointSet.pointToStopStops);
+        putInts(hasher, linkedPointSet.pointToStopDistances_mm);
+        return hasher.hash().asLong();
+    }
+
+    /** Hash the fields of the network itself, other than its layers and grid linkage which are hashed separately. */
+    public static long networkFields (TransportNetwork network) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        WebMercatorGridPointSet grid = network.gridPointSet;
+        if (grid == null) {
+            hasher.putInt(-1);
+        } else {
+            // The grid also holds a cache of its linkages, which refer back to the network, so hash only its extent.
+            hasher.putInt(grid.zoom).putInt(grid.west).putInt(grid.north).putInt(grid.width).putInt(grid.height);
+        }
+        // The reference from the fare calculator back to the transit layer is transient, so it is not serialized.
+        putObjects(hasher, network.fareCalculator, network.scenarioId);
+        return hasher.hash().asLong();
+    }
+
+    /** Combine the checksums of the parts of a network into a single checksum, sensitive to their order. */
+    public static long combine (long... checksums) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        for (long checksum : checksums) hasher.putLong(checksum);
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Serialize the given objects with FST straight into the hasher. The objects must not refer back to the network,
+     * or the whole network will be serialized.
+     */
+    private static void putObjects (Hasher hasher, Object... objects) {
+        try (OutputStream stream = new BufferedOutputStream(Funnels.asOutputStream(hasher))) {
+            FSTObjectOutput out = new FSTObjectOutput(stream);
+            out.writeObject(objects);
+            out.flush();
+        } catch (IOException e) {
+            // The stream does not do any I/O.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Copy a map into a map sorted by key, so that FST serializes its entries in key order. */
+    private static <K extends Comparable<? super K>, V> SortedMap<K, V> sorted (Map<K, V> map) {
+        return map == null ? null : new TreeMap<>(map);
+    }
+
+    /** Copy a map into a map sorted by key, so that FST serializes its entries in key order. */
+    private static <V> SortedMap<Integer, V> sorted (TIntObjectMap<V> map) {
+        if (map == null) return null;
+        SortedMap<Integer, V> sorted = new TreeMap<>();
+        map.forEachEntry((key, value) -> {
+            sorted.put(key, value);
+            return true; // continue iteration
+        });
+        return sorted;
+    }
+
+    /**
+     * Copy a multimap into a map sorted by key, so that FST serializes its entries in key order. The values of each key
+     * are kept in the order they were added, which does not change on a round trip.
+     */
+    private static SortedMap<Integer, TIntCollection> sorted (TIntIntMultimap map) {
+        if (map == null) return null;
+        SortedMap<Integer, TIntCollection> sorted = new TreeMap<>();
+        for (int key : map.keys()) sorted.put(key, map.get(key));
+        return sorted;
+    }
+
+    private static void putInts (Hasher hasher, TIntList values) {
+        if (values == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        int size = values.size();
+        hasher.putInt(size);
+        for (int i = 0; i < size; i++) hasher.putInt(values.get(i));
+    }
+
+    private static void putInts (Hasher hasher, int[] values) {
+        if (values == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        hasher.putInt(values.length);
+        for (int value : values) hasher.putInt(value);
+    }
+
+    /** Hash the entries of a map in order of their keys. */
+    private static void putMap (Hasher hasher, TIntIntMap map) {
+        if (map == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        hasher.putInt(keys.length);
+        for (int key : keys) hasher.putInt(key).putInt(map.get(key));
+    }
+
+    /** Hash the entries of a map in order of their keys. */
+    private static void putMap (Hasher hasher, TLongIntMap map) {
+        if (map == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        long[] keys = map.keys();
+        Arrays.sort(keys);
+        hasher.putInt(keys.length);
+        for (long key : keys) hasher.putLong(key).putInt(map.get(key));
+    }
+
+    /** Hash the members of a set in increasing order. */
+    private static void putSet (Hasher hasher, TIntSet set) {
+        if (set == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        int[] values = set.toArray();
+        Arrays.sort(values);
+        putInts(hasher, values);
+    }
+
+    private static void putEnvelope (Hasher hasher, Envelope envelope) {
+        if (envelope == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        hasher.putDouble(envelope.getMinX()).putDouble(envelope.getMaxX())
+                .putDouble(envelope.getMinY()).putDouble(envelope.getMaxY());
+    }
+
+    private static void putShorts (Hasher hasher, TShortList values) {
+        if (values == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        int size = values.size();
+        hasher.putInt(size);
+        for (int i = 0; i < size; i++) hasher.putShort(values.get(i));
+    }
+
+    private static void putLongs (Hasher hasher, TLongList values) {
+        if (values == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        int size = values.size();
+        hasher.putInt(size);
+        for (int i = 0; i < size; i++) hasher.putLong(values.get(i));
+    }
+
+    private static void putBytes (Hasher hasher, TByteList values) {
+        if (values == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        int size = values.size();
+        hasher.putInt(size);
+        for (int i = 0; i < size; i++) hasher.putByte(values.get(i));
+    }
+}
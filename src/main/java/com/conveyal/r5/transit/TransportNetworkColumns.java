@@ -0,0 +1,386 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.r5.streets.EdgeStore;
+import com.conveyal.r5.streets.VertexStore;
+import gnu.trove.list.TByteList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.TShortList;
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.list.array.TShortArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The bulk primitive data of a TransportNetwork (the vertex and edge stores of the street layer and the distance
+ * tables from transit stops to street vertices) stored as flat columns of primitives. These make up most of a
+ * serialized network, and pushing them through FST object by object (including one hash map per stop and one array
+ * per edge geometry) makes writing and especially reading networks slow.
+ *
+ * TransportNetwork.write removes these fields from the network while serializing the rest of the object graph with
+ * FST, then appends the columns after it. The end of the file holds a trailer with the position of the columns, the
+ * format version and a magic number. Files without the trailer were written before the columns existed and are read
+ * with FST alone.
+ *
+ * The columns are read with large sequential reads straight into primitive arrays rather than being memory mapped.
+ * Routing uses the Trove lists in EdgeStore and VertexStore throughout, so the data end up on the heap either way, and a
+ * single mapping would limit the columns to 2GB.
+ */
+public class TransportNetworkColumns {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransportNetworkColumns.class);
+
+    /** Identifies files with columns, the ASCII characters R5CL */
+    private static final int MAGIC = 0x5235434c;
+
+    /** Increment this whenever the column format changes */
+    private static final int FORMAT_VERSION = 1;
+
+    /** The trailer is the position of the columns, the format version and the magic number */
+    private static final int TRAILER_BYTES = 8 + 4 + 4;
+
+    private static final int BUFFER_BYTES = 8 * 1024 * 1024;
+
+    // Vertex store
+    private TIntList fixedLats;
+    private TIntList fixedLons;
+    private TByteList vertexFlags;
+
+    // Edge store
+    private TIntList flags;
+    private TShortList speeds;
+    private TIntList fromVertices;
+    private TIntList toVertices;
+    private TIntList lengths_mm;
+    private TLongList osmids;
+    private List<int[]> geometries;
+    private TByteList inAngles;
+    private TByteList outAngles;
+
+    // Transit layer
+    private List<TIntIntMap> stopToVertexDistanceTables;
+
+    /**
+     * Remove the columnar data from the given network, so that it is not serialized along with the rest of the object
+     * graph. This modifies the network in place, so it must never be called on a network that other threads can see,
+     * and reattach must be called before the network is used again.
+     */
+    static TransportNetworkColumns detach (TransportNetwork network) {
+        TransportNetworkColumns columns = new TransportNetworkColumns();
+        VertexStore vertexStore = network.streetLayer.vertexStore;
+        columns.fixedLats = vertexStore.fixedLats;
+        columns.fixedLons = vertexStore.fixedLons;
+        columns.vertexFlags = vertexStore.vertexFlags;
+        vertexStore.fixedLats = null;
+        vertexStore.fixedLons = null;
+        vertexStore.vertexFlags = null;
+
+        EdgeStore edgeStore = network.streetLayer.edgeStore;
+        columns.flags = edgeStore.flags;
+        columns.speeds = edgeStore.speeds;
+        columns.fromVertices = edgeStore.fromVertices;
+        columns.toVertices = edgeStore.toVertices;
+        columns.lengths_mm = edgeStore.lengths_mm;
+        columns.osmids = edgeStore.osmids;
+        columns.geometries = edgeStore.geometries;
+        columns.inAngles = edgeStore.inAngles;
+        columns.outAngles = edgeStore.outAngles;
+        edgeStore.flags = null;
+        edgeStore.speeds = null;
+        edgeStore.fromVertices = null;
+        edgeStore.toVertices = null;
+        edgeStore.lengths_mm = null;
+        edgeStore.osmids = null;
+        edgeStore.geometries = null;
+        edgeStore.inAngles = null;
+        edgeStore.outAngles = null;
+
+        columns.stopToVertexDistanceTables = network.transitLayer.stopToVertexDistanceTables;
+        network.transitLayer.stopToVertexDistanceTables = null;
+        return columns;
+    }
+
+    /** Put the columnar data back into the given network. */
+    void reattach (TransportNetwork network) {
+        VertexStore vertexStore = network.streetLayer.vertexStore;
+        vertexStore.fixedLats = fixedLats;
+        vertexStore.fixedLons = fixedLons;
+        vertexStore.vertexFlags = vertexFlags;
+
+        EdgeStore edgeStore = network.streetLayer.edgeStore;
+        edgeStore.flags = flags;
+        edgeStore.speeds = speeds;
+        edgeStore.fromVertices = fromVertices;
+        edgeStore.toVertices = toVertices;
+        edgeStore.lengths_mm = lengths_mm;
+        edgeStore.osmids = osmids;
+        edgeStore.geometries = geometries;
+        edgeStore.inAngles = inAngles;
+        edgeStore.outAngles = outAngles;
+
+        network.transitLayer.stopToVertexDistanceTables = stopToVertexDistanceTables;
+    }
+
+    /** Append the columns and the trailer to the end of the given file. */
+    void append (File file) throws IOException {
+        LOG.info("Writing network columns...");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             ColumnWriter out = new ColumnWriter(raf.getChannel())) {
+            long columnsStart = raf.length();
+            raf.getChannel().position(columnsStart);
+
+            out.writeInt(fixedLats.size());
+            out.writeInts(fixedLats);
+            out.writeInts(fixedLons);
+            out.writeBytes(vertexFlags);
+
+            out.writeInt(flags.size());
+            out.writeInts(flags);
+            out.writeShorts(speeds);
+            out.writeInt(fromVertices.size());
+            out.writeInts(fromVertices);
+            out.writeInts(toVertices);
+            out.writeInts(lengths_mm);
+            out.writeLongs(osmids);
+            out.writeBytes(inAngles);
+            out.writeBytes(outAngles);
+            // Edge geometries as the length of each (-1 for null) followed by all the coordinates
+            for (int[] geometry : geometries) out.writeInt(geometry == null ? -1 : geometry.length);
+            for (int[] geometry : geometries) {
+                if (geometry != null) for (int coordinate : geometry) out.writeInt(coordinate);
+            }
+
+            // Distance tables as the size of each (-1 for null), then the vertices and distances of each
+            if (stopToVertexDistanceTables == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(stopToVertexDistanceTables.size());
+                for (TIntIntMap table : stopToVertexDistanceTables) out.writeInt(table == null ? -1 : table.size());
+                for (TIntIntMap table : stopToVertexDistanceTables) {
+                    if (table == null) continue;
+                    // keys and values are iterated in the same order
+                    for (int vertex : table.keys()) out.writeInt(vertex);
+                    for (int distance : table.values()) out.writeInt(distance);
+                }
+            }
+
+            out.writeLong(columnsStart);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(MAGIC);
+        }
+        LOG.info("Done writing network columns.");
+    }
+
+    /**
+     * If the given file has columns appended to it, read them into the given network, which was deserialized from the
+     * start of the file.
+     * @return false if the file has no columns, i.e. everything was serialized with FST.
+     */
+    static boolean readInto (File file, TransportNetwork network) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length < TRAILER_BYTES) return false;
+            raf.seek(length - TRAILER_BYTES);
+            long columnsStart = raf.readLong();
+            int formatVersion = raf.readInt();
+            if (raf.readInt() != MAGIC) return false;
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IllegalStateException("Network columns have format version " + formatVersion +
+                        ", expected " + FORMAT_VERSION);
+            }
+
+            LOG.info("Reading network columns...");
+            ColumnReader in = new ColumnReader(raf.getChannel(), columnsStart);
+
+            VertexStore vertexStore = network.streetLayer.vertexStore;
+            int nVertices = in.readInt();
+            vertexStore.fixedLats = new TIntArrayList(in.readInts(nVertices));
+            vertexStore.fixedLons = new TIntArrayList(in.readInts(nVertices));
+            vertexStore.vertexFlags = new TByteArrayList(in.readBytes(nVertices));
+
+            EdgeStore edgeStore = network.streetLayer.edgeStore;
+            int nEdges = in.readInt();
+            edgeStore.flags = new TIntArrayList(in.readInts(nEdges));
+            edgeStore.speeds = new TShortArrayList(in.readShorts(nEdges));
+            int nEdgePairs = in.readInt();
+            edgeStore.fromVertices = new TIntArrayList(in.readInts(nEdgePairs));
+            edgeStore.toVertices = new TIntArrayList(in.readInts(nEdgePairs));
+            edgeStore.lengths_mm = new TIntArrayList(in.readInts(nEdgePairs));
+            edgeStore.osmids = new TLongArrayList(in.readLongs(nEdgePairs));
+            edgeStore.inAngles = new TByteArrayList(in.readBytes(nEdgePairs));
+            edgeStore.outAngles = new TByteArrayList(in.readBytes(nEdgePairs));
+            int[] geometryLengths = in.readInts(nEdgePairs);
+            edgeStore.geometries = new ArrayList<>(nEdgePairs);
+            for (int geometryLength : geometryLengths) {
+                edgeStore.geometries.add(geometryLength == -1 ? null : in.readInts(geometryLength));
+            }
+
+            int nStops = in.readInt();
+            if (nStops == -1) {
+                network.transitLayer.stopToVertexDistanceTables = null;
+            } else {
+                int[] tableSizes = in.readInts(nStops);
+                List<TIntIntMap> tables = new ArrayList<>(nStops);
+                for (int tableSize : tableSizes) {
+                    if (tableSize == -1) {
+                        tables.add(null);
+                        continue;
+                    }
+                    int[] vertices = in.readInts(tableSize);
+                    int[] distances = in.readInts(tableSize);
+                    TIntIntMap table = new TIntIntHashMap(tableSize);
+                    for (int i = 0; i < tableSize; i++) table.put(vertices[i], distances[i]);
+                    tables.add(table);
+                }
+                network.transitLayer.stopToVertexDistanceTables = tables;
+            }
+            LOG.info("Done reading network columns.");
+            return true;
+        }
+    }
+
+    /** Writes primitives through a large direct buffer to a file channel. */
+    private static class ColumnWriter implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+        ColumnWriter (FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void ensureSpace (int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flush();
+        }
+
+        private void flush () throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        void writeInt (int value) throws IOException {
+            ensureSpace(4);
+            buffer.putInt(value);
+        }
+
+        void writeLong (long value) throws IOException {
+            ensureSpace(8);
+            buffer.putLong(value);
+        }
+
+        void writeInts (TIntList values) throws IOException {
+            for (int i = 0; i < values.size(); i++) writeInt(values.get(i));
+        }
+
+        void writeShorts (TShortList values) throws IOException {
+            for (int i = 0; i < values.size(); i++) {
+                ensureSpace(2);
+                buffer.putShort(values.get(i));
+            }
+        }
+
+        void writeLongs (TLongList values) throws IOException {
+            for (int i = 0; i < values.size(); i++) writeLong(values.get(i));
+        }
+
+        void writeBytes (TByteList values) throws IOException {
+            for (int i = 0; i < values.size(); i++) {
+                ensureSpace(1);
+                buffer.put(values.get(i));
+            }
+        }
+
+        @Override
+        public void close () throws IOException {
+            flush();
+        }
+    }
+
+    /** Reads primitives from a file channel through a large direct buffer, copying them into arrays in bulk. */
+    private static class ColumnReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+        ColumnReader (FileChannel channel, long position) throws IOException {
+            this.channel = channel;
+            channel.position(position);
+            buffer.limit(0);
+        }
+
+        /** Make sure at least the given number of bytes are available in the buffer. */
+        private void fill (int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) return;
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) throw new EOFException("Network columns are truncated.");
+            }
+            buffer.flip();
+        }
+
+        int readInt () throws IOException {
+            fill(4);
+            return buffer.getInt();
+        }
+
+        int[] readInts (int n) throws IOException {
+            int[] values = new int[n];
+            for (int i = 0; i < n; ) {
+                fill(4);
+                int count = Math.min(n - i, buffer.remaining() / 4);
+                buffer.asIntBuffer().get(values, i, count);
+                buffer.position(buffer.position() + count * 4);
+                i += count;
+            }
+            return values;
+        }
+
+        short[] readShorts (int n) throws IOException {
+            short[] values = new short[n];
+            for (int i = 0; i < n; ) {
+                fill(2);
+                int count = Math.min(n - i, buffer.remaining() / 2);
+                buffer.asShortBuffer().get(values, i, count);
+                buffer.position(buffer.position() + count * 2);
+                i += count;
+            }
+            return values;
+        }
+
+        long[] readLongs (int n) throws IOException {
+            long[] values = new long[n];
+            for (int i = 0; i < n; ) {
+                fill(8);
+                int count = Math.min(n - i, buffer.remaining() / 8);
+                buffer.asLongBuffer().get(values, i, count);
+                buffer.position(buffer.position() + count * 8);
+                i += count;
+            }
+            return values;
+        }
+
+        byte[] readBytes (int n) throws IOException {
+            byte[] values = new byte[n];
+            for (int i = 0; i < n; ) {
+                fill(1);
+                int count = Math.min(n - i, buffer.remaining());
+                buffer.get(values, i, count);
+                i += count;
+            }
+            return values;
+        }
+    }
+}
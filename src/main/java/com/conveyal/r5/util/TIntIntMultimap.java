@@ -10,4 +10,6 @@ public interface TIntIntMultimap {
     TIntCollection get (int key);
     boolean containsKey (int key);
     TIntCollection removeAll (int key);
+    /** @return all the keys that have at least one value, in no particular order. */
+    int[] keys ();
 }
@@ -31,6 +31,11 @@ public class TIntObjectHashMultimap<V> implements TIntObjectMultimap<V> {
         wrapped.clear();
     }
 
+    @Override
+    public void removeAll(int key) {
+        wrapped.remove(key);
+    }
+
     @Override
     public boolean containsKey(int key) {
         return wrapped.containsKey(key);
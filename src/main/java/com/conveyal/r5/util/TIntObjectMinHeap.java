@@ -0,0 +1,94 @@
+package com.conveyal.r5.util;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of objects keyed on primitive ints. The keys are held in a primitive array next to the objects,
+ * so unlike a java.util.PriorityQueue with a comparator, sifting elements up and down the heap compares ints directly
+ * rather than calling back into the objects. Elements with equal keys are polled in no particular order.
+ */
+public class TIntObjectMinHeap<V> {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private int[] keys;
+
+    private Object[] values;
+
+    private int size = 0;
+
+    public TIntObjectMinHeap () {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TIntObjectMinHeap (int initialCapacity) {
+        keys = new int[Math.max(initialCapacity, 1)];
+        values = new Object[keys.length];
+    }
+
+    public void add (V value, int key) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+
+        // sift up: move parents with greater keys down until we find the slot for the new element
+        int pos = size++;
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (keys[parent] <= key) break;
+            keys[pos] = keys[parent];
+            values[pos] = values[parent];
+            pos = parent;
+        }
+        keys[pos] = key;
+        values[pos] = value;
+    }
+
+    /** @return the value with the lowest key, or null if the heap is empty */
+    public V poll () {
+        if (size == 0) return null;
+
+        @SuppressWarnings("unchecked")
+        V result = (V) values[0];
+
+        // sift down: move the last element from the root toward the leaves until both children have greater keys
+        size--;
+        int key = keys[size];
+        Object value = values[size];
+        values[size] = null; // don't retain references to polled elements
+        int pos = 0;
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) break;
+            if (child + 1 < size && keys[child + 1] < keys[child]) child++;
+            if (key <= keys[child]) break;
+            keys[pos] = keys[child];
+            values[pos] = values[child];
+            pos = child;
+        }
+        if (size > 0) {
+            keys[pos] = key;
+            values[pos] = value;
+        }
+        return result;
+    }
+
+    /** @return the lowest key in the heap. The heap must not be empty. */
+    public int peekKey () {
+        return keys[0];
+    }
+
+    public int size () {
+        return size;
+    }
+
+    public boolean isEmpty () {
+        return size == 0;
+    }
+
+    public void clear () {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+}
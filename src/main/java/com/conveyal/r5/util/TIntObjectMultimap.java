@@ -11,6 +11,9 @@ public interface TIntObjectMultimap<V> {
     boolean put (int key, V value);
     Collection<V> get (int key);
     void clear();
+
+    /** Remove the key and all the values stored under it. */
+    void removeAll (int key);
     boolean containsKey (int key);
     void forEachEntry (TIntObjectProcedure<Collection<V>> procedure);
 
@@ -0,0 +1,92 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.profile.FastRaptorWorker;
+import com.conveyal.r5.profile.PerTargetPropagater;
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.RaptorWorker;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.apache.commons.math3.random.MersenneTwister;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test that regional accessibility is bootstrapped correctly when Monte Carlo draws are carried across several minutes.
+ */
+public class GridComputerTest {
+    private static final long SEED = 42;
+
+    /**
+     * Each bootstrap sample should include the same number of iterations from each minute as the search, and should
+     * choose the same draws at every minute of a window, including a last window cut short by the end of the search.
+     */
+    @Test
+    public void testBootstrapWeightsForWindows () {
+        int nMinutes = 12;
+        int drawsPerMinute = 3;
+        int windowMinutes = 5;
+        int[][] weights = GridComputer.computeBootstrapWeights(nMinutes, drawsPerMinute, windowMinutes,
+                new MersenneTwister(SEED));
+        assertEquals(nMinutes * drawsPerMinute, weights.length);
+
+        for (int bootstrap = 0; bootstrap < GridComputer.N_BOOTSTRAP_REPLICATIONS + 1; bootstrap++) {
+            for (int minute = 0; minute < nMinutes; minute++) {
+                int windowStart = minute / windowMinutes * windowMinutes;
+                int count = 0;
+                for (int draw = 0; draw < drawsPerMinute; draw++) {
+                    int weight = weights[minute * drawsPerMinute + draw][bootstrap];
+                    if (bootstrap == 0) assertEquals(1, weight);
+                    assertEquals(weights[windowStart * drawsPerMinute + draw][bootstrap], weight);
+                    count += weight;
+                }
+                assertEquals(drawsPerMinute, count);
+            }
+        }
+    }
+
+    /**
+     * On a network without frequency routes every draw of a minute is the same, so carrying draws across minutes should
+     * change neither the travel times nor the bootstrapped accessibility.
+     */
+    @Test
+    public void testScheduledNetworkIgnoresWindow () {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.BIDIRECTIONAL);
+        network.rebuildLinkedGridPointSet();
+        WebMercatorGridPointSet points = network.gridPointSet;
+        Grid grid = new Grid(points.zoom, points.width, points.height, points.north, points.west);
+        for (double[] column : grid.grid) Arrays.fill(column, 1);
+        int[] nonTransitTimes = new int[points.width * points.height];
+        Arrays.fill(nonTransitTimes, RaptorWorker.UNREACHED);
+
+        TIntIntMap accessStops = new TIntIntHashMap();
+        accessStops.put(0, 120);
+        accessStops.put(1, 600);
+
+        int[] times = null;
+        int[] accessibility = null;
+        for (int frequencyDrawWindowMinutes : new int[] { 1, 5 }) {
+            ProfileRequest request = FakeGraph.buildRequest();
+            request.frequencyDrawWindowMinutes = frequencyDrawWindowMinutes;
+            FastRaptorWorker worker = new FastRaptorWorker(network.transitLayer, request, accessStops);
+            int[] windowTimes = worker.routeStopMajor(null);
+            PerTargetPropagater propagater = new PerTargetPropagater(windowTimes, worker.nIterations, nonTransitTimes,
+                    network.linkedGridPointSet, request, 45 * 60);
+            int[] windowAccessibility = GridComputer.propagateAndBootstrap(propagater, grid, worker.nMinutes,
+                    worker.monteCarloDrawsPerMinute, frequencyDrawWindowMinutes, 50, new MersenneTwister(SEED));
+
+            if (times == null) {
+                times = windowTimes;
+                accessibility = windowAccessibility;
+            } else {
+                assertArrayEquals(times, windowTimes);
+                assertArrayEquals(accessibility, windowAccessibility);
+            }
+        }
+    }
+}
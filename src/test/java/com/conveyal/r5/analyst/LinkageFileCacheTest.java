@@ -0,0 +1,123 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.transit.TransportNetwork;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Test that grid linkages saved to disk are read back unchanged, and that files that do not match are relinked.
+ */
+public class LinkageFileCacheTest extends TestCase {
+    /** Byte offsets of fields in the linkage file header */
+    private static final int VERSION_OFFSET = 4;
+    private static final int VERTEX_COUNT_OFFSET = 12;
+    private static final int HEADER_BYTES = 24;
+
+    private TransportNetwork network;
+    private WebMercatorGridPointSet grid;
+    private File cacheDir;
+
+    @Override
+    public void setUp () throws Exception {
+        network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        // linkages are saved under the ID of the network
+        network.scenarioId = "linkage-test";
+        grid = new WebMercatorGridPointSet(network);
+        cacheDir = Files.createTempDirectory("linkages").toFile();
+    }
+
+    @Override
+    public void tearDown () throws Exception {
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    /** A saved linkage should be read back into a new LinkedPointSet identical to the one that was saved. */
+    @Test
+    public void testRoundTrip () throws Exception {
+        LinkedPointSet linked = new LinkageFileCache(cacheDir).getOrLink(grid, network.streetLayer, StreetMode.WALK);
+        File file = linkageFile();
+        assertTrue(file.length() > HEADER_BYTES);
+
+        LinkedPointSet read = new LinkageFileCache(cacheDir).getOrLink(grid, network.streetLayer, StreetMode.WALK);
+        assertNotSame(linked, read);
+        assertLinkagesEqual(linked, read);
+    }
+
+    /** A file written by another version of the format, or for a different network, should not be loaded. */
+    @Test
+    public void testHeaderMismatch () throws Exception {
+        LinkedPointSet linked = new LinkageFileCache(cacheDir).getOrLink(grid, network.streetLayer, StreetMode.WALK);
+
+        for (int offset : new int[] { VERSION_OFFSET, VERTEX_COUNT_OFFSET }) {
+            File file = linkageFile();
+            int original = corrupt(file, offset);
+
+            LinkedPointSet relinked = new LinkageFileCache(cacheDir).getOrLink(grid, network.streetLayer, StreetMode.WALK);
+            assertLinkagesEqual(linked, relinked);
+
+            // the bad file should have been replaced with a good one
+            try (RandomAccessFile raf = new RandomAccessFile(linkageFile(), "r")) {
+                raf.seek(offset);
+                assertEquals(original, raf.readInt());
+            }
+        }
+    }
+
+    /** A truncated file should be relinked rather than failing or loading a partial linkage. */
+    @Test
+    public void testTruncatedFile () throws Exception {
+        LinkedPointSet linked = new LinkageFileCache(cacheDir).getOrLink(grid, network.streetLayer, StreetMode.WALK);
+        File file = linkageFile();
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length / 2);
+        }
+
+        LinkedPointSet relinked = new LinkageFileCache(cacheDir).getOrLink(grid, network.streetLayer, StreetMode.WALK);
+        assertLinkagesEqual(linked, relinked);
+        assertEquals(length, linkageFile().length());
+    }
+
+    private File linkageFile () {
+        File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(".linkage"));
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    /**
+     * Change the header int at the given offset, and overwrite the linked edges with garbage so that a linkage loaded
+     * from the file would be wrong.
+     * @return the original value of the header int.
+     */
+    private static int corrupt (File file, int offset) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(offset);
+            int original = raf.readInt();
+            raf.seek(offset);
+            raf.writeInt(original + 1);
+            raf.seek(HEADER_BYTES);
+            for (int i = 0; i < 100 && raf.getFilePointer() < raf.length(); i++) raf.writeInt(-1);
+            return original;
+        }
+    }
+
+    private static void assertLinkagesEqual (LinkedPointSet expected, LinkedPointSet actual) {
+        assertTrue(Arrays.equals(expected.edges, actual.edges));
+        assertTrue(Arrays.equals(expected.distances0_mm, actual.distances0_mm));
+        assertTrue(Arrays.equals(expected.distances1_mm, actual.distances1_mm));
+        assertEquals(expected.stopToPointDistanceTables.size(), actual.stopToPointDistanceTables.size());
+        for (int stop = 0; stop < expected.stopToPointDistanceTables.size(); stop++) {
+            assertTrue(Arrays.equals(expected.stopToPointDistanceTables.get(stop),
+                    actual.stopToPointDistanceTables.get(stop)));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test that the grid result publisher sends results in batches that can be decoded by the grid result assembler,
+ * using an in-memory list as the queue.
+ */
+public class GridResultPublisherTest extends TestCase {
+    /** Test that every result arrives exactly once, in batches no larger than SQS allows */
+    @Test
+    public void testBatching () throws Exception {
+        List<List<SendMessageBatchRequestEntry>> batches = Collections.synchronizedList(new ArrayList<>());
+        GridResultPublisher publisher = new GridResultPublisher((queueUrl, entries) -> {
+            assertEquals("queue", queueUrl);
+            batches.add(new ArrayList<>(entries));
+            return Collections.emptyList();
+        }, 5);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int nOrigins = 47;
+        for (int i = 0; i < nOrigins; i++) {
+            futures.add(publisher.publish(request(i), new int[] { i, i * 2, i * 3 }));
+        }
+        publisher.close();
+
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone());
+            assertFalse(future.isCompletedExceptionally());
+        }
+
+        boolean[] received = new boolean[nOrigins];
+        for (List<SendMessageBatchRequestEntry> batch : batches) {
+            assertTrue(batch.size() <= GridResultPublisher.MAX_BATCH_SIZE);
+            for (SendMessageBatchRequestEntry entry : batch) {
+                assertEquals("job", entry.getMessageAttributes().get("jobId").getStringValue());
+                Origin origin = GridResultAssembler.decodeOrigin(entry.getMessageBody());
+                assertFalse(received[origin.x]);
+                received[origin.x] = true;
+                assertEquals(origin.x, origin.y);
+                assertEquals(origin.x * 3, origin.samples[2]);
+            }
+        }
+
+        for (boolean r : received) assertTrue(r);
+    }
+
+    /** Test that messages that fail to send are retried, and reported as failed if they never succeed */
+    @Test
+    public void testRetries () throws Exception {
+        List<Integer> sent = Collections.synchronizedList(new ArrayList<>());
+        int[] attempts = new int[1];
+        GridResultPublisher publisher = new GridResultPublisher((queueUrl, entries) -> {
+            List<String> failed = new ArrayList<>();
+            for (SendMessageBatchRequestEntry entry : entries) {
+                int x = GridResultAssembler.decodeOrigin(entry.getMessageBody()).x;
+                // origin 1 fails once, origin 2 always fails
+                if ((x == 1 && attempts[0]++ == 0) || x == 2) failed.add(entry.getId());
+                else sent.add(x);
+            }
+            return failed;
+        }, 10);
+
+        CompletableFuture<Void> succeeds = publisher.publish(request(0), new int[] { 0 });
+        CompletableFuture<Void> retried = publisher.publish(request(1), new int[] { 1 });
+        CompletableFuture<Void> fails = publisher.publish(request(2), new int[] { 2 });
+        publisher.close();
+
+        assertFalse(succeeds.isCompletedExceptionally());
+        assertFalse(retried.isCompletedExceptionally());
+        assertTrue(fails.isCompletedExceptionally());
+        assertEquals(2, sent.size());
+        assertTrue(sent.contains(0));
+        assertTrue(sent.contains(1));
+    }
+
+    /**
+     * Test that unexpected errors while sending (including failures reported for IDs that were not in the batch) fail
+     * only the affected results, and do not stop later results from being sent.
+     */
+    @Test
+    public void testUnexpectedErrors () throws Exception {
+        List<Integer> sent = Collections.synchronizedList(new ArrayList<>());
+        GridResultPublisher publisher = new GridResultPublisher((queueUrl, entries) -> {
+            List<String> failed = new ArrayList<>();
+            for (SendMessageBatchRequestEntry entry : entries) {
+                int x = GridResultAssembler.decodeOrigin(entry.getMessageBody()).x;
+                if (x == 0) throw new Error("Unexpected error");
+                sent.add(x);
+            }
+            // report a failure for an ID that was never sent, and report it twice
+            failed.add("unknown");
+            failed.add("unknown");
+            return failed;
+        }, 10);
+
+        CompletableFuture<Void> error = publisher.publish(request(0), new int[] { 0 });
+        error.handle((r, e) -> null).get(10, TimeUnit.SECONDS);
+        assertTrue(error.isCompletedExceptionally());
+
+        CompletableFuture<Void> succeeds = publisher.publish(request(1), new int[] { 1 });
+        succeeds.get(10, TimeUnit.SECONDS);
+        publisher.close();
+
+        assertEquals(Collections.singletonList(1), sent);
+    }
+
+    private static GridRequest request (int i) {
+        GridRequest request = new GridRequest();
+        request.jobId = "job";
+        request.outputQueue = "queue";
+        request.x = i;
+        request.y = i;
+        return request;
+    }
+}
@@ -0,0 +1,47 @@
+package com.conveyal.r5.analyst.cluster;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test that regional tasks are held back while interactive tasks are running.
+ */
+public class RegionalTaskThrottleTest extends TestCase {
+    @Test
+    public void testThrottling () throws Exception {
+        RegionalTaskThrottle throttle = new RegionalTaskThrottle(4, 1);
+
+        // With no interactive tasks, regional tasks can start up to the limit of four
+        throttle.beginRegionalTask();
+        throttle.beginRegionalTask();
+
+        // While an interactive task is running only one may run, so a new one waits until the other two finish
+        throttle.beginInteractiveTask();
+        CountDownLatch started = new CountDownLatch(1);
+        Thread regional = new Thread(() -> {
+            try {
+                throttle.beginRegionalTask();
+                started.countDown();
+            } catch (InterruptedException e) {
+                // the latch is not counted down and the test fails
+            }
+        });
+        regional.start();
+
+        assertFalse(started.await(200, TimeUnit.MILLISECONDS));
+        throttle.endRegionalTask();
+        assertFalse(started.await(200, TimeUnit.MILLISECONDS));
+        throttle.endRegionalTask();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // Once the interactive task finishes, regional tasks can use all the processors again
+        throttle.endInteractiveTask();
+        throttle.beginRegionalTask();
+        throttle.beginRegionalTask();
+        throttle.beginRegionalTask();
+        regional.join();
+    }
+}
@@ -14,6 +14,7 @@ import static com.conveyal.r5.analyst.scenario.FakeGraph.set;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -221,6 +222,30 @@ public class AdjustSpeedTest {
         assertEquals(checksum, network.checksum());
     }
 
+    /** A scenario that only changes transit speeds should reuse everything derived from the streets of the base network */
+    @Test
+    public void reuseStreetDerivedStructures () {
+        AdjustSpeed as = new AdjustSpeed();
+        as.routes = set("SINGLE_LINE:route");
+        as.scale = 2;
+
+        Scenario scenario = new Scenario();
+        scenario.modifications = Arrays.asList(as);
+
+        TransportNetwork mod = scenario.applyToTransportNetwork(network);
+
+        assertSame(network.streetLayer.outgoingEdges, mod.streetLayer.outgoingEdges);
+        assertSame(network.linkedGridPointSet, mod.linkedGridPointSet);
+        assertEquals(network.transitLayer.getStopCount(), mod.transitLayer.getStopCount());
+        for (int s = 0; s < network.transitLayer.getStopCount(); s++) {
+            assertSame(network.transitLayer.stopToVertexDistanceTables.get(s),
+                    mod.transitLayer.stopToVertexDistanceTables.get(s));
+            assertSame(network.transitLayer.transfersForStop.get(s), mod.transitLayer.transfersForStop.get(s));
+        }
+
+        assertEquals(checksum, network.checksum());
+    }
+
     @After
     public void tearDown () {
         this.network = null;
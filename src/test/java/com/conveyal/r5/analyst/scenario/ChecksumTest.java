@@ -1,13 +1,20 @@
 package com.conveyal.r5.analyst.scenario;
 
+import com.conveyal.r5.profile.SimpleGreedyFareCalculator;
+import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.VertexStore;
+import com.conveyal.gtfs.model.Route;
 import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.transit.TransportNetworkChecksum;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 
 /**
  * Test that checksums are stable between serializations of the graph.
@@ -42,4 +49,74 @@ public class ChecksumTest {
 
         assertNotEquals("Changing network did not change checksum", checksum, changedChecksum);
     }
+
+    /** Test that changes to the grid linkage and to the fare calculator change the checksum. */
+    @Test
+    public void testLinkageAndFareChecksum () {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.BIDIRECTIONAL);
+        network.rebuildLinkedGridPointSet();
+        SimpleGreedyFareCalculator fareCalculator = new SimpleGreedyFareCalculator();
+        fareCalculator.fare = 200;
+        network.fareCalculator = fareCalculator;
+        long checksum = network.checksum();
+
+        // change the distance from a stop to a point
+        LinkedPointSet linkage = network.linkedGridPointSet;
+        int[] table = linkage.stopToPointDistanceTables.stream().filter(t -> t != null && t.length > 0)
+                .findFirst().orElse(null);
+        assertNotNull("No stop is linked to the grid", table);
+        table[1] += 1000;
+        long changedTableChecksum = network.checksum();
+        assertNotEquals("Changing a stop to point distance did not change checksum", checksum, changedTableChecksum);
+        table[1] -= 1000;
+        assertEquals(checksum, network.checksum());
+
+        // change the inverted point to stop tables built from them
+        linkage.pointToStopDistances_mm[0] += 1000;
+        assertNotEquals("Changing a point to stop distance did not change checksum", checksum, network.checksum());
+        linkage.pointToStopDistances_mm[0] -= 1000;
+
+        fareCalculator.fare = 250;
+        assertNotEquals("Changing the fare calculator did not change checksum", checksum, network.checksum());
+    }
+
+    /**
+     * A scenario copy of the street layer that shares all its contents with the base layer should reuse the checksum of
+     * the base layer, and one that adds to the streets should not.
+     */
+    @Test
+    public void testScenarioReusesStreetChecksum () {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        long streetChecksum = TransportNetworkChecksum.streetLayer(network.streetLayer);
+        assertEquals(streetChecksum, (long) network.streetLayer.checksum);
+
+        SetFareCalculator setFareCalculator = new SetFareCalculator();
+        setFareCalculator.fareCalculator = new SimpleGreedyFareCalculator();
+        Scenario fareScenario = new Scenario();
+        fareScenario.modifications = Arrays.asList(setFareCalculator);
+        TransportNetwork fareNetwork = fareScenario.applyToTransportNetwork(network);
+        assertSame(network.streetLayer, fareNetwork.streetLayer.baseStreetLayer);
+
+        // Change the checksum kept in the base layer, which the scenario copy should return without hashing anything.
+        network.streetLayer.checksum = streetChecksum + 1;
+        assertEquals(streetChecksum + 1, TransportNetworkChecksum.streetLayer(fareNetwork.streetLayer));
+        // The base layer itself is always hashed again.
+        assertEquals(streetChecksum, TransportNetworkChecksum.streetLayer(network.streetLayer));
+
+        AddTrips addTrips = new AddTrips();
+        addTrips.stops = Arrays.asList(new StopSpec(-83.0345, 39.962), new StopSpec(-82.9495, 39.962));
+        addTrips.mode = Route.BUS;
+        AddTrips.PatternTimetable entry = new AddTrips.PatternTimetable();
+        entry.headwaySecs = 900;
+        entry.monday = entry.tuesday = entry.wednesday = entry.thursday = entry.friday = true;
+        entry.hopTimes = new int[] { 120 };
+        entry.dwellTimes = new int[] { 0, 0 };
+        entry.startTime = 7 * 3600;
+        entry.endTime = 10 * 3600;
+        addTrips.frequencies = Arrays.asList(entry);
+        Scenario streetScenario = new Scenario();
+        streetScenario.modifications = Arrays.asList(addTrips);
+        TransportNetwork streetNetwork = streetScenario.applyToTransportNetwork(network);
+        assertNotEquals(streetChecksum, TransportNetworkChecksum.streetLayer(streetNetwork.streetLayer));
+    }
 }
@@ -3,6 +3,7 @@ package com.conveyal.r5.analyst.scenario;
 import com.conveyal.gtfs.GTFSFeed;
 import com.conveyal.gtfs.model.*;
 import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
+import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.google.common.io.ByteStreams;
 import org.apache.commons.io.FileUtils;
@@ -19,6 +20,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -76,6 +78,40 @@ public class FakeGraph {
         }
     }
 
+    /**
+     * Build a graph with a single frequency route, made by converting the two-stop pattern of the MULTIPLE_PATTERNS
+     * network to run every 15 minutes from 6 AM to 4 PM every day.
+     */
+    public static TransportNetwork buildFrequencyNetwork () {
+        AddTrips.PatternTimetable entry = new AddTrips.PatternTimetable();
+        entry.headwaySecs = 900;
+        entry.startTime = 6 * 3600;
+        entry.endTime = 16 * 3600;
+        entry.monday = entry.tuesday = entry.wednesday = entry.thursday = entry.friday = entry.saturday = entry.sunday = true;
+        entry.sourceTrip = "MULTIPLE_PATTERNS:trip25200";
+
+        AdjustFrequency adjustFrequency = new AdjustFrequency();
+        adjustFrequency.route = "MULTIPLE_PATTERNS:route";
+        adjustFrequency.entries = Arrays.asList(entry);
+
+        Scenario scenario = new Scenario();
+        scenario.modifications = Arrays.asList(adjustFrequency);
+        return scenario.applyToTransportNetwork(buildNetwork(TransitNetwork.MULTIPLE_PATTERNS));
+    }
+
+    /**
+     * Build a request for a search between 7 and 8 AM on a day when all the fake networks run, with enough Monte Carlo
+     * draws to give every minute several draws on frequency routes.
+     */
+    public static ProfileRequest buildRequest () {
+        ProfileRequest request = new ProfileRequest();
+        request.date = LocalDate.of(2016, 10, 5);
+        request.fromTime = 7 * 3600;
+        request.toTime = 8 * 3600;
+        request.monteCarloDraws = 120;
+        return request;
+    }
+
     /** Add transit (not just stops) to a Columbus graph */
     public static GTFSFeed getTransit () throws Exception {
         // using conveyal GTFS lib to build GTFS so a lot of code does not have to be rewritten later
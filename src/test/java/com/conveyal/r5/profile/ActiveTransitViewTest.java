@@ -0,0 +1,54 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.transit.TripSchedule;
+import org.junit.Test;
+
+import java.time.LocalDate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that the view of a transit layer used by a search contains only the trips running during its time window, and
+ * is shared between searches with the same window.
+ */
+public class ActiveTransitViewTest {
+    @Test
+    public void testTimeWindowFilter () {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+
+        ProfileRequest request = new ProfileRequest();
+        request.date = LocalDate.of(2016, 10, 5);
+        request.fromTime = 8 * 3600;
+        request.toTime = 9 * 3600;
+        request.maxTripDurationMinutes = 60;
+
+        ActiveTransitView view = ActiveTransitView.forRequest(network.transitLayer, request);
+        assertEquals(1, view.runningScheduledPatterns.length);
+        assertEquals(0, view.runningFrequencyPatterns.length);
+
+        // Trips leave every ten minutes from 7:00 and take 26 minutes. Those that can be used between 8:00 and 10:00
+        // (the end of the window plus the maximum trip duration) leave from 7:40 through 10:00.
+        TripSchedule[] activeTrips = view.activeTripsForScheduledIndex[0];
+        assertEquals(15, activeTrips.length);
+        assertEquals(7 * 3600 + 40 * 60, activeTrips[0].departures[0]);
+        assertEquals(10 * 3600, activeTrips[activeTrips.length - 1].departures[0]);
+        assertTrue(view.tripsDepartInOrderForScheduledIndex[0]);
+
+        // A request with the same window gets the same view, another window gets a different one
+        ProfileRequest sameWindow = request.clone();
+        sameWindow.monteCarloDraws = 10;
+        assertSame(view, ActiveTransitView.forRequest(network.transitLayer, sameWindow));
+
+        ProfileRequest laterWindow = request.clone();
+        laterWindow.fromTime = 17 * 3600;
+        laterWindow.toTime = 18 * 3600;
+        ActiveTransitView laterView = ActiveTransitView.forRequest(network.transitLayer, laterWindow);
+        assertNotSame(view, laterView);
+        assertEquals(16 * 3600 + 40 * 60, laterView.activeTripsForScheduledIndex[0][0].departures[0]);
+    }
+}
@@ -0,0 +1,81 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.r5.transit.TripSchedule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that the binary search for the earliest boardable trip finds the same trip as a linear scan whenever the trips
+ * depart in order, and that trips which overtake one another are detected so that only the linear scan is used.
+ */
+public class FastRaptorWorkerTest {
+
+    /** Trips with identical departure times at some stops still depart in order, and tied trips are boarded first. */
+    @Test
+    public void testTripsWithTies () {
+        TripSchedule[] trips = new TripSchedule[] {
+                createTrip(100, 150),
+                createTrip(200, 250),
+                createTrip(200, 250),
+                createTrip(200, 260),
+                createTrip(300, 350)
+        };
+        assertTrue(ActiveTransitView.tripsDepartInOrder(trips, 2));
+
+        // the binary search should agree with the linear scan at every time, including every departure time
+        for (int stopPositionInPattern = 0; stopPositionInPattern < 2; stopPositionInPattern++) {
+            for (int earliestBoardTime = 0; earliestBoardTime <= 400; earliestBoardTime++) {
+                assertEquals("Earliest trip after " + earliestBoardTime,
+                        FastRaptorWorker.findEarliestTrip(trips, false, stopPositionInPattern, earliestBoardTime),
+                        FastRaptorWorker.findEarliestTrip(trips, true, stopPositionInPattern, earliestBoardTime));
+            }
+        }
+
+        // the first of several tied trips is boarded
+        assertEquals(0, FastRaptorWorker.findEarliestTrip(trips, true, 0, 99));
+        assertEquals(1, FastRaptorWorker.findEarliestTrip(trips, true, 0, 199));
+        assertEquals(1, FastRaptorWorker.findEarliestTrip(trips, true, 1, 249));
+        // a trip departing exactly at the earliest board time cannot be boarded
+        assertEquals(4, FastRaptorWorker.findEarliestTrip(trips, true, 0, 200));
+        assertEquals(3, FastRaptorWorker.findEarliestTrip(trips, true, 1, 250));
+        // nothing can be boarded at or after the last departure
+        assertEquals(-1, FastRaptorWorker.findEarliestTrip(trips, true, 0, 300));
+        assertEquals(-1, FastRaptorWorker.findEarliestTrip(trips, false, 0, 300));
+        assertEquals(-1, FastRaptorWorker.findEarliestTrip(new TripSchedule[0], true, 0, 0));
+    }
+
+    /**
+     * When a trip overtakes an earlier one, the trips are not in order at later stops, so the binary search must not be
+     * used. The linear scan returns the first trip in the order given that departs after the earliest board time.
+     */
+    @Test
+    public void testOvertakingTrips () {
+        TripSchedule[] trips = new TripSchedule[] {
+                createTrip(100, 400),
+                createTrip(200, 300)
+        };
+        assertFalse(ActiveTransitView.tripsDepartInOrder(trips, 2));
+        // the trips are still in order at the first stop, which is not enough
+        assertTrue(ActiveTransitView.tripsDepartInOrder(trips, 1));
+
+        assertEquals(0, FastRaptorWorker.findEarliestTrip(trips, false, 1, 250));
+        assertEquals(0, FastRaptorWorker.findEarliestTrip(trips, false, 1, 299));
+        assertEquals(0, FastRaptorWorker.findEarliestTrip(trips, false, 1, 300));
+        assertEquals(-1, FastRaptorWorker.findEarliestTrip(trips, false, 1, 400));
+        assertEquals(1, FastRaptorWorker.findEarliestTrip(trips, false, 0, 100));
+    }
+
+    /** Create a trip that stops for no time at all at each stop, departing at the given times. */
+    private static TripSchedule createTrip (int... departures) {
+        Trip trip = new Trip();
+        trip.feed_id = "FEED";
+        trip.trip_id = "TRIP" + departures[0];
+        int[] stopSequences = new int[departures.length];
+        for (int i = 0; i < stopSequences.length; i++) stopSequences[i] = i + 1;
+        return TripSchedule.create(trip, departures, departures, null, stopSequences, 0);
+    }
+}
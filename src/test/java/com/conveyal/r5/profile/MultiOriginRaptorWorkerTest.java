@@ -0,0 +1,104 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that searching from several origins at once gives the same results as searching from each of them in turn.
+ */
+public class MultiOriginRaptorWorkerTest {
+    @Test
+    public void testSameResultsAsSingleOriginSearch () {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.BIDIRECTIONAL);
+        int nStops = network.transitLayer.getStopCount();
+
+        ProfileRequest request = FakeGraph.buildRequest();
+
+        // Origins near different stops, including one that does not reach any stops at all
+        List<TIntIntMap> accessStopsForOrigin = new ArrayList<>();
+        for (int origin = 0; origin < 4; origin++) {
+            TIntIntMap accessStops = new TIntIntHashMap();
+            if (origin < 3) {
+                accessStops.put(origin % nStops, 60 * origin);
+                accessStops.put((origin + 2) % nStops, 600 + 30 * origin);
+            }
+            accessStopsForOrigin.add(accessStops);
+        }
+
+        MultiOriginRaptorWorker multiOriginWorker =
+                new MultiOriginRaptorWorker(network.transitLayer, request, accessStopsForOrigin);
+        int[][] multiOriginTimes = multiOriginWorker.routeStopMajor();
+        assertEquals(accessStopsForOrigin.size(), multiOriginTimes.length);
+
+        for (int origin = 0; origin < accessStopsForOrigin.size(); origin++) {
+            FastRaptorWorker worker = new FastRaptorWorker(network.transitLayer, request, accessStopsForOrigin.get(origin));
+            assertEquals(worker.nIterations, multiOriginWorker.nIterations);
+            assertArrayEquals(worker.routeStopMajor(null), multiOriginTimes[origin]);
+        }
+    }
+
+    /**
+     * Origins of a batch share each Monte Carlo draw on frequency routes, so origins with the same access stops should
+     * have identical results, each within the bounds of boarding immediately and waiting a whole headway. This should
+     * hold whether each draw is used for one minute or carried across several.
+     */
+    @Test
+    public void testFrequencyRoutes () {
+        TransportNetwork network = FakeGraph.buildFrequencyNetwork();
+        TripPattern pattern = network.transitLayer.tripPatterns.get(0);
+        TripSchedule exemplar = pattern.tripSchedules.get(0);
+        int rideTime = exemplar.arrivals[1] - exemplar.departures[0];
+        int minTime = FastRaptorWorker.MINIMUM_BOARD_WAIT_SEC + rideTime;
+        int maxTime = minTime + exemplar.headwaySeconds[0];
+
+        TIntIntMap accessStops = new TIntIntHashMap();
+        accessStops.put(pattern.stops[0], 0);
+        List<TIntIntMap> accessStopsForOrigin = Collections.nCopies(4, accessStops);
+
+        for (int frequencyDrawWindowMinutes : new int[] { 1, 5 }) {
+            ProfileRequest request = FakeGraph.buildRequest();
+            request.frequencyDrawWindowMinutes = frequencyDrawWindowMinutes;
+
+            MultiOriginRaptorWorker worker = new MultiOriginRaptorWorker(network.transitLayer, request, accessStopsForOrigin);
+            int[][] times = worker.routeStopMajor();
+
+            for (int origin = 1; origin < times.length; origin++) {
+                assertArrayEquals(times[0], times[origin]);
+            }
+
+            int firstIndex = pattern.stops[1] * worker.nIterations;
+            for (int iteration = 0; iteration < worker.nIterations; iteration++) {
+                int time = times[0][firstIndex + iteration];
+                assertTrue("Travel time " + time + " is outside frequency bounds", time >= minTime && time <= maxTime);
+            }
+        }
+    }
+
+    /** The number of origins to route from at once should always allow at least one origin and at most MAX_ORIGINS. */
+    @Test
+    public void testMaxOrigins () {
+        TransportNetwork network = FakeGraph.buildFrequencyNetwork();
+        ProfileRequest request = FakeGraph.buildRequest();
+
+        long bytesPerOrigin = MultiOriginRaptorWorker.bytesPerOrigin(network.transitLayer, request);
+        int maxOrigins = MultiOriginRaptorWorker.maxOriginsFor(network.transitLayer, request);
+        assertTrue(maxOrigins >= 1 && maxOrigins <= MultiOriginRaptorWorker.MAX_ORIGINS);
+
+        // draws carried across a window of minutes each keep their own states
+        request.frequencyDrawWindowMinutes = 5;
+        assertTrue(MultiOriginRaptorWorker.bytesPerOrigin(network.transitLayer, request) > bytesPerOrigin);
+    }
+}
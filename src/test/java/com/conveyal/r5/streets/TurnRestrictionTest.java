@@ -683,6 +683,48 @@ public class TurnRestrictionTest extends TurnTest {
         }
     }
 
+    /**
+     * A router given back to the street layer and reused should find the same states as a new router, including when
+     * its last search left turn-restricted states behind.
+     */
+    @Test
+    public void testReusedRouter () {
+        setUp(false);
+        restrictTurn(false, ES + 1, EW);
+
+        StreetRouter r = streetLayer.getRouter();
+        r.streetMode = StreetMode.CAR;
+        r.setOrigin(VS);
+        r.route();
+        int restrictedWeight = r.getStateAtVertex(VW).weight;
+        streetLayer.returnRouter(r);
+
+        StreetRouter reused = streetLayer.getRouter();
+        assertSame(r, reused);
+        // reset should have set the mode back to its default
+        assertEquals(StreetMode.WALK, reused.streetMode);
+        reused.streetMode = StreetMode.CAR;
+        reused.setOrigin(VN);
+        reused.route();
+
+        StreetRouter fresh = new StreetRouter(streetLayer);
+        fresh.streetMode = StreetMode.CAR;
+        fresh.setOrigin(VN);
+        fresh.route();
+
+        for (int v : new int[] { VCENTER, VN, VS, VE, VW, VNE, VNW, VSW }) {
+            assertEquals(fresh.getStateAtVertex(v).weight, reused.getStateAtVertex(v).weight);
+        }
+        assertEquals(fresh.getReachedVertices().size(), reused.getReachedVertices().size());
+        streetLayer.returnRouter(reused);
+
+        reused = streetLayer.getRouter();
+        reused.streetMode = StreetMode.CAR;
+        reused.setOrigin(VS);
+        reused.route();
+        assertEquals(restrictedWeight, reused.getStateAtVertex(VW).weight);
+    }
+
     /** does a state pass through a vertex? */
     public static boolean stateContainsVertex(StreetRouter.State state, int vertex) {
         while (state != null) {
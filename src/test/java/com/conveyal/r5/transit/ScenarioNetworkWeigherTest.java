@@ -0,0 +1,111 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.gtfs.model.Route;
+import com.conveyal.r5.analyst.scenario.AddTrips;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.r5.analyst.scenario.StopSpec;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.google.common.cache.Cache;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that scenario networks are weighed by the memory they do not share with their base network, and that the cache
+ * of scenario networks evicts them by that weight.
+ */
+public class ScenarioNetworkWeigherTest {
+    private TransportNetwork baseNetwork;
+    private TransportNetwork transitScenarioNetwork;
+    private TransportNetwork streetScenarioNetwork;
+
+    @Before
+    public void setUp () {
+        baseNetwork = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        baseNetwork.rebuildLinkedGridPointSet();
+
+        // The same trips on existing stops only change the transit layer, while new stops are linked to the streets.
+        transitScenarioNetwork = addTrips(Arrays.asList(new StopSpec("SINGLE_LINE:s1"), new StopSpec("SINGLE_LINE:s3")));
+        streetScenarioNetwork = addTrips(Arrays.asList(new StopSpec(-83.0345, 39.962), new StopSpec(-82.9495, 39.962)));
+    }
+
+    @Test
+    public void testStreetChangesWeighMore () {
+        ScenarioNetworkWeigher weigher = new ScenarioNetworkWeigher(baseNetwork);
+        int transitWeight = weigher.weigh("transit", transitScenarioNetwork);
+        int streetWeight = weigher.weigh("street", streetScenarioNetwork);
+
+        assertTrue(transitWeight >= 1);
+        assertTrue("Street changes weigh " + streetWeight + " kB, transit changes " + transitWeight + " kB",
+                streetWeight > 10 * transitWeight);
+        assertEquals(1, weigher.weigh("base", baseNetwork));
+    }
+
+    /** The point to stop tables of a scenario's own grid linkage should be counted once they have been built. */
+    @Test
+    public void testPointToStopTablesCounted () {
+        LinkedPointSet linkage = streetScenarioNetwork.linkedGridPointSet;
+        assertNull(linkage.pointToStopOffsets);
+        long withoutTables = ScenarioNetworkWeigher.estimateRetainedBytes(streetScenarioNetwork, baseNetwork);
+
+        linkage.makePointToStopDistanceTablesIfNeeded();
+        long tableBytes = 4L * (linkage.pointToStopOffsets.length + linkage.pointToStopStops.length +
+                linkage.pointToStopDistances_mm.length);
+        assertEquals(withoutTables + tableBytes,
+                ScenarioNetworkWeigher.estimateRetainedBytes(streetScenarioNetwork, baseNetwork));
+    }
+
+    /**
+     * A cache that can hold both scenarios should keep them both, even though the street scenario weighs far more than
+     * a quarter of the cache, and the least recently used scenarios should be evicted once they no longer fit.
+     */
+    @Test
+    public void testEvictionByWeight () {
+        ScenarioNetworkWeigher weigher = new ScenarioNetworkWeigher(baseNetwork);
+        int transitWeight = weigher.weigh("transit", transitScenarioNetwork);
+        int streetWeight = weigher.weigh("street", streetScenarioNetwork);
+
+        Cache<String, TransportNetwork> cache =
+                TransportNetworkCache.createScenarioCache(baseNetwork, transitWeight + streetWeight);
+        cache.put("transit", transitScenarioNetwork);
+        cache.put("street", streetScenarioNetwork);
+        assertEquals(2, cache.size());
+
+        // A second street scenario does not fit alongside the first, so both older scenarios are evicted.
+        cache.put("street2", streetScenarioNetwork);
+        assertEquals(1, cache.size());
+        assertNull(cache.getIfPresent("transit"));
+        assertNull(cache.getIfPresent("street"));
+        assertNotNull(cache.getIfPresent("street2"));
+        assertEquals(2, cache.stats().evictionCount());
+    }
+
+    private TransportNetwork addTrips (List<StopSpec> stops) {
+        AddTrips addTrips = new AddTrips();
+        addTrips.bidirectional = true;
+        addTrips.stops = stops;
+        addTrips.mode = Route.BUS;
+
+        AddTrips.PatternTimetable entry = new AddTrips.PatternTimetable();
+        entry.headwaySecs = 900;
+        entry.monday = entry.tuesday = entry.wednesday = entry.thursday = entry.friday = true;
+        entry.saturday = entry.sunday = false;
+        entry.hopTimes = new int[] { 120 };
+        entry.dwellTimes = new int[] { 0, 0 };
+        entry.startTime = 7 * 3600;
+        entry.endTime = 10 * 3600;
+        addTrips.frequencies = Arrays.asList(entry);
+
+        Scenario scenario = new Scenario();
+        scenario.modifications = Arrays.asList(addTrips);
+        return scenario.applyToTransportNetwork(baseNetwork);
+    }
+}
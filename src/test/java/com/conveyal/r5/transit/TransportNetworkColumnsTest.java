@@ -0,0 +1,92 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.streets.EdgeStore;
+import com.conveyal.r5.streets.VertexStore;
+import com.conveyal.r5.util.ExpandingMMFBytez;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test that networks written with their bulk data in columns are read back unchanged, and that networks written
+ * entirely with FST (before the columns existed) can still be read.
+ */
+public class TransportNetworkColumnsTest {
+    @Test
+    public void testRoundTrip () throws Exception {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.BIDIRECTIONAL);
+        network.rebuildLinkedGridPointSet();
+        long checksum = network.checksum();
+
+        File file = File.createTempFile("network", ".dat");
+        try {
+            network.write(file);
+            // writing detaches the columns from the network, they should all have been put back
+            assertEquals("Writing the network changed it", checksum, network.checksum());
+
+            TransportNetwork read = TransportNetwork.read(file);
+            assertColumnsEqual(network, read);
+            assertEquals("Network read back has a different checksum", checksum, read.checksum());
+            assertEquals(TransportNetworkChecksum.distanceTables(network.transitLayer.stopToVertexDistanceTables),
+                    TransportNetworkChecksum.distanceTables(read.transitLayer.stopToVertexDistanceTables));
+            assertEquals(TransportNetworkChecksum.linkage(network.linkedGridPointSet),
+                    TransportNetworkChecksum.linkage(read.linkedGridPointSet));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** A file written entirely with FST has no trailer, and should be read with FST alone. */
+    @Test
+    public void testReadWithoutColumns () throws Exception {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.BIDIRECTIONAL);
+        network.rebuildLinkedGridPointSet();
+
+        File fstFile = File.createTempFile("network", ".dat");
+        File columnsFile = File.createTempFile("network", ".dat");
+        try {
+            ExpandingMMFBytez.writeObjectToFile(fstFile, network);
+            network.write(columnsFile);
+
+            TransportNetwork fstNetwork = TransportNetwork.read(fstFile);
+            assertColumnsEqual(network, fstNetwork);
+
+            // Hash maps are hashed in key order, so the layout of the maps read back does not change the checksum.
+            long checksum = network.checksum();
+            assertEquals(checksum, fstNetwork.checksum());
+            assertEquals(checksum, TransportNetwork.read(columnsFile).checksum());
+        } finally {
+            fstFile.delete();
+            columnsFile.delete();
+        }
+    }
+
+    private static void assertColumnsEqual (TransportNetwork expected, TransportNetwork actual) {
+        VertexStore expectedVertices = expected.streetLayer.vertexStore;
+        VertexStore actualVertices = actual.streetLayer.vertexStore;
+        assertEquals(expectedVertices.fixedLats, actualVertices.fixedLats);
+        assertEquals(expectedVertices.fixedLons, actualVertices.fixedLons);
+        assertEquals(expectedVertices.vertexFlags, actualVertices.vertexFlags);
+
+        EdgeStore expectedEdges = expected.streetLayer.edgeStore;
+        EdgeStore actualEdges = actual.streetLayer.edgeStore;
+        assertEquals(expectedEdges.flags, actualEdges.flags);
+        assertEquals(expectedEdges.speeds, actualEdges.speeds);
+        assertEquals(expectedEdges.fromVertices, actualEdges.fromVertices);
+        assertEquals(expectedEdges.toVertices, actualEdges.toVertices);
+        assertEquals(expectedEdges.lengths_mm, actualEdges.lengths_mm);
+        assertEquals(expectedEdges.osmids, actualEdges.osmids);
+        assertEquals(expectedEdges.inAngles, actualEdges.inAngles);
+        assertEquals(expectedEdges.outAngles, actualEdges.outAngles);
+        assertEquals(expectedEdges.geometries.size(), actualEdges.geometries.size());
+        for (int i = 0; i < expectedEdges.geometries.size(); i++) {
+            assertArrayEquals(expectedEdges.geometries.get(i), actualEdges.geometries.get(i));
+        }
+
+        assertEquals(expected.transitLayer.stopToVertexDistanceTables, actual.transitLayer.stopToVertexDistanceTables);
+    }
+}
@@ -0,0 +1,45 @@
+package com.conveyal.r5.util;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test that the primitive-keyed heap used by the street router polls values in key order.
+ */
+public class TIntObjectMinHeapTest extends TestCase {
+
+    @Test
+    public void testOrdering () {
+        // start small so the heap has to grow
+        TIntObjectMinHeap<Integer> heap = new TIntObjectMinHeap<>(2);
+        Random random = new Random(42);
+        int[] keys = new int[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt(500);
+            heap.add(keys[i], keys[i]);
+        }
+        assertEquals(keys.length, heap.size());
+
+        Arrays.sort(keys);
+        for (int key : keys) {
+            assertEquals(key, heap.peekKey());
+            assertEquals(key, (int) heap.poll());
+        }
+        assertTrue(heap.isEmpty());
+        assertNull(heap.poll());
+    }
+
+    @Test
+    public void testClear () {
+        TIntObjectMinHeap<String> heap = new TIntObjectMinHeap<>();
+        heap.add("b", 2);
+        heap.add("a", 1);
+        heap.clear();
+        assertTrue(heap.isEmpty());
+        heap.add("c", 3);
+        assertEquals("c", heap.poll());
+    }
+}